@@ -0,0 +1,99 @@
+package networkOfCounters;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end benchmarks of agents on loopback: CLK round trip, full synchronizeCounters and joining of a new agent,
+ * for networks of different sizes. Every fork starts its own network, so agents of one run don't disturb the next one.
+ * Run with: java -jar bench/target/benchmarks.jar LoopbackBenchmark -p size=2,16,64
+ * @author Grzegorz Golebiowski
+ *
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Benchmark)
+public class LoopbackBenchmark {
+
+	private static final int MAX_JOINS = 256; // joining agents stay in the network, connection limit of the first agent counts them
+
+	@Param({"2", "16", "64"})
+	public int size;
+
+	private final List<Agent> network = new ArrayList<>();
+	private Agent first;
+	private FrameChannel channel;
+	private int ip;
+
+	@Setup(Level.Trial)
+	public void createNetwork() throws Exception {
+		if(System.getProperty("networkOfCounters.logsDir") == null) // set before AgentConfig is loaded
+			System.setProperty("networkOfCounters.logsDir", new File(System.getProperty("java.io.tmpdir"), "networkOfCounters-bench").getPath());
+		Agent.displayingLogMessages = false;
+		AgentConfig config = AgentConfig.getDefault();
+		// every peer keeps pooled connections to the first agent, which would refuse joining agents above the default limit
+		config.setMaxConnections(Math.max(config.getMaxConnections(), 2 * (size + MAX_JOINS) + 16));
+		first = new Agent();
+		network.add(first);
+		for(int i = 1; i < size; i++)
+			network.add(new Agent(i * 1000L, first.getPort()));
+		ip = MessageUtils.ipToInt(first.getIP());
+		channel = new FrameChannel(new Socket(first.getIP(), first.getPort()));
+		channel.getSocket().setTcpNoDelay(true);
+	}
+
+	@TearDown(Level.Trial)
+	public void stopNetwork() throws IOException {
+		channel.close();
+		for(Agent agent : network)
+			agent.stop();
+	}
+
+	/**
+	 * CLK sent as the agent itself, so the benchmark isn't added to its peers
+	 */
+	@Benchmark
+	public long clkRoundTrip() throws IOException {
+		return channel.call(channel.outbound().set(MessageUtils.CLK, ip, first.getPort())).getValue();
+	}
+
+	@Benchmark
+	public long synchronizeCounters() throws Exception {
+		first.synchronizeCounters();
+		return first.getTimerValue();
+	}
+
+	/**
+	 * Joined agents stay, so the network grows during the measurement, at most by MAX_JOINS agents
+	 */
+	@Benchmark
+	@Warmup(iterations = 1, batchSize = 5)
+	@Measurement(iterations = 4, batchSize = 10)
+	@BenchmarkMode(Mode.SingleShotTime)
+	public int join() throws Exception {
+		Agent agent = new Agent(0, first.getPort());
+		network.add(agent);
+		return agent.getPort();
+	}
+}
@@ -0,0 +1,196 @@
+package networkOfCounters;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of encoding and decoding frames, parsing segments and parsing monitor's requests.
+ * Encoded frames change with every call and decoding reads bytes encoded once in setup, so only the measured step is timed.
+ * Run with: java -jar bench/target/benchmarks.jar WireBenchmark
+ * @author Grzegorz Golebiowski
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class WireBenchmark {
+
+	private static final String IP = "127.0.0.1";
+	private static final int PORT = 50123;
+	private static final String REQUEST = "GET /?action=SYN&agent=127.0.0.1%3A50123&page=2 HTTP/1.1\r\nHost: localhost:8080\r\nConnection: keep-alive\r\n\r\n";
+	private static final String QUERY = "action=ADD&intro=127.0.0.1%3A50123&timerValue=12";
+
+	/**
+	 * LST frame of a membership of the given size
+	 */
+	@State(Scope.Thread)
+	public static class Lists {
+		@Param({"16", "256"})
+		public int size;
+
+		private Frame list;
+		private ByteBuffer encoded;
+
+		@Setup
+		public void setUp() {
+			int ip = MessageUtils.ipToInt(IP);
+			list = new Frame().set(MessageUtils.LST, ip, PORT).setMode(SyncMode.AVERAGE.getCode()).setValue(size);
+			for(int i = 0; i < size; i++)
+				list.addAddress(Membership.ADDED, MessageUtils.packAddress(ip, 1024 + i));
+			encoded = encodeOnce(list);
+		}
+	}
+
+	private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+	private final Frame decoded = new Frame();
+	private Frame counter;
+	private Frame share;
+	private Frame namedCounters;
+	private ByteBuffer encodedCounter;
+	private ByteBuffer encodedShare;
+	private ByteBuffer encodedNamedCounters;
+	private String segment;
+	private String address;
+	private Router router;
+	private int port = PORT; // field, so the segment isn't built from constants
+	private long value;
+
+	@Setup
+	public void setUp() {
+		int ip = MessageUtils.ipToInt(IP);
+		counter = new Frame().set(MessageUtils.VAL, ip, PORT).setValue(123456789L);
+		share = new Frame().set(MessageUtils.PSH, ip, PORT).setValue(7).setShare(1234.5, 0.25);
+		namedCounters = new Frame().set(MessageUtils.VAL, ip, PORT).setValue(123456789L);
+		for(int i = 0; i < 1024; i++)
+			namedCounters.addCounter(CounterTable.idOf("tenant-" + i), 123456789L + i);
+		encodedCounter = encodeOnce(counter);
+		encodedShare = encodeOnce(share);
+		encodedNamedCounters = encodeOnce(namedCounters);
+		segment = MessageUtils.getSegment("SYN", IP, PORT);
+		address = IP + ":" + PORT;
+		router = new Router((request, out, keepAlive) -> {}, (request, out, keepAlive) -> {})
+				.add("/", (request, out, keepAlive) -> {}, "GET")
+				.add("/api/agents", (request, out, keepAlive) -> {}, "GET")
+				.add("/api/syn", (request, out, keepAlive) -> {}, "POST");
+	}
+
+	@Benchmark
+	public int encodeCounter() {
+		return encode(counter.setValue(value++));
+	}
+
+	@Benchmark
+	public int encodeShare() {
+		return encode(share.setValue(value++));
+	}
+
+	@Benchmark
+	public int encodeList(Lists lists) {
+		return encode(lists.list.setValue(value++));
+	}
+
+	@Benchmark
+	public int encodeNamedCounters() {
+		return encode(namedCounters.setValue(value++));
+	}
+
+	@Benchmark
+	public long decodeCounter() throws ProtocolException {
+		return decode(encodedCounter).getValue();
+	}
+
+	@Benchmark
+	public double decodeShare() throws ProtocolException {
+		return decode(encodedShare).getMass();
+	}
+
+	@Benchmark
+	public int decodeList(Lists lists) throws ProtocolException {
+		return decode(lists.encoded).getAddressCount();
+	}
+
+	@Benchmark
+	public int decodeNamedCounters() throws ProtocolException {
+		return decode(encodedNamedCounters).getCounterCount();
+	}
+
+	@Benchmark
+	public long packAddress() {
+		return MessageUtils.packAddress(address);
+	}
+
+	@Benchmark
+	public String getSegment() {
+		return MessageUtils.getSegment("SYN", IP, port);
+	}
+
+	@Benchmark
+	public void parseSegment(Blackhole blackhole) {
+		blackhole.consume(MessageUtils.getFlagFromSegment(segment));
+		blackhole.consume(MessageUtils.getIPAndPortFromSegment(segment));
+	}
+
+	@Benchmark
+	public String queryStringEncoded() {
+		return new QueryString(QUERY).get("intro");
+	}
+
+	@Benchmark
+	public String queryStringPlain() {
+		return new QueryString(QUERY).get("timerValue");
+	}
+
+	@Benchmark
+	public HttpRequest readRequest() throws IOException {
+		return HttpRequest.read(new BufferedReader(new StringReader(REQUEST)));
+	}
+
+	/**
+	 * Cost of a single request of the monitor: reading request line and headers, routing and decoding parameters
+	 */
+	@Benchmark
+	public void readAndRouteRequest(Blackhole blackhole) throws IOException {
+		HttpRequest request = HttpRequest.read(new BufferedReader(new StringReader(REQUEST)));
+		blackhole.consume(router.route(request));
+		blackhole.consume(request.getParameter("agent"));
+	}
+
+	private int encode(Frame frame) {
+		buffer.clear();
+		MessageUtils.encode(frame, buffer);
+		return buffer.position();
+	}
+
+	private Frame decode(ByteBuffer encoded) throws ProtocolException {
+		encoded.position(MessageUtils.LENGTH_PREFIX_SIZE);
+		MessageUtils.decode(encoded, decoded);
+		return decoded;
+	}
+
+	private static ByteBuffer encodeOnce(Frame frame) {
+		ByteBuffer encoded = ByteBuffer.allocate(MessageUtils.getEncodedLength(frame));
+		MessageUtils.encode(frame, encoded);
+		encoded.flip();
+		return encoded;
+	}
+}
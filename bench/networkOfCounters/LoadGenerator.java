@@ -0,0 +1,466 @@
+package networkOfCounters;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator starting agents on loopback with random initial counters and running scenarios on them:
+ * join (network grows to the given size one agent after another), storm (many agents send SYN flags at once),
+ * churn (agents leave with removeAgentFromNetwork and new ones join), concurrentJoin (many agents join at once through the same agent)
+ * restart (agents stop without leaving and are restarted from their snapshots, which are turned on for it) and increments (many agents move their counters at once,
+ * in CRDT mode the changes spread with delta-states).
+ * For every scenario it measures latency of its operations, time after which counters converge, the highest spread of counters,
+ * connections and bytes used, and writes results of the run as JSON, so runs can be compared.
+ * Run with: java -DnetworkOfCounters.logsDir=/tmp/logs -cp out networkOfCounters.LoadGenerator 64
+ * @author Grzegorz Golebiowski
+ *
+ */
+public class LoadGenerator {
+
+	private static final int DEFAULT_SIZE = 64;
+	private static final String SCENARIOS = System.getProperty("load.scenarios", "join,storm,churn,concurrentJoin,restart,increments");
+	private static final long COUNTER_RANGE = Long.getLong("load.counterRange", 100000); // initial counters are random in [0, range) milliseconds
+	private static final int STORM_SIZE = Integer.getInteger("load.stormSize", 16); // agents sending SYN at once
+	private static final int CHURN_CYCLES = Integer.getInteger("load.churnCycles", 10); // agents leaving, each replaced by a new one
+	private static final int CONCURRENT_JOINS = Integer.getInteger("load.concurrentJoins", 16);
+	private static final int RESTARTS = Integer.getInteger("load.restarts", 10);
+	private static final int INCREMENTS = Integer.getInteger("load.increments", 16); // agents moving their counters at once
+	private static final long TOLERANCE = Long.getLong("load.tolerance", 20); // spread of converged counters, milliseconds
+	private static final long CONVERGENCE_TIMEOUT = Long.getLong("load.convergenceTimeout", 10000); // milliseconds
+	private static final long SAMPLE_INTERVAL = Long.getLong("load.sampleInterval", 10); // milliseconds between samples of the spread
+	private static final String OUTPUT = System.getProperty("load.output", "load-results.json");
+	private static final boolean MONITOR = Boolean.getBoolean("load.monitor"); // shows agents in the control panel during the run
+
+	private final List<Agent> agents = new CopyOnWriteArrayList<>(); // agents in the network
+	private final List<Agent> allAgents = new CopyOnWriteArrayList<>(); // also removed agents, their metrics are part of totals
+	private final ExecutorService workers = Executors.newCachedThreadPool();
+	private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+	private final AtomicLong maxSpread = new AtomicLong();
+
+	/**
+	 * Latencies of a single kind of operation
+	 */
+	private static class Operation {
+		private final List<Long> times = new ArrayList<>();
+		private int failures;
+
+		synchronized void record(long nanos) {
+			times.add(nanos);
+		}
+
+		synchronized void fail() {
+			failures++;
+		}
+
+		synchronized String toJson() {
+			long[] sorted = new long[times.size()];
+			long total = 0;
+			for(int i = 0; i < sorted.length; i++) {
+				sorted[i] = times.get(i);
+				total += sorted[i];
+			}
+			Arrays.sort(sorted);
+			return "{\"count\":" + sorted.length + ",\"failures\":" + failures
+					+ ",\"avgMs\":" + millis(sorted.length == 0 ? 0 : total / sorted.length)
+					+ ",\"p50Ms\":" + millis(percentile(sorted, 0.5)) + ",\"p99Ms\":" + millis(percentile(sorted, 0.99))
+					+ ",\"maxMs\":" + millis(sorted.length == 0 ? 0 : sorted[sorted.length - 1]) + "}";
+		}
+	}
+
+	/**
+	 * Result of a single scenario
+	 */
+	private static class Scenario {
+		final String name;
+		final Map<String, Operation> operations = new LinkedHashMap<>();
+		long duration; // nanoseconds of all operations
+		long convergence = -1; // nanoseconds after the last operation until counters converged, -1 when they didn't
+		long maxSpread;
+		long finalSpread;
+		int agents;
+		long[] totals; // connections opened, connections accepted, bytes sent, bytes received
+
+		Scenario(String name) {
+			this.name = name;
+		}
+
+		synchronized Operation operation(String name) {
+			return operations.computeIfAbsent(name, n -> new Operation());
+		}
+
+		String toJson() {
+			StringBuilder json = new StringBuilder("{\"name\":").append(JsonUtils.quote(name)).append(",\"agents\":").append(agents).append(",\"operations\":{");
+			String separator = "";
+			for(Map.Entry<String, Operation> operation : operations.entrySet()) {
+				json.append(separator).append(JsonUtils.quote(operation.getKey())).append(':').append(operation.getValue().toJson());
+				separator = ",";
+			}
+			return json.append("},\"durationMs\":").append(millis(duration))
+					.append(",\"convergenceMs\":").append(convergence < 0 ? "null" : millis(convergence))
+					.append(",\"maxSpreadMs\":").append(maxSpread).append(",\"finalSpreadMs\":").append(finalSpread)
+					.append(",\"connectionsOpened\":").append(totals[0]).append(",\"connectionsAccepted\":").append(totals[1])
+					.append(",\"bytesSent\":").append(totals[2]).append(",\"bytesReceived\":").append(totals[3]).append('}').toString();
+		}
+	}
+
+	/**
+	 * Operation of a scenario which is timed
+	 */
+	private interface Step {
+		void run() throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Agent.displayingLogMessages = false;
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SIZE;
+		if(MONITOR)
+			MonitorHTTPServer.startServer();
+		File snapshotDir = enableSnapshots();
+		LoadGenerator generator = new LoadGenerator();
+		List<Scenario> results = new ArrayList<>();
+		for(String name : SCENARIOS.split(","))
+			results.add(generator.run(name.trim(), size));
+		generator.write(results, size);
+		generator.deleteSnapshots(snapshotDir);
+		System.exit(0); // agents are still running
+	}
+
+	/**
+	 * Runs scenario on the network, which is created first when the scenario needs it
+	 * @param name
+	 * @param size number of agents in the network
+	 * @return result of the scenario
+	 * @throws Exception
+	 */
+	private Scenario run(String name, int size) throws Exception {
+		if(!name.equals("join"))
+			growNetwork(size, null);
+		Scenario scenario = new Scenario(name);
+		long[] before = totals();
+		maxSpread.set(getSpread());
+		ScheduledFuture<?> sampling = sampler.scheduleAtFixedRate(() -> maxSpread.accumulateAndGet(getSpread(), Math::max),
+				SAMPLE_INTERVAL, SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+		long start = System.nanoTime();
+		switch(name) {
+			case "join":
+				growNetwork(size, scenario);
+				break;
+			case "storm":
+				storm(scenario);
+				break;
+			case "churn":
+				churn(scenario);
+				break;
+			case "concurrentJoin":
+				concurrentJoin(scenario);
+				break;
+			case "restart":
+				restart(scenario);
+				break;
+			case "increments":
+				increments(scenario);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown scenario: " + name);
+		}
+		long end = System.nanoTime();
+		scenario.duration = end - start;
+		scenario.convergence = awaitConvergence(end);
+		sampling.cancel(false);
+		scenario.finalSpread = getSpread();
+		scenario.maxSpread = Math.max(maxSpread.get(), scenario.finalSpread);
+		scenario.agents = agents.size();
+		long[] after = totals();
+		scenario.totals = new long[after.length];
+		for(int i = 0; i < after.length; i++)
+			scenario.totals[i] = after[i] - before[i];
+		System.out.println(String.format(Locale.ROOT, "%-16s agents: %6d, duration: %10s ms, convergence: %10s ms, max spread: %8d ms, bytes sent: %12d",
+				name, scenario.agents, millis(scenario.duration), scenario.convergence < 0 ? "-" : millis(scenario.convergence), scenario.maxSpread, scenario.totals[2]));
+		return scenario;
+	}
+
+	/**
+	 * Joins agents one after another through random agents of the network, until it has given size
+	 * @param size
+	 * @param scenario records latencies of joins, null when they aren't measured
+	 * @throws Exception
+	 */
+	private void growNetwork(int size, Scenario scenario) throws Exception {
+		if(agents.isEmpty())
+			add(new Agent());
+		while(agents.size() < size) {
+			int introAgentPort = randomAgent().getPort();
+			timed(scenario, "join", () -> add(new Agent(randomCounter(), introAgentPort)));
+		}
+	}
+
+	/**
+	 * Random agents of the network send SYN flags to all agents at the same time
+	 * @param scenario
+	 * @throws Exception
+	 */
+	private void storm(Scenario scenario) throws Exception {
+		List<Agent> senders = new ArrayList<>(agents);
+		Collections.shuffle(senders, ThreadLocalRandom.current());
+		List<Callable<Void>> steps = new ArrayList<>();
+		for(Agent sender : senders.subList(0, Math.min(STORM_SIZE, senders.size())))
+			steps.add(() -> timed(scenario, "sync", sender::synchronizeCounters));
+		invokeAll(steps);
+	}
+
+	/**
+	 * Random agents, other than the first one, leave the network, each one is replaced by a new agent joining through a random agent
+	 * @param scenario
+	 * @throws Exception
+	 */
+	private void churn(Scenario scenario) throws Exception {
+		for(int i = 0; i < CHURN_CYCLES && agents.size() > 1; i++) {
+			Agent leaving = agents.get(1 + ThreadLocalRandom.current().nextInt(agents.size() - 1));
+			remove(leaving);
+			timed(scenario, "leave", leaving::removeAgentFromNetwork);
+			int introAgentPort = randomAgent().getPort();
+			timed(scenario, "join", () -> add(new Agent(randomCounter(), introAgentPort)));
+		}
+	}
+
+	/**
+	 * Many agents join at the same time through the first agent
+	 * @param scenario
+	 * @throws Exception
+	 */
+	private void concurrentJoin(Scenario scenario) throws Exception {
+		int introAgentPort = agents.get(0).getPort();
+		List<Callable<Void>> steps = new ArrayList<>();
+		for(int i = 0; i < CONCURRENT_JOINS; i++)
+			steps.add(() -> timed(scenario, "join", () -> add(new Agent(randomCounter(), introAgentPort))));
+		invokeAll(steps);
+	}
+
+	/**
+	 * Turns snapshots on when restart scenario is run and they weren't set explicitly, they are written to a temporary directory
+	 * @return temporary directory of snapshots, null when snapshots weren't turned on here
+	 * @throws IOException
+	 */
+	private static File enableSnapshots() throws IOException {
+		if(!Arrays.asList(SCENARIOS.replace(" ", "").split(",")).contains("restart") || System.getProperty("networkOfCounters.snapshots") != null)
+			return null;
+		AgentConfig config = AgentConfig.getDefault();
+		config.setSnapshots(true);
+		if(System.getProperty("networkOfCounters.snapshotDir") != null)
+			return null;
+		File snapshotDir = Files.createTempDirectory("networkOfCounters-snapshots").toFile();
+		config.setSnapshotDir(snapshotDir.getPath());
+		return snapshotDir;
+	}
+
+	/**
+	 * Deletes snapshots of all agents of the run, agents are still running, so they don't delete them themselves
+	 * @param snapshotDir temporary directory of snapshots deleted as well, may be null
+	 */
+	private void deleteSnapshots(File snapshotDir) {
+		for(Agent agent : allAgents) {
+			File snapshot = agent.getSnapshotFile();
+			if(snapshot != null && !snapshot.delete() && snapshot.exists())
+				System.err.println("Snapshot " + snapshot + " couldn't be deleted");
+		}
+		if(snapshotDir != null && !snapshotDir.delete())
+			System.err.println("Directory " + snapshotDir + " couldn't be deleted");
+	}
+
+	/**
+	 * Random agents, other than the first one, stop without leaving the network and are restarted from their snapshots one after another
+	 * @param scenario
+	 * @throws Exception
+	 */
+	private void restart(Scenario scenario) throws Exception {
+		for(int i = 0; i < RESTARTS && agents.size() > 1; i++) {
+			Agent stopped = agents.get(1 + ThreadLocalRandom.current().nextInt(agents.size() - 1));
+			if(stopped.getSnapshotFile() == null)
+				throw new IllegalStateException("Snapshots are turned off");
+			remove(stopped);
+			stopped.stop();
+			timed(scenario, "restart", () -> add(new Agent(stopped.getSnapshotFile())));
+		}
+	}
+
+	/**
+	 * Random agents add random deltas to their counters at the same time and then synchronize counters
+	 * @param scenario
+	 * @throws Exception
+	 */
+	private void increments(Scenario scenario) throws Exception {
+		List<Agent> senders = new ArrayList<>(agents);
+		Collections.shuffle(senders, ThreadLocalRandom.current());
+		List<Callable<Void>> steps = new ArrayList<>();
+		for(Agent sender : senders.subList(0, Math.min(INCREMENTS, senders.size()))) {
+			long delta = ThreadLocalRandom.current().nextLong(-COUNTER_RANGE, COUNTER_RANGE);
+			steps.add(() -> timed(scenario, "increment", () -> {
+				sender.addToCounter(delta);
+				sender.synchronizeCounters();
+			}));
+		}
+		invokeAll(steps);
+	}
+
+	/**
+	 * Runs step and records its latency, or failure when it throws
+	 * @param scenario null when step isn't measured
+	 * @param operation name of the operation
+	 * @param step
+	 * @return null, so it can be used as Callable
+	 * @throws Exception when step isn't measured and fails
+	 */
+	private static Void timed(Scenario scenario, String operation, Step step) throws Exception {
+		if(scenario == null) {
+			step.run();
+			return null;
+		}
+		long start = System.nanoTime();
+		try {
+			step.run();
+			scenario.operation(operation).record(System.nanoTime() - start);
+		} catch (IOException e) {
+			scenario.operation(operation).fail();
+			System.err.println(operation + " failed: " + e);
+		}
+		return null;
+	}
+
+	private void invokeAll(List<Callable<Void>> steps) throws InterruptedException {
+		for(Future<Void> step : workers.invokeAll(steps)) {
+			try {
+				step.get();
+			} catch (ExecutionException e) {
+				e.getCause().printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Waits until spread of counters is at most TOLERANCE
+	 * @param from time of the last operation of the scenario
+	 * @return nanoseconds since the last operation, -1 when counters didn't converge before CONVERGENCE_TIMEOUT
+	 * @throws InterruptedException
+	 */
+	private long awaitConvergence(long from) throws InterruptedException {
+		long deadline = from + TimeUnit.MILLISECONDS.toNanos(CONVERGENCE_TIMEOUT);
+		while(true) {
+			long now = System.nanoTime();
+			if(getSpread() <= TOLERANCE)
+				return now - from;
+			if(now - deadline >= 0)
+				return -1;
+			Thread.sleep(SAMPLE_INTERVAL);
+		}
+	}
+
+	/**
+	 * Returns difference between the highest and the lowest counter of the network
+	 * @return spread in milliseconds
+	 */
+	private long getSpread() {
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		for(Agent agent : agents) {
+			long counter = agent.getTimerValue();
+			min = Math.min(min, counter);
+			max = Math.max(max, counter);
+		}
+		return min <= max ? max - min : 0;
+	}
+
+	/**
+	 * Sums metrics of all agents, also removed ones
+	 * @return connections opened, connections accepted, bytes sent, bytes received
+	 */
+	private long[] totals() {
+		long[] totals = new long[4];
+		for(Agent agent : allAgents) {
+			AgentMetrics metrics = agent.getMetrics();
+			totals[0] += metrics.getConnectionsOpened();
+			totals[1] += metrics.getConnectionsAccepted();
+			totals[2] += metrics.getBytesSent();
+			totals[3] += metrics.getBytesReceived();
+		}
+		return totals;
+	}
+
+	private void add(Agent agent) {
+		agents.add(agent);
+		allAgents.add(agent);
+		if(MONITOR)
+			MonitorHTTPServer.registerAgent(agent);
+	}
+
+	private void remove(Agent agent) {
+		agents.remove(agent);
+		if(MONITOR)
+			MonitorHTTPServer.unregisterAgent(agent);
+	}
+
+	private Agent randomAgent() {
+		return agents.get(ThreadLocalRandom.current().nextInt(agents.size()));
+	}
+
+	private static long randomCounter() {
+		return ThreadLocalRandom.current().nextLong(COUNTER_RANGE);
+	}
+
+	/**
+	 * Writes settings and results of the run to OUTPUT
+	 * @param results
+	 * @param size
+	 * @throws IOException
+	 */
+	private void write(List<Scenario> results, int size) throws IOException {
+		StringBuilder json = new StringBuilder("{\"time\":").append(JsonUtils.quote(Instant.now().toString()))
+				.append(",\"size\":").append(size)
+				.append(",\"syncMode\":").append(JsonUtils.quote(agents.isEmpty() ? null : agents.get(0).getSyncMode().name()))
+				.append(",\"java\":").append(JsonUtils.quote(System.getProperty("java.version")))
+				.append(",\"processors\":").append(Runtime.getRuntime().availableProcessors())
+				.append(",\"virtualThreads\":").append(AgentRuntime.getShared().isVirtualThreads())
+				.append(",\"settings\":{\"counterRange\":").append(COUNTER_RANGE).append(",\"stormSize\":").append(STORM_SIZE)
+				.append(",\"churnCycles\":").append(CHURN_CYCLES).append(",\"concurrentJoins\":").append(CONCURRENT_JOINS).append(",\"restarts\":").append(RESTARTS)
+				.append(",\"toleranceMs\":").append(TOLERANCE).append(",\"convergenceTimeoutMs\":").append(CONVERGENCE_TIMEOUT)
+				.append(",\"roundDeadlineMs\":").append(AgentConfig.getDefault().getRoundDeadline()).append("},\"scenarios\":[");
+		for(int i = 0; i < results.size(); i++)
+			json.append(i == 0 ? "\n" : ",\n").append(results.get(i).toJson());
+		json.append("\n]}\n");
+		try(Writer out = new OutputStreamWriter(Files.newOutputStream(Paths.get(OUTPUT)), StandardCharsets.UTF_8)) {
+			out.write(json.toString());
+		}
+		System.out.println("Results written to " + OUTPUT);
+	}
+
+	private static long percentile(long[] sorted, double fraction) {
+		return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, (int) Math.ceil(fraction * sorted.length) - 1)];
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+}
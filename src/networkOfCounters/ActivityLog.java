@@ -0,0 +1,219 @@
+package networkOfCounters;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Activity log of a single agent. Logging only puts a record (time, message, detail) into a bounded ring buffer,
+ * one background thread shared by all logs formats the records and writes them to files in batches.
+ * The buffer starts small and grows up to AgentConfig.getLogCapacity(), so quiet agents take little memory.
+ * When the buffer is full records are dropped and the number of dropped records is written to the log
+ * @author Grzegorz Golebiowski
+ *
+ */
+public class ActivityLog {
+
+	private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault()); // time format with ms
+	private static final List<ActivityLog> logs = new CopyOnWriteArrayList<>();
+	private static final int INITIAL_CAPACITY = 64;
+	private static volatile Thread writerThread;
+
+	private final String owner;
+	private final Writer fileWriter;
+	private final AgentConfig config;
+	private final int capacity;
+	private long[] times;
+	private String[] messages;
+	private Object[] details;
+	private int head; // index of the oldest record
+	private int size;
+	private long dropped;
+	private long droppedReported;
+	private volatile boolean closed;
+	// used only by the writer thread
+	private final StringBuilder line = new StringBuilder();
+	private int unflushed;
+	private long lastFlush = System.currentTimeMillis();
+
+	/**
+	 * Creates log writing to a given file in AgentConfig.getLogsDir()
+	 * @param owner name written before every message on standard output, e.g. IP:port of the agent
+	 * @param fileName
+	 * @param config
+	 * @throws IOException
+	 */
+	public ActivityLog(String owner, String fileName, AgentConfig config) throws IOException {
+		File dir = new File(config.getLogsDir());
+		if(!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Can't create logs directory: " + dir);
+		this.owner = owner;
+		this.config = config;
+		this.fileWriter = new BufferedWriter(new FileWriter(new File(dir, fileName)));
+		this.capacity = config.getLogCapacity();
+		int initial = Math.min(capacity, INITIAL_CAPACITY);
+		this.times = new long[initial];
+		this.messages = new String[initial];
+		this.details = new Object[initial];
+		logs.add(this);
+		startWriterThread();
+	}
+
+	/**
+	 * Puts record into the buffer, never blocks on I/O. Detail is converted to String by the writer thread
+	 * @param message
+	 * @param detail appended to the message, may be null
+	 */
+	public void log(String message, Object detail) {
+		long time = System.currentTimeMillis();
+		boolean halfFull;
+		synchronized(this) {
+			if(size == times.length) {
+				if(size == capacity) {
+					dropped++;
+					return;
+				}
+				grow();
+			}
+			int tail = (head + size) % times.length;
+			times[tail] = time;
+			messages[tail] = message;
+			details[tail] = detail;
+			size++;
+			halfFull = size == capacity / 2;
+		}
+		if(halfFull)
+			LockSupport.unpark(writerThread); // don't wait for the flush interval
+	}
+
+	/**
+	 * Doubles the buffer, at most to its capacity, and moves records to its beginning. Called with lock of this log held
+	 */
+	private void grow() {
+		int length = Math.min(capacity, 2 * times.length);
+		long[] grownTimes = new long[length];
+		String[] grownMessages = new String[length];
+		Object[] grownDetails = new Object[length];
+		for(int i = 0; i < size; i++) {
+			int index = (head + i) % times.length;
+			grownTimes[i] = times[index];
+			grownMessages[i] = messages[index];
+			grownDetails[i] = details[index];
+		}
+		times = grownTimes;
+		messages = grownMessages;
+		details = grownDetails;
+		head = 0;
+	}
+
+	/**
+	 * Returns number of records dropped because the buffer was full
+	 * @return dropped records
+	 */
+	public synchronized long getDroppedCount() {
+		return dropped;
+	}
+
+	/**
+	 * Closes the log, records already in the buffer are still written
+	 */
+	public void close() {
+		closed = true;
+		LockSupport.unpark(writerThread);
+	}
+
+	private static synchronized void startWriterThread() {
+		if(writerThread != null)
+			return;
+		writerThread = new Thread(ActivityLog::writeLogs, "activity-log-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Loop of the writer thread
+	 */
+	private static void writeLogs() {
+		while(true) {
+			long flushInterval = AgentConfig.getDefault().getLogFlushInterval();
+			for(ActivityLog log : logs) {
+				try {
+					log.drain();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(flushInterval));
+		}
+	}
+
+	/**
+	 * Writes all buffered records and flushes the file according to flush policy
+	 * @throws IOException
+	 */
+	private void drain() throws IOException {
+		boolean closing = closed; // read before draining, so no record put before close() is lost
+		long time;
+		String message;
+		Object detail;
+		long droppedNow;
+		while(true) {
+			synchronized(this) {
+				droppedNow = dropped;
+				if(size == 0)
+					break;
+				time = times[head];
+				message = messages[head];
+				detail = details[head];
+				messages[head] = null;
+				details[head] = null;
+				head = (head + 1) % times.length;
+				size--;
+			}
+			write(time, message, detail);
+		}
+		if(droppedNow > droppedReported) {
+			write(System.currentTimeMillis(), "Log buffer full, records dropped: ", droppedNow - droppedReported);
+			droppedReported = droppedNow;
+		}
+		if(unflushed >= config.getLogFlushBatch() || (unflushed > 0 && System.currentTimeMillis() - lastFlush >= config.getLogFlushInterval()) || closing) {
+			fileWriter.flush();
+			unflushed = 0;
+			lastFlush = System.currentTimeMillis();
+		}
+		if(closing) {
+			fileWriter.close();
+			logs.remove(this);
+		}
+	}
+
+	private void write(long time, String message, Object detail) throws IOException {
+		int tabs = 0;
+		while(tabs < message.length() && message.charAt(tabs) == '\t')
+			tabs++;
+		line.setLength(0);
+		line.append(message, 0, tabs).append(owner).append(" -> ").append(message, tabs, message.length());
+		if(detail != null)
+			line.append(detail);
+		if(Agent.displayingLogMessages)
+			System.out.println(line);
+		fileWriter.write(TIME_FORMAT.format(Instant.ofEpochMilli(time)));
+		fileWriter.write(": ");
+		fileWriter.append(line);
+		fileWriter.write('\n');
+		if(++unflushed >= config.getLogFlushBatch()) {
+			fileWriter.flush();
+			unflushed = 0;
+			lastFlush = System.currentTimeMillis();
+		}
+	}
+}
@@ -1,48 +1,89 @@
 package networkOfCounters;
 
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.io.InterruptedIOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Single node in the network
+ * Single node in the network. Agent has no threads of its own, it accepts connections, serves them and runs periodic tasks
+ * on threads of AgentRuntime shared by all agents of the JVM
  * @author Grzegorz Golebiowski
  *
  */
 public class Agent {
 	
 	static boolean displayingLogMessages = true;
-	private static final String logsDir = System.getProperty("user.home") + "\\logs\\";
+	private static final long BIND_RETRY_INTERVAL = 10; // milliseconds
 	private final String IPAddress = "127.0.0.1"; // runs on localhost
+	private final int binaryIPAddress = MessageUtils.ipToInt(IPAddress);
 	private final int port;
-	private final ServerSocket serverSocket;
-	private boolean keepProcessing;
-	private volatile long counterValue; // milliseconds
-	private volatile List<String> agentsAddressesAndPorts;
-	private Thread agentServer;
-	private Thread counter;
-	private FileWriter fileWriter;
+	private final ServerSocketChannel serverChannel;
+	private final AgentConfig config = AgentConfig.getDefault();
+	private final AgentRuntime runtime = AgentRuntime.getShared();
+	private final AgentMetrics metrics = new AgentMetrics();
+	private final FailureDetector failureDetector = new FailureDetector(config);
+	private final CounterCache counterCache = new CounterCache(config);
+	private final CounterTable namedCounters = new CounterTable();
+	private final PeerConnectionPool connectionPool = new PeerConnectionPool(config, metrics, failureDetector, counterCache); // answers are heartbeats and carry counters
+	private final FanOut fanOut = new FanOut(runtime.getExecutor());
+	private final int maxConnections = config.getMaxConnections();
+	private final AtomicInteger activeConnections = new AtomicInteger();
+	private final AtomicInteger inFlightRequests = new AtomicInteger();
+	private final Set<FrameChannel> servedChannels = ConcurrentHashMap.newKeySet(); // checked for stalled writes
+	private final List<AgentRuntime.Cancellable> periodicTasks = new ArrayList<>();
+	private final SingleFlight syncRound = new SingleFlight(this::synchronizeThisAgent, config); // SYN flags received at once share one round
+	private final PushSum pushSum = new PushSum();
+	private final TreeAggregation tree = new TreeAggregation();
+	private final PNCounter pnCounter = new PNCounter(); // counter of CRDT mode is wall clock time + its value
+	private volatile SyncMode syncMode;
+	private volatile boolean keepProcessing;
+	private final long clockOrigin = System.nanoTime();
+	private final AtomicLong counterOffset = new AtomicLong(); // counter value = milliseconds since clockOrigin + offset
+	private final Membership membership = new Membership(config);
+	private final Map<String, Long> knownPeerVersions = new ConcurrentHashMap<>(); // peer -> last membership version received from it
+	private final ActivityLog activityLog;
+	private final StateSnapshot stateSnapshot; // null when AgentConfig.isSnapshots() is false
 	
 	/**
 	 * Constructor of first agent in the network
 	 * @throws IOException 
 	 */
 	public Agent() throws IOException {
-		serverSocket = new ServerSocket(0); // finds first free port
-		port = serverSocket.getLocalPort();
-		agentsAddressesAndPorts = new ArrayList<>();
-		counterValue = 0;
-		fileWriter = new FileWriter(new File(logsDir + "Agent_"+IPAddress+"("+port+")_first.txt"));
+		serverChannel = ServerSocketChannel.open().bind(null, config.getAcceptBacklog()); // finds first free port
+		port = serverChannel.socket().getLocalPort();
+		stateSnapshot = createSnapshot();
+		saveMembershipChanges();
+		setCounterValue(0);
+		applySyncMode(config.getSyncMode());
+		if(syncMode == SyncMode.CRDT)
+			pnCounter.add(toString(), -getTimerValue()); // PN-counter starts from 0 as well
+		activityLog = new ActivityLog(toString(), "Agent_"+IPAddress+"("+port+")_first.txt", config);
 		keepProcessing = true;
-		appendToLogActivity(info() + "Created as first agent");
-		initTimerThread();
-		initAgentServerThread();
-		start(); // runs threads
+		appendToLogActivity("Created as first agent");
+		start(); // starts accepting connections and periodic tasks
 	}
 	
 	/**
@@ -51,241 +92,1102 @@ public class Agent {
 	 * @param introAgentPort introducing agent's port
 	 * @throws UnknownHostException
 	 * @throws IOException
-	 * @throws ClassNotFoundException 
 	 * @throws InterruptedException 
 	 */
-	public Agent(long initCounterVal, int introAgentPort) throws IOException, ClassNotFoundException, InterruptedException {
-		serverSocket = new ServerSocket(0); // finds first free port
-		port = serverSocket.getLocalPort();
-		counterValue = initCounterVal;
-		agentsAddressesAndPorts = new ArrayList<>();
-		fileWriter = new FileWriter(logsDir + "Agent_"+IPAddress+"("+port+").txt");
+	public Agent(long initCounterVal, int introAgentPort) throws IOException, InterruptedException {
+		serverChannel = ServerSocketChannel.open().bind(null, config.getAcceptBacklog()); // finds first free port
+		port = serverChannel.socket().getLocalPort();
+		stateSnapshot = createSnapshot();
+		saveMembershipChanges();
+		setCounterValue(initCounterVal);
+		applySyncMode(config.getSyncMode()); // replaced with introducing agent's mode
+		activityLog = new ActivityLog(toString(), "Agent_"+IPAddress+"("+port+").txt", config);
 		keepProcessing = true;
-		initTimerThread();
-		initAgentServerThread();
-		start(); // runs threads
-		appendToLogActivity(info() + "Created with introducing agent on port: " + introAgentPort);
+		start(); // starts accepting connections and periodic tasks
+		appendToLogActivity("Created with introducing agent on port: ", introAgentPort);
 		addAgentToNetwork(introAgentPort);
 	}
 
-	private void addAgentToNetwork(int introAgentPort) throws IOException, ClassNotFoundException, InterruptedException {
-		agentsAddressesAndPorts = getAgentListFromIntroAgent(introAgentPort); // NET - sets agents list - SHORTEN
-		agentsAddressesAndPorts.add(IPAddress+":"+introAgentPort); // adds introducing agent to list
-		sendIPAndPortToOtherAgents(); // UPD - sends to each agent IP address and port
-		counterValue = getAverageOfCounterValue(); //CLK - sets counterValue to average of all agents' counters in the network
+	/**
+	 * Constructor of agent restarted from the snapshot of its state. Agent takes back its port, counter, sync mode and agents list,
+	 * then exchanges changes of the list made while it was stopped with the first agent which answers.
+	 * Counter kept growing with wall clock, so there are no CLK and SYN rounds
+	 * @param snapshotFile file of StateSnapshot, see getSnapshotFile()
+	 * @throws IOException when snapshot can't be read or its port is taken
+	 * @throws InterruptedException
+	 */
+	public Agent(File snapshotFile) throws IOException, InterruptedException {
+		stateSnapshot = StateSnapshot.load(snapshotFile);
+		try {
+			if(stateSnapshot.getIP() != binaryIPAddress)
+				throw new IOException("Snapshot of agent with another IP address: " + snapshotFile);
+			serverChannel = bindPort(stateSnapshot.getPort());
+		} catch (IOException e) {
+			stateSnapshot.close();
+			throw e;
+		}
+		port = serverChannel.socket().getLocalPort();
+		setCounterValue(stateSnapshot.getCounter());
+		applySyncMode(stateSnapshot.getSyncMode());
+		Map<String, Long> peers = stateSnapshot.getPeers();
+		membership.restore(stateSnapshot.getMembershipVersion(), peers.keySet());
+		knownPeerVersions.putAll(peers);
+		saveMembershipChanges();
+		activityLog = new ActivityLog(toString(), "Agent_"+IPAddress+"("+port+")_restarted.txt", config);
+		keepProcessing = true;
+		start(); // starts accepting connections and periodic tasks
+		appendToLogActivity("Restarted from snapshot: ", snapshotFile);
+		rejoinNetwork();
+	}
+
+	private void addAgentToNetwork(int introAgentPort) throws IOException, InterruptedException {
+		String introAgent = IPAddress+":"+introAgentPort;
+		applySyncMode(SyncMode.fromCode(getChangesFromAgent(introAgent))); // NET - sets agents list and network's sync mode
+		membership.addDirectly(introAgent); // adds introducing agent to list
+		sendIPAndPortToIntroAgent(introAgent); // UPD - other agents get this agent with membership changes of introducing agent
+		if(syncMode == SyncMode.CRDT) {
+			exchangeDeltas(Collections.singletonList(introAgent)); // DLT - gets all pairs of PN-counter, initial value isn't used
+			return;
+		}
+		if(syncMode == SyncMode.GOSSIP) {
+			startGossipEpoch(); // PSH - average spreads with push-sum rounds
+			return;
+		}
+		setCountersToAverage(); //CLK - sets counters to average of all agents' counters in the network
 		synchronizeCounters(); // SYN - sends to every agent SYN flag, which synchronizes counters
 	}
 
 	/**
-	 * Creates agent-server thread responsible for accepting connections and processing requests
+	 * Opens server channel on given port. Port of an agent stopped in this JVM is freed by the selector thread of AgentRuntime,
+	 * so binding is retried until AgentConfig.getConnectTimeout() passes
+	 * @param requestedPort
+	 * @return server channel
+	 * @throws IOException when port is taken
+	 * @throws InterruptedException
+	 */
+	private ServerSocketChannel bindPort(int requestedPort) throws IOException, InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getConnectTimeout());
+		while(true) {
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			try {
+				channel.setOption(StandardSocketOptions.SO_REUSEADDR, true); // connections of the stopped agent may be in TIME_WAIT
+				return channel.bind(new InetSocketAddress(requestedPort), config.getAcceptBacklog());
+			} catch (BindException e) {
+				channel.close();
+				if(System.nanoTime() - deadline >= 0)
+					throw e;
+				Thread.sleep(BIND_RETRY_INTERVAL);
+			}
+		}
+	}
+
+	/**
+	 * Gets changes of agents list from the first agent of the snapshot which answers and makes it add this agent again,
+	 * in case it was considered dead while this agent was stopped. Agents which don't answer are removed later by the failure detector
+	 * @throws IOException
+	 */
+	private void rejoinNetwork() throws IOException, InterruptedException {
+		for(String peer : membership.getMembers()) {
+			try {
+				applySyncMode(SyncMode.fromCode(getChangesFromAgent(peer))); // NET - changes made while this agent was stopped
+				sendIPAndPortToIntroAgent(peer); // UPD
+				if(syncMode == SyncMode.CRDT)
+					exchangeDeltas(Collections.singletonList(peer)); // DLT - PN-counter isn't kept in the snapshot
+				appendToLogActivity("Rejoined network through agent: ", peer);
+				return;
+			} catch (IOException e) {
+				appendToLogActivity("Agent didn't answer during rejoin: ", peer);
+			}
+		}
+		appendToLogActivity("None of agents from snapshot answered, agent is alone in the network");
+	}
+
+	/**
+	 * Handles connection accepted by the selector thread of AgentRuntime. Connections are served concurrently on the shared executor,
+	 * because peers keep their connections open between flags and a SYN answer waits for a whole CLK round.
+	 * Connections over AgentConfig.getMaxConnections() are closed right away
+	 * @param channel accepted connection
+	 * @throws IOException
+	 */
+	private void acceptConnection(SocketChannel channel) throws IOException {
+		metrics.connectionAccepted();
+		Socket socket = channel.socket();
+		if(!keepProcessing || activeConnections.incrementAndGet() > maxConnections) {
+			activeConnections.decrementAndGet();
+			metrics.connectionRefused();
+			appendToLogActivity("\tToo many connections, refused: ", socket.getRemoteSocketAddress());
+			socket.close();
+			return;
+		}
+		appendToLogActivity("\tConnection accepted from: ", socket.getRemoteSocketAddress());
+		socket.setTcpNoDelay(true);
+		socket.setSoTimeout(config.getServerIdleTimeout());
+		FrameChannel frames = new FrameChannel(socket, metrics);
+		frames.setFrameReadTimeout(config.getFrameReadTimeout());
+		servedChannels.add(frames);
+		try {
+			runtime.getExecutor().execute(() -> serveConnection(channel, frames));
+		} catch (RejectedExecutionException e) { // agent is stopping
+			closeConnection(frames);
+		}
+	}
+
+	/**
+	 * Serves connection on a thread of the shared executor. When AgentConfig.getMaxWaitingConnections() idle connections already wait
+	 * on their threads, connection which stays idle for AgentConfig.getConnectionLinger() is parked in the selector of AgentRuntime
+	 * and served again when next flag arrives, so idle connections of thousands of agents hold no threads
+	 * @param channel
+	 * @param frames channel of the connection, it keeps buffered data between parkings
+	 */
+	private void serveConnection(SocketChannel channel, FrameChannel frames) {
+		boolean parked = false;
+		try {
+			if(answerToClient(frames)) {
+				runtime.park(channel, config.getServerIdleTimeout(), () -> serveConnection(channel, frames), () -> closeConnection(frames));
+				parked = true;
+			}
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+		} catch (RuntimeException e) { // bug in a handler mustn't keep the connection and its slot
+			appendToLogActivity("\tUnexpected error while serving connection, closing it: ", e);
+			e.printStackTrace();
+		} finally {
+			if(!parked)
+				closeConnection(frames);
+		}
+	}
+
+	private void closeConnection(FrameChannel frames) {
+		servedChannels.remove(frames);
+		try {
+			frames.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			activeConnections.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Answers to every frame received on given channel until the peer closes connection, it stays idle for too long or it should be parked.
+	 * On virtual threads connections are never parked, waiting thread costs almost nothing
+	 * @param channel
+	 * @return true if connection is idle and should be parked, false if it should be closed
+	 * @throws IOException
+	 * @throws InterruptedException
 	 */
-	private void initAgentServerThread() {
-		agentServer = new Thread( () -> {
+	private boolean answerToClient(FrameChannel channel) throws IOException, InterruptedException {
+		int linger = runtime.isVirtualThreads() ? 0 : config.getConnectionLinger();
+		while(keepProcessing) {
+			Frame received;
 			try {
-				while(keepProcessing) {
-					appendToLogActivity("\t" + info() + "Waiting for a connection ...");
-					Socket socket = serverSocket.accept();
-					answerToClient(socket);
+				if(linger > 0) {
+					boolean waiting = runtime.reserveWaitingThread();
+					try {
+						if(!channel.awaitInput(waiting ? config.getServerIdleTimeout() : linger))
+							return !waiting; // parks connection after linger, closes it after idle timeout
+					} finally {
+						if(waiting)
+							runtime.releaseWaitingThread();
+					}
 				}
-			} catch (IOException | NumberFormatException | ClassNotFoundException | InterruptedException e) {
-				e.printStackTrace();
+				received = channel.receive();
+			} catch (EOFException | SocketTimeoutException e) {
+				break; // peer closed connection or stayed idle
+			} catch (ProtocolException e) {
+				appendToLogActivity("\tClosing connection, ", e.getMessage());
+				channel.send(channel.outbound().set(MessageUtils.ERR, binaryIPAddress, port));
+				break;
 			}
-		});
+			byte opcode = received.getOpcode();
+			if(!admitRequest(opcode)) {
+				metrics.requestRejected(opcode);
+				channel.send(channel.outbound().set(MessageUtils.BSY, binaryIPAddress, port).setValue(config.getBusyBackoff()));
+				continue;
+			}
+			long start = System.nanoTime();
+			try {
+				answerToFrame(channel, received);
+			} finally {
+				inFlightRequests.decrementAndGet();
+			}
+			metrics.recordServer(opcode, System.nanoTime() - start);
+		}
+		return false;
 	}
 
 	/**
-	 * Answers to received data on given socket
-	 * @param socket
+	 * Takes a slot of in-flight requests. Control flags, which change agents list or sync mode, and heartbeats may take all
+	 * AgentConfig.getMaxInFlightRequests() slots, CLK, SYN and other bulk requests leave AgentConfig.getReservedControlRequests() of them free
+	 * @param opcode
+	 * @return true if request may be answered, false if it should get BSY
+	 */
+	private boolean admitRequest(byte opcode) {
+		int limit = config.getMaxInFlightRequests();
+		if(!isControlFlag(opcode))
+			limit -= config.getReservedControlRequests();
+		while(true) {
+			int current = inFlightRequests.get();
+			if(current >= limit)
+				return false;
+			if(inFlightRequests.compareAndSet(current, current + 1))
+				return true;
+		}
+	}
+
+	private static boolean isControlFlag(byte opcode) {
+		switch(opcode) {
+			case MessageUtils.NET:
+			case MessageUtils.UPD:
+			case MessageUtils.DEL:
+			case MessageUtils.LVE:
+			case MessageUtils.MOD:
+			case MessageUtils.HBT: // rejected heartbeats would make the agent look dead
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Closes served connections whose answer has been written for longer than AgentConfig.getWriteTimeout(),
+	 * so a peer which doesn't read doesn't hold a thread of the agent
+	 */
+	private void closeStalledConnections() {
+		long timeout = config.getWriteTimeout();
+		if(timeout <= 0)
+			return;
+		for(FrameChannel channel : servedChannels) {
+			if(channel.isWriteStalled(TimeUnit.MILLISECONDS.toNanos(timeout))) {
+				metrics.writeTimedOut();
+				appendToLogActivity("\tAnswer not written in time, closing connection: ", channel.getSocket().getRemoteSocketAddress());
+				try {
+					channel.close(); // blocked write fails, serving thread closes the connection
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Answers to single received frame
+	 * @param channel
+	 * @param received
 	 * @throws IOException
 	 * @throws InterruptedException
-	 * @throws ClassNotFoundException
-	 */
-	private void answerToClient(Socket socket) throws IOException, InterruptedException, ClassNotFoundException {
-		String receivedData = MessageUtils.getMessage(socket);
-		String clientData = MessageUtils.getIPAndPortFromSegment(receivedData);
-		String flagReceived =  MessageUtils.getFlagFromSegment(receivedData);
-		appendToLogActivity("\t" + info() + "Connected to agent: " + clientData);
-		appendToLogActivity("\t" + info() + "Flag received: " + flagReceived);
+	 */
+	private void answerToFrame(FrameChannel channel, Frame received) throws IOException, InterruptedException {
+		String clientData = received.getSender();
+		byte flagReceived = received.getOpcode();
+		Frame answer = channel.outbound().set(MessageUtils.ACK, binaryIPAddress, port); // ACK carries counter at the moment of sending, so peers refresh their CounterCache
+		appendToLogActivity("\tConnected to agent: ", clientData);
+		appendToLogActivity("\tFlag received: ", MessageUtils.getFlagName(flagReceived));
+		boolean leaving = flagReceived == MessageUtils.DEL || flagReceived == MessageUtils.LVE;
+		if(!leaving && !membership.contains(clientData) && !clientData.equals(toString()) && membership.add(clientData))
+			appendToLogActivity("\tUpdated list with agent which contacted this agent: ", clientData);
+		if(!leaving)
+			failureDetector.heartbeat(clientData);
 		switch(flagReceived) {
-			case "NET": // sends ArrayList<String> of agents IPs and ports
-				MessageUtils.sendObject(socket, agentsAddressesAndPorts);
-				appendToLogActivity("\t"+info()+"agents list sent to: " + clientData);
+			case MessageUtils.NET: // sends changes of agents list made after version known by the sender
+				answer.set(MessageUtils.LST, binaryIPAddress, port).setMode(syncMode.getCode());
+				membership.writeChangesSince(received.getValue(), answer);
+				channel.send(answer);
+				appendToLogActivity("\tagents list changes sent to: ", clientData);
+				break;
+			case MessageUtils.HBT: // proves that the sender is alive and carries its counter
+				counterCache.put(clientData, received.getValue());
+				channel.send(answer.setValue(getTimerValue()));
+				break;
+			case MessageUtils.CLK: // sends counter value
+				answer.set(MessageUtils.VAL, binaryIPAddress, port).setValue(getTimerValue());
+				namedCounters.writeTo(answer, getElapsedMillis());
+				channel.send(answer);
+				appendToLogActivity("\tTimer's value sent to: ", clientData);
+				break;
+			case MessageUtils.SYN: // sets counter value to average of all agents' counters
+				if(syncMode == SyncMode.CRDT) {
+					channel.send(answer.setValue(getTimerValue())); // PN-counter converges with anti-entropy rounds
+					break;
+				}
+				if(syncMode == SyncMode.GOSSIP) {
+					startGossipEpoch();
+					channel.send(answer.setValue(getTimerValue()));
+					appendToLogActivity("\tGossip epoch started");
+					break;
+				}
+				boolean started = syncRound.run();
+				channel.send(answer.setValue(getTimerValue()));
+				appendToLogActivity(started ? "\tTimer synchronized" : "\tTimer synchronized by round of another SYN");
+				break;
+			case MessageUtils.PSH: // adds push-sum share
+				boolean absorbed = pushSum.receive(received.getValue(), getGossipRounds(),
+						new PushSum.Share(received.getMass(), received.getWeight()), getTimerValue());
+				channel.send(answer.setValue(getTimerValue()));
+				if(!absorbed)
+					appendToLogActivity("\tShare of finished epoch ignored: ", received.getValue());
 				break;
-			case "CLK": // sends counter value
-				MessageUtils.sendObject(socket, counterValue);
-				appendToLogActivity("\t"+info()+"Timer's value sent to: " + clientData);
+			case MessageUtils.AGG: // sends back sum and count of counters of the subtree rooted at this agent
+				long epoch = received.getValue();
+				List<String> subtree = new ArrayList<>(received.getAddressCount());
+				for(int i = 0; i < received.getAddressCount(); i++)
+					subtree.add(MessageUtils.addressToString(received.getAddress(i)));
+				TreeAggregation.Sum sum = aggregateSubtree(epoch, subtree);
+				channel.send(answer.set(MessageUtils.SUM, binaryIPAddress, port).setValue(epoch).setAggregate(sum.sum, sum.count));
+				appendToLogActivity("\tSum of subtree sent to: ", clientData);
 				break;
-			case "SYN": // sets counter value to average of all agents' counters
-				counterValue = getAverageOfCounterValue();
-				MessageUtils.sendMessage(socket, "ACK\n");
-				appendToLogActivity("\t"+info()+"Timer synchronized");
+			case MessageUtils.AVG: // applies average of the tree and passes it to children
+				settleSubtree(received.getValue(), received.getAggregate());
+				channel.send(answer.setValue(getTimerValue()));
 				break;
-			case "UPD": // update list with new agent
-				agentsAddressesAndPorts.add(clientData);
-				MessageUtils.sendMessage(socket, "ACK\n");
-				appendToLogActivity("\t"+info()+"Updated list with: " + clientData);
+			case MessageUtils.DLT: // merges delta-state of PN-counter and sends back pairs changed after the sequence number merged by the sender
+				int changed = pnCounter.merge(clientData, received);
+				answer.set(MessageUtils.DLR, binaryIPAddress, port);
+				pnCounter.writeChangesSince(received.getSince(), answer);
+				channel.send(answer);
+				if(changed > 0)
+					appendToLogActivity("\tPN-counter pairs merged: ", changed);
 				break;
-			case "DEL": // deletes agent from list
-				agentsAddressesAndPorts.removeIf(e -> e.equals(clientData));
-				MessageUtils.sendMessage(socket, "ACK\n");
-				appendToLogActivity("\t"+info()+"Deleted agent: " + clientData);
+			case MessageUtils.MOD: // changes sync mode
+				applySyncMode(SyncMode.fromCode(received.getMode()));
+				channel.send(answer.setValue(getTimerValue()));
+				appendToLogActivity("\tSync mode changed to: ", syncMode);
+				break;
+			case MessageUtils.UPD: // update list with new agent
+				membership.addDirectly(clientData);
+				channel.send(answer.setValue(getTimerValue()));
+				appendToLogActivity("\tUpdated list with: ", clientData);
+				break;
+			case MessageUtils.DEL: // deletes agent from list
+				membership.remove(clientData);
+				forgetPeer(clientData);
+				channel.send(answer.setValue(getTimerValue()));
+				appendToLogActivity("\tDeleted agent: ", clientData);
+				break;
+			case MessageUtils.LVE: // deletes leaving agent from list and takes over its state, no CLK round
+				membership.remove(clientData);
+				forgetPeer(clientData);
+				applyLeave(received);
+				channel.send(answer.setValue(getTimerValue()));
+				appendToLogActivity("\tAgent left the network: ", clientData);
 				break;
 			default:
-				appendToLogActivity("\t" + info() + "Received incorrect flag from: " + clientData);
-				MessageUtils.sendMessage(socket, "INCORRECT FLAG");
+				appendToLogActivity("\tReceived incorrect flag from: ", clientData);
+				channel.send(answer.set(MessageUtils.ERR, binaryIPAddress, port));
 		}
-		appendToLogActivity("\t" + info() + "Connection finished with: " + clientData);
-		socket.close();
+		appendToLogActivity("\tFlag answered: ", clientData);
 	}
 
 	/** 
-	 * Sends NET flag to introducing agent
-	 * @param introPort
+	 * Sends NET flag with membership version known from given agent and applies changes it sends back
+	 * @param address IP address and port of the agent
+	 * @return sync mode of the agent
 	 * @throws UnknownHostException
 	 * @throws IOException
-	 * @throws ClassNotFoundException 
 	 */
-	@SuppressWarnings("unchecked")
-	private ArrayList<String> getAgentListFromIntroAgent(int introPort) throws IOException, ClassNotFoundException {
-		appendToLogActivity(info() + "Sending request for agents list (NET flag) to agent on port: " + introPort);
-		Socket socket = new Socket(IPAddress, introPort);
-		MessageUtils.sendMessage(socket, MessageUtils.getSegment("NET", IPAddress, port));
-		ArrayList<String> objectReceived = (ArrayList<String>) MessageUtils.getObject(socket);
-		appendToLogActivity(info() + "Received agents list from agent on port: " + introPort);
-		socket.close();
-		return objectReceived;
+	private byte getChangesFromAgent(String address) throws IOException {
+		long knownVersion = knownPeerVersions.getOrDefault(address, 0L);
+		appendToLogActivity("Sending request for agents list changes (NET flag) to agent: ", address);
+		return connectionPool.execute(address, channel -> {
+			Frame list = channel.call(channel.outbound().set(MessageUtils.NET, binaryIPAddress, port).setValue(knownVersion));
+			String self = toString();
+			for(int i = 0; i < list.getAddressCount(); i++) {
+				String changed = MessageUtils.addressToString(list.getAddress(i));
+				if(changed.equals(self))
+					continue;
+				if(list.getOperation(i) == Membership.ADDED)
+					membership.add(changed);
+				else
+					membership.remove(changed);
+			}
+			knownPeerVersions.put(address, list.getValue());
+			if(stateSnapshot != null)
+				stateSnapshot.setKnownVersion(address, list.getValue());
+			appendToLogActivity(list.isSnapshot() ? "Received agents list from: " : "Received agents list changes from: ", address);
+			return list.getMode();
+		});
 	}
 
 	/**
-	 * Sends to each agent in the list segment with UPD flag in order to update contact lists with sender's IP Address and port
+	 * Sends UPD flag to introducing agent in order to update its contact list with sender's IP Address and port.
+	 * Other agents get the change when they exchange membership changes with it
+	 * @param introAgent
 	 * @throws UnknownHostException
 	 * @throws IOException
-	 * @throws InterruptedException 
 	 */
-	private void sendIPAndPortToOtherAgents() throws IOException, InterruptedException {
-		for(String s : agentsAddressesAndPorts) {
-			String temp[] = s.split(":");
-			String receiverIP = temp[0];
-			int receiverPort = Integer.parseInt(temp[1]);
-			appendToLogActivity(info() + "Sending data (UPD flag) to agent: " + s);
-			Socket socket = new Socket(receiverIP, receiverPort);
-			MessageUtils.sendMessage(socket,  MessageUtils.getSegment("UPD", IPAddress, port));
-			MessageUtils.getMessage(socket); // gets response
-			socket.close();
+	private void sendIPAndPortToIntroAgent(String introAgent) throws IOException {
+		appendToLogActivity("Sending data (UPD flag) to agent: ", introAgent);
+		connectionPool.execute(introAgent, channel -> channel.call(channel.outbound().set(MessageUtils.UPD, binaryIPAddress, port)));
+	}
+
+	/**
+	 * Exchanges membership changes with random agent, so changes reach every agent without broadcasts
+	 */
+	private void exchangeMembershipChanges() {
+		List<String> agents = getLivePeers();
+		if(agents.isEmpty())
+			return;
+		String agent = agents.get(ThreadLocalRandom.current().nextInt(agents.size()));
+		try {
+			getChangesFromAgent(agent);
+		} catch (IOException | RuntimeException e) {
+			appendToLogActivity("Exchange of agents list changes failed with: ", agent);
 		}
 	}
 
 	/**
-	 * Calculates and returns average of all agent's counters in the network
+	 * Sets counter and named counters to averages of all agents' counters in a single CLK round
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void setCountersToAverage() throws IOException, InterruptedException {
+		CounterTable.Round named = namedCounters.startRound(getElapsedMillis());
+		setCounterValue(getAverageOfCounterValue(named));
+		namedCounters.finishRound(named, getElapsedMillis());
+	}
+
+	/**
+	 * Calculates and returns average of all agent's counters in the network. Counters received from agents in the last
+	 * AgentConfig.getCounterCacheTtl() are taken from CounterCache, only the rest of agents is asked with CLK.
+	 * Agents which didn't answer before AgentConfig.getRoundDeadline() are left out
 	 * @return average of all agent's counters
 	 * @throws UnknownHostException
 	 * @throws IOException
-	 * @throws NumberFormatException
-	 * @throws ClassNotFoundException
 	 * @throws InterruptedException
 	 */
-	public long getAverageOfCounterValue() throws IOException, NumberFormatException, ClassNotFoundException, InterruptedException {
-		long sum = counterValue;
-		for(String s : agentsAddressesAndPorts) {
-			String ipAndPort[] = s.split(":");
-			String receiverIP = ipAndPort[0];
-			int receiverPort = Integer.parseInt(ipAndPort[1]);
-			appendToLogActivity(info()+"Receiving timer value for calculating average (CLK flag) from: " + s);
-			Socket socket = new Socket(receiverIP, receiverPort);
-			MessageUtils.sendMessage(socket, MessageUtils.getSegment("CLK", IPAddress, port));
-			sum += Long.parseLong(MessageUtils.getObject(socket).toString());
-			socket.close();
+	public long getAverageOfCounterValue() throws IOException, InterruptedException {
+		return getAverageOfCounterValue(null);
+	}
+
+	/**
+	 * Calculates average of all agent's counters, adding named counters of agents which answered CLK to the given round.
+	 * Cache holds only agents' own counters, so it isn't used when this agent has named counters
+	 * @param named round of named counters, null if they aren't averaged
+	 * @return average of all agent's counters
+	 * @throws InterruptedException
+	 */
+	private long getAverageOfCounterValue(CounterTable.Round named) throws InterruptedException {
+		List<String> agents = getLivePeers();
+		List<String> stale = new ArrayList<>();
+		boolean useCache = named == null || namedCounters.isEmpty();
+		long sum = getTimerValue();
+		int count = 1;
+		for(String agent : agents) {
+			Long cached = useCache ? counterCache.get(agent) : null;
+			if(cached == null) {
+				stale.add(agent);
+			} else {
+				sum += cached;
+				count++;
+			}
 		}
-		appendToLogActivity(info() + "Average set to: " + sum/(agentsAddressesAndPorts.size()+1));
-		return sum/(agentsAddressesAndPorts.size()+1);
+		if(count > 1)
+			appendToLogActivity("Cached timer values used for agents: ", count - 1);
+		if(!stale.isEmpty()) {
+			FanOutResult<Long> round = queryCounters(stale, named);
+			for(long value : round.getAnswers().values())
+				sum += value;
+			count += round.getAnswers().size();
+			if(!round.isComplete())
+				appendToLogActivity("Average calculated without some agents, ", round);
+		}
+		long average = sum/count;
+		appendToLogActivity("Average set to: ", average);
+		return average;
+	}
+
+	/**
+	 * Sends CLK flag to all agents at once and collects counters which came back before the deadline
+	 * @return counters of agents which answered in time
+	 * @throws InterruptedException
+	 */
+	public FanOutResult<Long> queryCounters() throws InterruptedException {
+		return queryCounters(getLivePeers(), null);
+	}
+
+	private FanOutResult<Long> queryCounters(List<String> agents, CounterTable.Round named) throws InterruptedException {
+		appendToLogActivity("Receiving timer values for calculating average (CLK flag) from: ", agents);
+		int deadline = config.getRoundDeadline();
+		return broadcastRound(MessageUtils.CLK, agents, peer -> connectionPool.execute(peer, deadline, channel -> {
+			Frame counters = channel.call(channel.outbound().set(MessageUtils.CLK, binaryIPAddress, port));
+			if(named != null)
+				named.add(counters); // before the answer, so the round has it when it ends
+			return counters.getValue();
+		}), deadline);
 	}
 	
 	/**
-	 * Sends to every agent in the list SYN flag in order to synchronize each agent's counter
+	 * Round of SYN flags received by this agent: sets counter to the average of all agents' counters or, in TREE mode,
+	 * synchronizes the whole tree rooted at this agent
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void synchronizeThisAgent() throws IOException, InterruptedException {
+		if(syncMode == SyncMode.TREE)
+			synchronizeTree();
+		else
+			setCountersToAverage();
+	}
+
+	/**
+	 * Sends to every agent in the list SYN flag in order to synchronize each agent's counter, in GOSSIP and TREE modes starts
+	 * synchronization from this agent instead, in CRDT mode exchanges delta-states with all live agents. Package-private for benchmarks
 	 * @throws UnknownHostException
 	 * @throws IOException
 	 * @throws InterruptedException
 	 */
-	private void synchronizeCounters() throws IOException, InterruptedException {
-		for(String s : agentsAddressesAndPorts) {
-			String ipAndPort[] = s.split(":");
-			String receiverIP = ipAndPort[0];
-			int receiverPort = Integer.parseInt(ipAndPort[1]);
-			appendToLogActivity(info()+ "Synchronizing timers (SYN flag) for: " + s);
-			Socket socket = new Socket(receiverIP, receiverPort);
-			MessageUtils.sendMessage(socket,  MessageUtils.getSegment("SYN", IPAddress, port));
-			MessageUtils.getMessage(socket); // gets response
-			socket.close();
+	void synchronizeCounters() throws IOException, InterruptedException {
+		if(syncMode == SyncMode.GOSSIP) {
+			startGossipEpoch(); // no SYN storm, epoch spreads with push-sum shares
+			return;
 		}
+		if(syncMode == SyncMode.TREE) {
+			synchronizeTree(); // no SYN storm, every agent talks only to its children
+			return;
+		}
+		if(syncMode == SyncMode.CRDT) {
+			exchangeDeltas(getLivePeers()); // no averaging, pairs of PN-counter are merged
+			return;
+		}
+		List<String> agents = getLivePeers();
+		appendToLogActivity("Synchronizing timers (SYN flag) for: ", agents);
+		broadcastFlag(MessageUtils.SYN, agents, 2 * config.getRoundDeadline()); // receiver answers after its own CLK round
 	}
 
 	/**
-	 * Removes agent from the network
+	 * Removes agent from the network. LVE is sent to all agents at once, every agent removes this agent and updates its counter locally,
+	 * so leaving takes a single round. LVE hands over state which would be lost with this agent: its pair of PN-counter in CRDT mode,
+	 * equal parts of its push-sum state in GOSSIP mode. In AVERAGE and TREE mode counter of this agent isn't averaged in, as in SYN round after DEL,
+	 * so LVE changes only the agents list
 	 * @throws UnknownHostException
 	 * @throws IOException
 	 * @throws InterruptedException
 	 */
 	public void removeAgentFromNetwork() throws IOException, InterruptedException {
-		for(String s : agentsAddressesAndPorts) {
-			String ipAndPort[] = s.split(":");
-			String receiverIP = ipAndPort[0];
-			int receiverPort = Integer.parseInt(ipAndPort[1]);
-			appendToLogActivity(info()+ "Deletion request (DEL) sent to agent: " + s);
-			Socket socket = new Socket(receiverIP, receiverPort);
-			MessageUtils.sendMessage(socket,  MessageUtils.getSegment("DEL", IPAddress, port));
-			MessageUtils.getMessage(socket); // gets response
-			socket.close();
-		}
-		synchronizeCounters();
+		List<String> agents = membership.getMembers(); // suspected agents as well, they may be only slow
+		appendToLogActivity("Leave request (LVE) sent to agents: ", agents);
+		int deadline = config.getRoundDeadline();
+		SyncMode mode = syncMode;
+		long epoch = pushSum.getEpoch();
+		PushSum.Share share = mode == SyncMode.GOSSIP && epoch >= 0 && !agents.isEmpty()
+				? pushSum.split(agents.size(), getTimerValue()) : null; // every agent gets an equal part, together they get all of it
+		FanOutResult<Frame> round = broadcastRound(MessageUtils.LVE, agents, peer -> connectionPool.execute(peer, deadline, channel -> {
+			Frame leave = channel.outbound().set(MessageUtils.LVE, binaryIPAddress, port);
+			if(share != null)
+				leave.setValue(epoch).setShare(share.mass, share.weight);
+			if(mode == SyncMode.CRDT)
+				pnCounter.writePair(toString(), leave); // increments made here count after this agent is gone
+			return channel.call(leave);
+		}), deadline);
+		if(!round.isComplete())
+			appendToLogActivity("Leave not acknowledged by all agents, ", round);
+		if(stateSnapshot != null)
+			deleteSnapshot(); // agent left, it joins again through an introducing agent
 		stopThisAgent();
 	}
 
 	/**
-	 * Appends to activity log (Agent_IP(port).txt in current directory) and writes to standard output if displayingLogMessages is true
-	 * @param logMsg
+	 * Removes snapshot of an agent which left the network, failure doesn't stop the agent from leaving
 	 */
-	private void appendToLogActivity(String logMsg) {
+	private void deleteSnapshot() {
 		try {
-			if(displayingLogMessages) {
-				System.out.println(logMsg);
+			if(!stateSnapshot.delete())
+				appendToLogActivity("Snapshot file not deleted, it was marked as invalid: ", stateSnapshot.getFile());
+		} catch (IOException e) {
+			appendToLogActivity("Snapshot file not deleted: ", e);
+		}
+	}
+
+	/**
+	 * Changes sync mode of this agent and sends MOD flag to all agents, so the whole network uses the same mode.
+	 * When CRDT mode starts, this agent moves PN-counter to its own counter and spreads the change with delta-states
+	 * @param mode
+	 * @throws InterruptedException
+	 */
+	public void changeSyncMode(SyncMode mode) throws InterruptedException {
+		boolean crdtStarted = mode == SyncMode.CRDT && syncMode != SyncMode.CRDT;
+		long counter = getTimerValue();
+		applySyncMode(mode);
+		if(crdtStarted)
+			pnCounter.add(toString(), counter - getTimerValue());
+		appendToLogActivity("Changing sync mode (MOD flag) of agents to: ", mode);
+		int deadline = config.getRoundDeadline();
+		FanOutResult<Frame> round = broadcastRound(MessageUtils.MOD, membership.getMembers(), peer -> connectionPool.execute(peer, deadline,
+				channel -> channel.call(channel.outbound().set(MessageUtils.MOD, binaryIPAddress, port).setMode(mode.getCode()))), deadline);
+		if(!round.isComplete())
+			appendToLogActivity("MOD not acknowledged by all agents, ", round);
+		if(crdtStarted)
+			exchangeDeltas(getLivePeers());
+	}
+
+	/**
+	 * Starts new push-sum epoch with this agent's counter as initial mass. Other agents join the epoch when they receive its first share
+	 */
+	private void startGossipEpoch() {
+		long epoch = Math.max(pushSum.getEpoch() + 1, (System.currentTimeMillis() << 16) | port); // newer epochs win
+		pushSum.startEpoch(epoch, getGossipRounds());
+		appendToLogActivity("Gossip epoch started: ", epoch);
+	}
+
+	/**
+	 * Returns number of push-sum rounds, which grows logarithmically with the size of the network
+	 * @return number of rounds
+	 */
+	private int getGossipRounds() {
+		int agents = membership.size() + 1;
+		int log2 = 32 - Integer.numberOfLeadingZeros(agents - 1); // ceil(log2(agents))
+		return config.getGossipRoundsFactor() * Math.max(1, log2);
+	}
+
+	/**
+	 * Synchronizes counters of all live agents with this agent as the root of the aggregation tree, returns when the average reached the whole tree
+	 * @throws InterruptedException
+	 */
+	private void synchronizeTree() throws InterruptedException {
+		long epoch = Math.max(tree.getEpoch() + 1, (System.currentTimeMillis() << 16) | port); // newer epochs win
+		appendToLogActivity("Aggregation tree epoch started: ", epoch);
+		TreeAggregation.Sum total = aggregateSubtree(epoch, getLivePeers());
+		if(total.count == 0)
+			return; // newer epoch already started by another agent
+		long average = total.sum / total.count;
+		appendToLogActivity("Average set to: ", average);
+		settleSubtree(epoch, average);
+	}
+
+	/**
+	 * Sums counters of the subtree rooted at this agent: splits the rest of the subtree into AgentConfig.getTreeFanout() parts
+	 * and sends AGG flag with each part to its first agent. Parts whose root didn't answer before the deadline are left out
+	 * @param epoch
+	 * @param subtree agents below this agent
+	 * @return sum and count of counters, empty when this agent already takes part in a newer epoch
+	 * @throws InterruptedException
+	 */
+	private TreeAggregation.Sum aggregateSubtree(long epoch, List<String> subtree) throws InterruptedException {
+		long reported;
+		boolean joined;
+		synchronized(tree) { // average of the previous epoch can't be applied between reading and reporting the counter
+			reported = getTimerValue();
+			joined = tree.join(epoch, reported);
+		}
+		if(!joined) {
+			appendToLogActivity("Aggregation of older epoch ignored: ", epoch);
+			return TreeAggregation.Sum.EMPTY;
+		}
+		if(subtree.isEmpty())
+			return new TreeAggregation.Sum(reported, 1); // leaf
+		int fanout = Math.max(1, config.getTreeFanout());
+		Map<String, List<String>> parts = new HashMap<>(); // child -> agents below it
+		int partSize = 0;
+		for(List<String> part : TreeAggregation.split(subtree, fanout)) {
+			parts.put(part.get(0), part.subList(1, part.size()));
+			partSize = Math.max(partSize, part.size());
+		}
+		int height = TreeAggregation.getHeight(partSize, fanout);
+		int deadline = height * config.getRoundDeadline(); // every level below waits for its own children
+		FanOutResult<TreeAggregation.Sum> round = broadcastRound(MessageUtils.AGG, new ArrayList<>(parts.keySet()), peer -> connectionPool.execute(peer, deadline, channel -> {
+			Frame request = channel.outbound().set(MessageUtils.AGG, binaryIPAddress, port).setValue(epoch);
+			for(String agent : parts.get(peer))
+				request.addAddress(MessageUtils.packAddress(agent));
+			Frame response = channel.call(request);
+			return new TreeAggregation.Sum(response.getAggregate(), response.getCount());
+		}), deadline);
+		long sum = reported;
+		int count = 1;
+		for(TreeAggregation.Sum answer : round.getAnswers().values()) {
+			sum += answer.sum;
+			count += answer.count;
+		}
+		tree.setChildren(epoch, new ArrayList<>(round.getAnswers().keySet()), height);
+		if(!round.isComplete())
+			appendToLogActivity("Subtree aggregated without some agents, ", round);
+		return new TreeAggregation.Sum(sum, count);
+	}
+
+	/**
+	 * Moves counter by the distance between the average and the counter reported up the tree, so time spent
+	 * on the way down doesn't skew the result, then sends AVG flag to children which took part in the epoch
+	 * @param epoch
+	 * @param average
+	 * @throws InterruptedException
+	 */
+	private void settleSubtree(long epoch, long average) throws InterruptedException {
+		TreeAggregation.Subtree subtree;
+		synchronized(tree) {
+			subtree = tree.settle(epoch);
+			if(subtree != null) {
+				counterOffset.addAndGet(average - subtree.reported);
+				saveCounter();
 			}
-			fileWriter.write(MessageUtils.SDF.format(System.currentTimeMillis()) +": " + logMsg + "\n");
-			fileWriter.flush();
+		}
+		if(subtree == null) {
+			appendToLogActivity("Average of older epoch ignored: ", epoch);
+			return;
+		}
+		appendToLogActivity("Timer synchronized by tree, epoch: ", epoch);
+		if(subtree.children.isEmpty())
+			return;
+		int deadline = subtree.height * config.getRoundDeadline();
+		FanOutResult<Frame> round = broadcastRound(MessageUtils.AVG, subtree.children, peer -> connectionPool.execute(peer, deadline,
+				channel -> channel.call(channel.outbound().set(MessageUtils.AVG, binaryIPAddress, port).setValue(epoch).setAggregate(average, 0))), deadline);
+		if(!round.isComplete())
+			appendToLogActivity("AVG not acknowledged by all agents, ", round);
+	}
+
+	/**
+	 * Sends push-sum share to a peer, recording whether it may have reached the peer
+	 * @param channel
+	 * @param delivery
+	 * @param epoch
+	 * @param share
+	 * @return answer of the peer
+	 * @throws IOException
+	 */
+	private Frame pushShare(FrameChannel channel, PushSum.Delivery delivery, long epoch, PushSum.Share share) throws IOException {
+		if(!delivery.startWrite())
+			throw new InterruptedIOException("Gossip round is over, share was given back");
+		long written = channel.getFramesWritten();
+		long started = channel.getFramesStarted();
+		boolean delivered = false;
+		try {
+			Frame answer = channel.call(channel.outbound().set(MessageUtils.PSH, binaryIPAddress, port).setValue(epoch).setShare(share.mass, share.weight));
+			delivered = true;
+			return answer;
+		} catch (AgentBusyException | ProtocolException e) {
+			throw e; // peer has rejected the share
 		} catch (IOException e) {
-			e.printStackTrace();
+			delivered = !PeerConnectionPool.isClosedByPeer(channel, written, started, e); // written PSH without answer may have been absorbed
+			throw e;
+		} finally {
+			delivery.finishWrite(delivered);
 		}
 	}
 
 	/**
-	 * Initializes thread that increases counter every millisecond while keepProcessing is true
+	 * Single push-sum round: splits state between this agent and random peers. After the last round of the epoch counter is set to the estimate
 	 */
-	private void initTimerThread() {
-		counter = new Thread(() -> {
-			try {
-				while(keepProcessing) {
-					counterValue++;
-					Thread.sleep(1);
+	private void gossipRound() {
+		try {
+			if(syncMode != SyncMode.GOSSIP || pushSum.getRoundsLeft() <= 0)
+				return;
+			List<String> peers = new ArrayList<>(getLivePeers());
+			Collections.shuffle(peers, ThreadLocalRandom.current());
+			peers = peers.subList(0, Math.min(config.getGossipFanout(), peers.size()));
+			long epoch = pushSum.getEpoch();
+			PushSum.Share share = pushSum.split(peers.size() + 1, getTimerValue());
+			int deadline = config.getRoundDeadline();
+			Map<String, PushSum.Delivery> deliveries = new HashMap<>();
+			for(String peer : peers)
+				deliveries.put(peer, new PushSum.Delivery());
+			broadcastRound(MessageUtils.PSH, peers, peer -> {
+				PushSum.Delivery delivery = deliveries.get(peer);
+				try {
+					return connectionPool.execute(peer, deadline, channel -> pushShare(channel, delivery, epoch, share));
+				} finally {
+					delivery.returnIfUndelivered(pushSum, epoch, share, getTimerValue()); // mass stays in the network
 				}
-			} catch (Exception e) {
-				e.printStackTrace();
+			}, deadline);
+			for(PushSum.Delivery delivery : deliveries.values())
+				delivery.returnIfUndelivered(pushSum, epoch, share, getTimerValue()); // calls which didn't start before the deadline
+			if(pushSum.getRoundsLeft() == 0) {
+				counterOffset.addAndGet(pushSum.settle());
+				saveCounter();
+				appendToLogActivity("Timer synchronized by gossip, epoch: ", epoch);
 			}
-		});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			e.printStackTrace(); // next rounds still have to run
+		}
 	}
-	
+
+	/**
+	 * Single anti-entropy round of CRDT mode: exchanges delta-states with AgentConfig.getDeltaFanout() random peers
+	 */
+	private void antiEntropyRound() {
+		try {
+			if(syncMode != SyncMode.CRDT)
+				return;
+			List<String> peers = new ArrayList<>(getLivePeers());
+			Collections.shuffle(peers, ThreadLocalRandom.current());
+			exchangeDeltas(peers.subList(0, Math.min(config.getDeltaFanout(), peers.size())));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			e.printStackTrace(); // next rounds still have to run
+		}
+	}
+
+	/**
+	 * Sends DLT flag with pairs of PN-counter not acknowledged by the peer to given peers at once and merges pairs they send back.
+	 * Pairs sent to a peer which didn't answer are sent again in the next exchange with it
+	 * @param peers
+	 * @throws InterruptedException
+	 */
+	private void exchangeDeltas(List<String> peers) throws InterruptedException {
+		if(peers.isEmpty())
+			return;
+		int deadline = config.getRoundDeadline();
+		FanOutResult<Integer> round = broadcastRound(MessageUtils.DLT, peers, peer -> connectionPool.execute(peer, deadline, channel -> {
+			Frame request = channel.outbound().set(MessageUtils.DLT, binaryIPAddress, port).setSince(pnCounter.getMerged(peer));
+			long sequence = pnCounter.writeDelta(peer, request);
+			Frame response = channel.call(request);
+			pnCounter.acknowledge(peer, sequence);
+			return pnCounter.merge(peer, response);
+		}), deadline);
+		if(!round.isComplete())
+			appendToLogActivity("DLT not acknowledged by all agents, ", round);
+	}
+
+	/**
+	 * Sends frame with given flag to given agents at once and waits for their acknowledgements
+	 * @param flag opcode from MessageUtils
+	 * @param peers
+	 * @param deadline milliseconds
+	 * @return result of the round
+	 * @throws InterruptedException
+	 */
+	private FanOutResult<Frame> broadcastFlag(byte flag, List<String> peers, int deadline) throws InterruptedException {
+		FanOutResult<Frame> round = broadcastRound(flag, peers, peer -> connectionPool.execute(peer, deadline,
+				channel -> channel.call(channel.outbound().set(flag, binaryIPAddress, port))), deadline);
+		if(!round.isComplete())
+			appendToLogActivity(MessageUtils.getFlagName(flag) + " not acknowledged by all agents, ", round);
+		return round;
+	}
+
+	/**
+	 * Returns peers which aren't suspected by the failure detector, rounds which wait for answers skip the rest
+	 * @return immutable list of peers' IP addresses and ports
+	 */
+	private List<String> getLivePeers() {
+		List<String> members = membership.getMembers();
+		List<String> live = null;
+		for(int i = 0; i < members.size(); i++) {
+			boolean suspect = failureDetector.isSuspect(members.get(i));
+			if(suspect && live == null)
+				live = new ArrayList<>(members.subList(0, i)); // copied only when some peer is suspected
+			else if(!suspect && live != null)
+				live.add(members.get(i));
+		}
+		return live == null ? members : Collections.unmodifiableList(live);
+	}
+
+	/**
+	 * Periodic check of peers: removes peers considered dead by the failure detector and sends HBT flag to peers
+	 * not heard from for AgentConfig.getHeartbeatInterval(), at most AgentConfig.getHeartbeatFanout() of them
+	 */
+	private void checkPeers() {
+		try {
+			long silentSince = System.currentTimeMillis() - config.getHeartbeatInterval();
+			Map<String, Long> silent = new HashMap<>(); // peer -> last heartbeat, read once so sorting sees stable values
+			for(String peer : membership.getMembers()) {
+				failureDetector.watch(peer);
+				long lastHeartbeat = failureDetector.getLastHeartbeat(peer);
+				if(failureDetector.isDead(peer))
+					removeDeadPeer(peer);
+				else if(lastHeartbeat <= silentSince)
+					silent.put(peer, lastHeartbeat);
+			}
+			if(silent.isEmpty())
+				return;
+			List<String> peers = new ArrayList<>(silent.keySet());
+			peers.sort(Comparator.comparingLong(silent::get));
+			peers = peers.subList(0, Math.min(config.getHeartbeatFanout(), peers.size()));
+			int deadline = config.getRoundDeadline();
+			broadcastRound(MessageUtils.HBT, peers, peer -> connectionPool.execute(peer, deadline,
+					channel -> channel.call(channel.outbound().set(MessageUtils.HBT, binaryIPAddress, port).setValue(getTimerValue()))), deadline);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Removes peer which stopped answering without DEL, other agents get the change with membership changes
+	 * @param peer
+	 */
+	private void removeDeadPeer(String peer) {
+		if(!membership.remove(peer))
+			return;
+		forgetPeer(peer);
+		appendToLogActivity("Agent considered dead, removed from list: ", peer);
+	}
+
+	/**
+	 * Drops everything known about a peer removed from the list
+	 * @param peer
+	 */
+	private void forgetPeer(String peer) {
+		knownPeerVersions.remove(peer);
+		failureDetector.forget(peer);
+		counterCache.forget(peer);
+		pnCounter.forget(peer);
+		connectionPool.closeConnections(peer);
+	}
+
+	/**
+	 * Updates counter after an agent left with LVE, using only what this agent already knows and what LVE hands over.
+	 * In CRDT mode pair of the leaving agent is merged. In GOSSIP mode part of push-sum state of the leaving agent is absorbed like PSH. In AVERAGE and TREE mode counter is set to the average of its own value
+	 * and cached counters of the remaining peers, without cached counters it stays until the next synchronization
+	 * @param leave
+	 */
+	private void applyLeave(Frame leave) {
+		if(syncMode == SyncMode.CRDT) {
+			pnCounter.mergePairs(leave);
+			return;
+		}
+		if(syncMode == SyncMode.GOSSIP) {
+			if(leave.getWeight() > 0)
+				pushSum.receive(leave.getValue(), getGossipRounds(), new PushSum.Share(leave.getMass(), leave.getWeight()), getTimerValue());
+			return;
+		}
+		long own = getTimerValue();
+		long sum = own;
+		int count = 1;
+		for(String peer : getLivePeers()) {
+			Long cached = counterCache.get(peer);
+			if(cached != null) {
+				sum += cached;
+				count++;
+			}
+		}
+		if(count == 1)
+			return;
+		counterOffset.addAndGet(sum/count - own);
+		saveCounter();
+		appendToLogActivity("Average of cached timer values set after leave: ", sum/count);
+	}
+
+	/**
+	 * Sends request to given peers at once and records duration and the slowest peer of the round in metrics.
+	 * Round which took more than half of the deadline is logged with its slowest peer
+	 * @param flag opcode of the request
+	 * @param peers
+	 * @param call
+	 * @param deadline milliseconds
+	 * @return result of the round
+	 * @throws InterruptedException
+	 */
+	private <T> FanOutResult<T> broadcastRound(byte flag, List<String> peers, FanOut.PeerCall<T> call, int deadline) throws InterruptedException {
+		long start = System.nanoTime();
+		FanOutResult<T> round = fanOut.broadcast(peers, call, deadline);
+		long elapsed = System.nanoTime() - start;
+		metrics.recordRound(flag, round, elapsed);
+		if(elapsed > TimeUnit.MILLISECONDS.toNanos(deadline) / 2)
+			appendToLogActivity("Slow " + MessageUtils.getFlagName(flag) + " round (" + elapsed / 1_000_000 + " ms), slowest agent: ",
+					round.getSlowestPeer() + " (" + round.getSlowestTime() / 1_000_000 + " ms)");
+		return round;
+	}
+
+	/**
+	 * Appends to activity log (Agent_IP(port).txt in AgentConfig.getLogsDir()) and writes to standard output if displayingLogMessages is true.
+	 * Only enqueues the message, it is written by the background writer of ActivityLog
+	 * @param logMsg
+	 */
+	private void appendToLogActivity(String logMsg) {
+		activityLog.log(logMsg, null);
+	}
+
+	/**
+	 * Appends message followed by detail to activity log, detail is converted to String by the background writer
+	 * @param logMsg
+	 * @param detail
+	 */
+	private void appendToLogActivity(String logMsg, Object detail) {
+		activityLog.log(logMsg, detail);
+	}
+
+	/**
+	 * Sets counter to a given value, from now on it grows by one every millisecond of monotonic clock
+	 * @param value
+	 */
+	private void setCounterValue(long value) {
+		counterOffset.set(value - getElapsedMillis());
+		saveCounter();
+	}
+
+	private void saveCounter() {
+		if(stateSnapshot != null)
+			stateSnapshot.setCounter(getTimerValue());
+	}
+
+	private void applySyncMode(SyncMode mode) {
+		if(syncMode == SyncMode.CRDT && mode != SyncMode.CRDT && !pnCounter.isEmpty())
+			counterOffset.set(getTimerValue() - getElapsedMillis()); // counter goes on from the value it had in CRDT mode
+		syncMode = mode;
+		if(stateSnapshot != null)
+			stateSnapshot.setSyncMode(mode);
+	}
+
 	/**
-	 * Starts counter and agentServer thread
+	 * Creates snapshot of this agent's state, Agent_IP(port).snap in AgentConfig.getSnapshotDir()
+	 * @return snapshot, null when snapshots are turned off
+	 * @throws IOException
+	 */
+	private StateSnapshot createSnapshot() throws IOException {
+		if(!config.isSnapshots())
+			return null;
+		return StateSnapshot.create(new File(config.getSnapshotDir(), "Agent_"+IPAddress+"("+port+").snap"), binaryIPAddress, port);
+	}
+
+	/**
+	 * Makes every change of agents list written to the snapshot
 	 */
-	private void start() {
-		agentServer.start();
-		counter.start();
+	private void saveMembershipChanges() {
+		if(stateSnapshot != null)
+			membership.setListener(this::saveMembershipChange);
+	}
+
+	private void saveMembershipChange(byte operation, String address, long version) {
+		if(operation == Membership.REMOVED) {
+			stateSnapshot.removePeer(address, version);
+			return;
+		}
+		try {
+			stateSnapshot.addPeer(address, knownPeerVersions.getOrDefault(address, 0L), version);
+		} catch (IOException e) {
+			appendToLogActivity("Snapshot not updated with agent: ", address);
+		}
+	}
+
+	private long getElapsedMillis() {
+		return (System.nanoTime() - clockOrigin) / 1_000_000;
 	}
 	
-	private String info() {
-		return this+" -> ";
+	/**
+	 * Registers server channel with the selector of AgentRuntime and schedules periodic tasks
+	 * @throws IOException
+	 */
+	private void start() throws IOException {
+		runtime.register(serverChannel, this::acceptConnection);
+		synchronized(periodicTasks) {
+			periodicTasks.add(runtime.scheduleWithFixedDelay(this::gossipRound, config.getGossipInterval()));
+			periodicTasks.add(runtime.scheduleWithFixedDelay(this::antiEntropyRound, config.getDeltaInterval()));
+			periodicTasks.add(runtime.scheduleWithFixedDelay(this::exchangeMembershipChanges, config.getMembershipSyncInterval()));
+			periodicTasks.add(runtime.scheduleWithFixedDelay(this::checkPeers, config.getHeartbeatInterval()));
+			periodicTasks.add(runtime.scheduleWithFixedDelay(this::closeStalledConnections, Math.max(1, config.getWriteTimeout() / 2)));
+		}
 	}
 	
-	private void stopThisAgent() {
+	private void stopThisAgent() throws IOException {
 		keepProcessing = false;
+		synchronized(periodicTasks) {
+			for(AgentRuntime.Cancellable task : periodicTasks)
+				task.cancel();
+			periodicTasks.clear();
+		}
+		runtime.unregister(serverChannel);
+		connectionPool.closeAll();
+		activityLog.close(); // open connections end when peers close them
+		if(stateSnapshot != null)
+			stateSnapshot.close();
+	}
+
+	/**
+	 * Stops agent without DEL, as if its process was killed. Snapshot stays, so agent can be restarted from it. Package-private for benchmarks
+	 * @throws IOException
+	 */
+	void stop() throws IOException {
+		appendToLogActivity("Stopped without leaving the network");
+		stopThisAgent();
 	}
 	
 	public String getIP() {
@@ -296,8 +1198,137 @@ public class Agent {
 		return port;
 	}
 	
+	/**
+	 * Returns counter value, computed from monotonic clock, so no thread has to tick it. In CRDT mode counter is
+	 * wall clock time plus value of PN-counter, which is the same on all agents once they merged the same pairs
+	 * @return counter value in milliseconds
+	 */
 	public long getTimerValue() {
-		return counterValue;
+		if(syncMode == SyncMode.CRDT)
+			return System.currentTimeMillis() + pnCounter.getValue();
+		return getElapsedMillis() + counterOffset.get();
+	}
+
+	/**
+	 * Adds delta to the counter. In CRDT mode delta is recorded in the pair of this agent in PN-counter and reaches other agents
+	 * with delta-states, so concurrent changes made on different agents are all kept. In other modes only counter of this agent
+	 * is moved and the next synchronization averages the change
+	 * @param delta milliseconds, negative to move counter back
+	 */
+	public void addToCounter(long delta) {
+		if(syncMode == SyncMode.CRDT)
+			pnCounter.add(toString(), delta);
+		else
+			counterOffset.addAndGet(delta);
+		saveCounter();
+	}
+
+	/**
+	 * Returns number of agents whose increments and decrements are counted in PN-counter of CRDT mode
+	 * @return number of pairs
+	 */
+	public int getPNCounterSize() {
+		return pnCounter.size();
+	}
+
+	/**
+	 * Sets named counter of this agent, creating it if it doesn't exist. Named counters are averaged together with
+	 * agent's counter by CLK rounds of AVERAGE mode, agents without the counter get it from the first round
+	 * @param name
+	 * @param value
+	 */
+	public void setNamedCounter(String name, long value) {
+		namedCounters.set(name, value, getElapsedMillis());
+	}
+
+	/**
+	 * Returns value of named counter
+	 * @param name
+	 * @return counter value
+	 * @throws IllegalArgumentException when agent has no such counter
+	 */
+	public long getNamedCounter(String name) {
+		return namedCounters.get(name, getElapsedMillis());
+	}
+
+	/**
+	 * Returns names of named counters, counters learned from other agents are named by their id (#hex)
+	 * @return names
+	 */
+	public List<String> getNamedCounters() {
+		return namedCounters.getNames();
+	}
+
+	public SyncMode getSyncMode() {
+		return syncMode;
+	}
+
+	/**
+	 * Returns file of the snapshot from which agent can be restarted with Agent(File)
+	 * @return file, null when snapshots are turned off
+	 */
+	public File getSnapshotFile() {
+		return stateSnapshot == null ? null : stateSnapshot.getFile();
+	}
+
+	public AgentMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns number of connections from peers open in this agent, served or parked
+	 * @return number of connections
+	 */
+	public int getActiveConnections() {
+		return activeConnections.get();
+	}
+
+	/**
+	 * Returns number of requests from peers being answered
+	 * @return number of requests
+	 */
+	public int getInFlightRequests() {
+		return inFlightRequests.get();
+	}
+
+	public long getDroppedLogRecords() {
+		return activityLog.getDroppedCount();
+	}
+
+	/**
+	 * Returns peers known to this agent
+	 * @return immutable list of peers' IP addresses and ports
+	 */
+	public List<String> getMembers() {
+		return membership.getMembers();
+	}
+
+	public long getMembershipVersion() {
+		return membership.getVersion();
+	}
+
+	/**
+	 * Returns current push-sum estimate of the average of counters
+	 * @return estimate
+	 */
+	public long getGossipEstimate() {
+		return pushSum.estimate(getTimerValue());
+	}
+
+	public long getGossipEpoch() {
+		return pushSum.getEpoch();
+	}
+
+	public int getGossipRoundsLeft() {
+		return pushSum.getRoundsLeft();
+	}
+
+	/**
+	 * Returns how much the push-sum estimate has moved in the last round of this agent
+	 * @return change in milliseconds, NaN before first round
+	 */
+	public double getGossipLastChange() {
+		return pushSum.getLastChange();
 	}
 	
 	@Override
@@ -0,0 +1,34 @@
+package networkOfCounters;
+
+import java.io.IOException;
+
+/**
+ * Thrown when agent answers request with BSY, because it already serves AgentConfig.getMaxInFlightRequests() requests.
+ * Connection stays usable, request may be sent again after the time given by the agent
+ * @author Grzegorz Golebiowski
+ *
+ */
+public class AgentBusyException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long retryAfter;
+
+	/**
+	 * @param agent IP address and port of the busy agent
+	 * @param flag name of the rejected flag
+	 * @param retryAfter milliseconds
+	 */
+	public AgentBusyException(String agent, String flag, long retryAfter) {
+		super("Flag " + flag + " rejected by busy agent " + agent + ", retry after " + retryAfter + " ms");
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * Returns time after which the request should be retried
+	 * @return milliseconds
+	 */
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+}
@@ -0,0 +1,550 @@
+package networkOfCounters;
+
+import java.io.File;
+
+/**
+ * Tunable settings shared by agents. Defaults can be overridden with system properties, e.g. -DnetworkOfCounters.connectionIdleTimeout=5000
+ * @author Grzegorz Golebiowski
+ *
+ */
+public class AgentConfig {
+
+	private static final String PROPERTY_PREFIX = "networkOfCounters.";
+	private static final AgentConfig DEFAULT = new AgentConfig();
+
+	private volatile long connectionIdleTimeout = Long.getLong(PROPERTY_PREFIX + "connectionIdleTimeout", 20000); // milliseconds
+	private volatile int maxIdleConnectionsPerPeer = Integer.getInteger(PROPERTY_PREFIX + "maxIdleConnectionsPerPeer", 4);
+	private volatile int serverIdleTimeout = Integer.getInteger(PROPERTY_PREFIX + "serverIdleTimeout", 30000); // milliseconds
+	private volatile int roundDeadline = Integer.getInteger(PROPERTY_PREFIX + "roundDeadline", 2000); // milliseconds
+	private volatile SyncMode syncMode = SyncMode.valueOf(System.getProperty(PROPERTY_PREFIX + "syncMode", SyncMode.AVERAGE.name()));
+	private volatile long gossipInterval = Long.getLong(PROPERTY_PREFIX + "gossipInterval", 50); // milliseconds
+	private volatile int gossipFanout = Integer.getInteger(PROPERTY_PREFIX + "gossipFanout", 1);
+	private volatile int gossipRoundsFactor = Integer.getInteger(PROPERTY_PREFIX + "gossipRoundsFactor", 4);
+	private volatile long counterCacheTtl = Long.getLong(PROPERTY_PREFIX + "counterCacheTtl", 100); // milliseconds
+	private volatile int treeFanout = Integer.getInteger(PROPERTY_PREFIX + "treeFanout", 4);
+	private volatile long deltaInterval = Long.getLong(PROPERTY_PREFIX + "deltaInterval", 100); // milliseconds
+	private volatile int deltaFanout = Integer.getInteger(PROPERTY_PREFIX + "deltaFanout", 1);
+	private volatile int acceptBacklog = Integer.getInteger(PROPERTY_PREFIX + "acceptBacklog", 128);
+	private volatile int maxConnections = Integer.getInteger(PROPERTY_PREFIX + "maxConnections", 256);
+	private volatile int maxInFlightRequests = Integer.getInteger(PROPERTY_PREFIX + "maxInFlightRequests", 64);
+	private volatile int reservedControlRequests = Integer.getInteger(PROPERTY_PREFIX + "reservedControlRequests", 8);
+	private volatile int frameReadTimeout = Integer.getInteger(PROPERTY_PREFIX + "frameReadTimeout", 2000); // milliseconds
+	private volatile long writeTimeout = Long.getLong(PROPERTY_PREFIX + "writeTimeout", 5000); // milliseconds
+	private volatile long busyBackoff = Long.getLong(PROPERTY_PREFIX + "busyBackoff", 20); // milliseconds
+	private volatile int busyRetries = Integer.getInteger(PROPERTY_PREFIX + "busyRetries", 3);
+	private volatile int connectionLinger = Integer.getInteger(PROPERTY_PREFIX + "connectionLinger", 10); // milliseconds
+	private volatile int maxWaitingConnections = Integer.getInteger(PROPERTY_PREFIX + "maxWaitingConnections", 4096);
+	private volatile boolean virtualThreads = Boolean.parseBoolean(System.getProperty(PROPERTY_PREFIX + "virtualThreads", "true"));
+	private volatile long syncDebounce = Long.getLong(PROPERTY_PREFIX + "syncDebounce", 10); // milliseconds
+	private volatile int membershipLogSize = Integer.getInteger(PROPERTY_PREFIX + "membershipLogSize", 1024);
+	private volatile long tombstoneTimeout = Long.getLong(PROPERTY_PREFIX + "tombstoneTimeout", 60000); // milliseconds
+	private volatile long membershipSyncInterval = Long.getLong(PROPERTY_PREFIX + "membershipSyncInterval", 1000); // milliseconds
+	private volatile long heartbeatInterval = Long.getLong(PROPERTY_PREFIX + "heartbeatInterval", 1000); // milliseconds
+	private volatile int heartbeatFanout = Integer.getInteger(PROPERTY_PREFIX + "heartbeatFanout", 16);
+	private volatile long acceptableHeartbeatPause = Long.getLong(PROPERTY_PREFIX + "acceptableHeartbeatPause", 2000); // milliseconds
+	private volatile long minHeartbeatDeviation = Long.getLong(PROPERTY_PREFIX + "minHeartbeatDeviation", 500); // milliseconds
+	private volatile double suspectPhi = Double.parseDouble(System.getProperty(PROPERTY_PREFIX + "suspectPhi", "3"));
+	private volatile double deadPhi = Double.parseDouble(System.getProperty(PROPERTY_PREFIX + "deadPhi", "10"));
+	private volatile int connectTimeout = Integer.getInteger(PROPERTY_PREFIX + "connectTimeout", 1000); // milliseconds
+	private volatile String logsDir = System.getProperty(PROPERTY_PREFIX + "logsDir", System.getProperty("user.home") + File.separator + "logs");
+	private volatile boolean snapshots = Boolean.parseBoolean(System.getProperty(PROPERTY_PREFIX + "snapshots", "false"));
+	private volatile String snapshotDir = System.getProperty(PROPERTY_PREFIX + "snapshotDir", System.getProperty("user.home") + File.separator + "snapshots");
+	private volatile int logCapacity = Integer.getInteger(PROPERTY_PREFIX + "logCapacity", 8192);
+	private volatile long logFlushInterval = Long.getLong(PROPERTY_PREFIX + "logFlushInterval", 200); // milliseconds
+	private volatile int logFlushBatch = Integer.getInteger(PROPERTY_PREFIX + "logFlushBatch", 512);
+
+	/**
+	 * Returns configuration used by agents created without explicit configuration
+	 * @return default configuration
+	 */
+	public static AgentConfig getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Time after which pooled connection which was not used is closed. Should be shorter than serverIdleTimeout
+	 * @return idle timeout in milliseconds
+	 */
+	public long getConnectionIdleTimeout() {
+		return connectionIdleTimeout;
+	}
+
+	public void setConnectionIdleTimeout(long connectionIdleTimeout) {
+		this.connectionIdleTimeout = connectionIdleTimeout;
+	}
+
+	/**
+	 * Maximal number of idle connections kept open to a single peer
+	 * @return number of connections
+	 */
+	public int getMaxIdleConnectionsPerPeer() {
+		return maxIdleConnectionsPerPeer;
+	}
+
+	public void setMaxIdleConnectionsPerPeer(int maxIdleConnectionsPerPeer) {
+		this.maxIdleConnectionsPerPeer = maxIdleConnectionsPerPeer;
+	}
+
+	/**
+	 * Time after which agent server closes connection on which no flag was received
+	 * @return idle timeout in milliseconds
+	 */
+	public int getServerIdleTimeout() {
+		return serverIdleTimeout;
+	}
+
+	public void setServerIdleTimeout(int serverIdleTimeout) {
+		this.serverIdleTimeout = serverIdleTimeout;
+	}
+
+	/**
+	 * Time given to peers to answer a single round of flags sent to all of them, e.g. CLK when averaging.
+	 * Peers which don't answer in time are left out of the round
+	 * @return deadline in milliseconds
+	 */
+	public int getRoundDeadline() {
+		return roundDeadline;
+	}
+
+	public void setRoundDeadline(int roundDeadline) {
+		this.roundDeadline = roundDeadline;
+	}
+
+	/**
+	 * Sync mode of a new network, i.e. of its first agent. Agents joining the network take mode of the introducing agent
+	 * @return sync mode
+	 */
+	public SyncMode getSyncMode() {
+		return syncMode;
+	}
+
+	public void setSyncMode(SyncMode syncMode) {
+		this.syncMode = syncMode;
+	}
+
+	/**
+	 * Time between two push-sum rounds of an agent in GOSSIP mode
+	 * @return interval in milliseconds
+	 */
+	public long getGossipInterval() {
+		return gossipInterval;
+	}
+
+	public void setGossipInterval(long gossipInterval) {
+		this.gossipInterval = gossipInterval;
+	}
+
+	/**
+	 * Number of random peers to which push-sum share is sent in every round
+	 * @return number of peers
+	 */
+	public int getGossipFanout() {
+		return gossipFanout;
+	}
+
+	public void setGossipFanout(int gossipFanout) {
+		this.gossipFanout = gossipFanout;
+	}
+
+	/**
+	 * Push-sum epoch lasts gossipRoundsFactor * log2(number of agents) rounds
+	 * @return factor
+	 */
+	public int getGossipRoundsFactor() {
+		return gossipRoundsFactor;
+	}
+
+	public void setGossipRoundsFactor(int gossipRoundsFactor) {
+		this.gossipRoundsFactor = gossipRoundsFactor;
+	}
+
+	/**
+	 * Time for which counter received from a peer is used instead of asking the peer with CLK, 0 turns the cache off
+	 * @return time to live in milliseconds
+	 */
+	public long getCounterCacheTtl() {
+		return counterCacheTtl;
+	}
+
+	public void setCounterCacheTtl(long counterCacheTtl) {
+		this.counterCacheTtl = counterCacheTtl;
+	}
+
+	/**
+	 * Number of children of every agent in the aggregation tree of TREE mode, tree of n agents has log(n) / log(treeFanout) levels
+	 * @return number of children
+	 */
+	public int getTreeFanout() {
+		return treeFanout;
+	}
+
+	public void setTreeFanout(int treeFanout) {
+		this.treeFanout = treeFanout;
+	}
+
+	/**
+	 * Time between two anti-entropy rounds of an agent in CRDT mode, in which it exchanges delta-states of PN-counter with random peers
+	 * @return interval in milliseconds
+	 */
+	public long getDeltaInterval() {
+		return deltaInterval;
+	}
+
+	public void setDeltaInterval(long deltaInterval) {
+		this.deltaInterval = deltaInterval;
+	}
+
+	/**
+	 * Number of random peers with which delta-states are exchanged in every anti-entropy round
+	 * @return number of peers
+	 */
+	public int getDeltaFanout() {
+		return deltaFanout;
+	}
+
+	public void setDeltaFanout(int deltaFanout) {
+		this.deltaFanout = deltaFanout;
+	}
+
+	/**
+	 * Length of the queue of connections waiting to be accepted by agent server. Applies to agents created afterwards
+	 * @return backlog
+	 */
+	public int getAcceptBacklog() {
+		return acceptBacklog;
+	}
+
+	public void setAcceptBacklog(int acceptBacklog) {
+		this.acceptBacklog = acceptBacklog;
+	}
+
+	/**
+	 * Maximal number of connections from peers open in agent at once, served or parked, further connections are closed. Applies to agents created afterwards
+	 * @return number of connections
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Maximal number of requests answered by agent server at the same time, requests over the limit get BSY answer
+	 * @return number of requests
+	 */
+	public int getMaxInFlightRequests() {
+		return maxInFlightRequests;
+	}
+
+	public void setMaxInFlightRequests(int maxInFlightRequests) {
+		this.maxInFlightRequests = maxInFlightRequests;
+	}
+
+	/**
+	 * Number of in-flight requests which only control flags (NET, UPD, DEL, LVE, MOD) and heartbeats may take,
+	 * so changes of agents list get through when the agent is busy with CLK and other bulk requests
+	 * @return number of requests
+	 */
+	public int getReservedControlRequests() {
+		return reservedControlRequests;
+	}
+
+	public void setReservedControlRequests(int reservedControlRequests) {
+		this.reservedControlRequests = reservedControlRequests;
+	}
+
+	/**
+	 * Time in which the rest of a frame has to arrive once agent server has started to read it, 0 waits as long as for the next frame
+	 * @return timeout in milliseconds
+	 */
+	public int getFrameReadTimeout() {
+		return frameReadTimeout;
+	}
+
+	public void setFrameReadTimeout(int frameReadTimeout) {
+		this.frameReadTimeout = frameReadTimeout;
+	}
+
+	/**
+	 * Time after which agent server closes connection whose answer can't be written, because the peer doesn't read. 0 turns it off
+	 * @return timeout in milliseconds
+	 */
+	public long getWriteTimeout() {
+		return writeTimeout;
+	}
+
+	public void setWriteTimeout(long writeTimeout) {
+		this.writeTimeout = writeTimeout;
+	}
+
+	/**
+	 * Time sent in BSY answer after which the request should be retried, every next retry waits twice as long
+	 * @return backoff in milliseconds
+	 */
+	public long getBusyBackoff() {
+		return busyBackoff;
+	}
+
+	public void setBusyBackoff(long busyBackoff) {
+		this.busyBackoff = busyBackoff;
+	}
+
+	/**
+	 * Number of retries of a request answered with BSY, retries end earlier when the deadline of the request would pass
+	 * @return number of retries
+	 */
+	public int getBusyRetries() {
+		return busyRetries;
+	}
+
+	public void setBusyRetries(int busyRetries) {
+		this.busyRetries = busyRetries;
+	}
+
+	/**
+	 * Time for which served connection waits for next flag on its thread before it is parked in the selector of AgentRuntime,
+	 * when AgentConfig.getMaxWaitingConnections() connections already wait on their threads.
+	 * 0 keeps connections on their threads until they are closed
+	 * @return linger time in milliseconds
+	 */
+	public int getConnectionLinger() {
+		return connectionLinger;
+	}
+
+	public void setConnectionLinger(int connectionLinger) {
+		this.connectionLinger = connectionLinger;
+	}
+
+	/**
+	 * Maximal number of idle connections of all agents in the JVM which wait for next flag on their own threads,
+	 * further idle connections are parked after AgentConfig.getConnectionLinger(). Applies when the shared AgentRuntime is created
+	 * @return number of connections
+	 */
+	public int getMaxWaitingConnections() {
+		return maxWaitingConnections;
+	}
+
+	public void setMaxWaitingConnections(int maxWaitingConnections) {
+		this.maxWaitingConnections = maxWaitingConnections;
+	}
+
+	/**
+	 * Whether tasks of agents run on virtual threads when the JVM has them. Applies when the shared AgentRuntime is created, i.e. with the first agent
+	 * @return true if virtual threads are used
+	 */
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * Time for which agent waits after the first SYN before running its averaging round, SYN flags received meanwhile
+	 * and during the round are answered when that round ends
+	 * @return debounce time in milliseconds
+	 */
+	public long getSyncDebounce() {
+		return syncDebounce;
+	}
+
+	public void setSyncDebounce(long syncDebounce) {
+		this.syncDebounce = syncDebounce;
+	}
+
+	/**
+	 * Number of membership changes remembered by agent. Peers knowing older version get the whole list
+	 * @return number of changes
+	 */
+	public int getMembershipLogSize() {
+		return membershipLogSize;
+	}
+
+	public void setMembershipLogSize(int membershipLogSize) {
+		this.membershipLogSize = membershipLogSize;
+	}
+
+	/**
+	 * Time for which removed agent isn't added back by changes received from other agents
+	 * @return timeout in milliseconds
+	 */
+	public long getTombstoneTimeout() {
+		return tombstoneTimeout;
+	}
+
+	public void setTombstoneTimeout(long tombstoneTimeout) {
+		this.tombstoneTimeout = tombstoneTimeout;
+	}
+
+	/**
+	 * Time between two exchanges of membership changes with a random peer
+	 * @return interval in milliseconds
+	 */
+	public long getMembershipSyncInterval() {
+		return membershipSyncInterval;
+	}
+
+	public void setMembershipSyncInterval(long membershipSyncInterval) {
+		this.membershipSyncInterval = membershipSyncInterval;
+	}
+
+	/**
+	 * Time between two checks of peers' heartbeats. Peers not heard from for this time get HBT flag
+	 * @return interval in milliseconds
+	 */
+	public long getHeartbeatInterval() {
+		return heartbeatInterval;
+	}
+
+	public void setHeartbeatInterval(long heartbeatInterval) {
+		this.heartbeatInterval = heartbeatInterval;
+	}
+
+	/**
+	 * Maximal number of peers to which HBT flag is sent in one check, those not heard from for the longest time go first
+	 * @return number of peers
+	 */
+	public int getHeartbeatFanout() {
+		return heartbeatFanout;
+	}
+
+	public void setHeartbeatFanout(int heartbeatFanout) {
+		this.heartbeatFanout = heartbeatFanout;
+	}
+
+	/**
+	 * Delay of a heartbeat, above the mean interval, which doesn't raise suspicion of the failure detector
+	 * @return pause in milliseconds
+	 */
+	public long getAcceptableHeartbeatPause() {
+		return acceptableHeartbeatPause;
+	}
+
+	public void setAcceptableHeartbeatPause(long acceptableHeartbeatPause) {
+		this.acceptableHeartbeatPause = acceptableHeartbeatPause;
+	}
+
+	/**
+	 * Lower bound of standard deviation of intervals between heartbeats, so very regular heartbeats don't make detector too eager
+	 * @return deviation in milliseconds
+	 */
+	public long getMinHeartbeatDeviation() {
+		return minHeartbeatDeviation;
+	}
+
+	public void setMinHeartbeatDeviation(long minHeartbeatDeviation) {
+		this.minHeartbeatDeviation = minHeartbeatDeviation;
+	}
+
+	/**
+	 * Phi above which peer is suspected and left out of CLK, SYN and PSH rounds until it is heard from again
+	 * @return phi
+	 */
+	public double getSuspectPhi() {
+		return suspectPhi;
+	}
+
+	public void setSuspectPhi(double suspectPhi) {
+		this.suspectPhi = suspectPhi;
+	}
+
+	/**
+	 * Phi above which peer is considered dead and removed from the list, other agents learn about it with membership changes
+	 * @return phi
+	 */
+	public double getDeadPhi() {
+		return deadPhi;
+	}
+
+	public void setDeadPhi(double deadPhi) {
+		this.deadPhi = deadPhi;
+	}
+
+	/**
+	 * Time of waiting for a connection to a peer to be established
+	 * @return timeout in milliseconds
+	 */
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * Directory of agents' activity logs, created if it doesn't exist
+	 * @return path of the directory
+	 */
+	public String getLogsDir() {
+		return logsDir;
+	}
+
+	public void setLogsDir(String logsDir) {
+		this.logsDir = logsDir;
+	}
+
+	/**
+	 * Whether agents keep snapshots of their state, from which they can be restarted. Applies to agents created afterwards.
+	 * Off by default, snapshots of agents which don't leave the network stay in AgentConfig.getSnapshotDir()
+	 * @return true if snapshots are written
+	 */
+	public boolean isSnapshots() {
+		return snapshots;
+	}
+
+	public void setSnapshots(boolean snapshots) {
+		this.snapshots = snapshots;
+	}
+
+	/**
+	 * Directory of agents' state snapshots, created if it doesn't exist
+	 * @return path of the directory
+	 */
+	public String getSnapshotDir() {
+		return snapshotDir;
+	}
+
+	public void setSnapshotDir(String snapshotDir) {
+		this.snapshotDir = snapshotDir;
+	}
+
+	/**
+	 * Number of log records buffered by an agent before new records are dropped. Applies to agents created afterwards
+	 * @return capacity of the buffer
+	 */
+	public int getLogCapacity() {
+		return logCapacity;
+	}
+
+	public void setLogCapacity(int logCapacity) {
+		this.logCapacity = logCapacity;
+	}
+
+	/**
+	 * Maximal time for which written log records may stay unflushed
+	 * @return interval in milliseconds
+	 */
+	public long getLogFlushInterval() {
+		return logFlushInterval;
+	}
+
+	public void setLogFlushInterval(long logFlushInterval) {
+		this.logFlushInterval = logFlushInterval;
+	}
+
+	/**
+	 * Number of written log records after which the log file is flushed regardless of the interval
+	 * @return number of records
+	 */
+	public int getLogFlushBatch() {
+		return logFlushBatch;
+	}
+
+	public void setLogFlushBatch(int logFlushBatch) {
+		this.logFlushBatch = logFlushBatch;
+	}
+}
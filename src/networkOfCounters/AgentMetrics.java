@@ -0,0 +1,228 @@
+package networkOfCounters;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of a single agent, indexed by opcode of the request.
+ * Updated on hot paths, so only atomic increments are used; exported by MetricsExporter
+ * @author Grzegorz Golebiowski
+ *
+ */
+public class AgentMetrics {
+
+	public static final byte[] REQUEST_OPCODES = {
+			MessageUtils.NET, MessageUtils.CLK, MessageUtils.SYN, MessageUtils.UPD, MessageUtils.DEL, MessageUtils.PSH, MessageUtils.MOD, MessageUtils.HBT,
+			MessageUtils.AGG, MessageUtils.AVG, MessageUtils.DLT, MessageUtils.LVE};
+	private static final int OPCODES = 32; // opcodes take 5 bits
+
+	/**
+	 * Peer which answered last in a round
+	 */
+	public static class SlowestPeer {
+		private final String peer;
+		private final long nanos;
+
+		SlowestPeer(String peer, long nanos) {
+			this.peer = peer;
+			this.nanos = nanos;
+		}
+
+		public String getPeer() {
+			return peer;
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+	}
+
+	private final LatencyHistogram[] clientLatency = new LatencyHistogram[OPCODES]; // request sent to a peer until its answer
+	private final LatencyHistogram[] serverLatency = new LatencyHistogram[OPCODES]; // request received until answer sent
+	private final LatencyHistogram[] roundDuration = new LatencyHistogram[OPCODES]; // request sent to all peers until all answers or deadline
+	private final AtomicLongArray failures = new AtomicLongArray(OPCODES);
+	private final AtomicLongArray timeouts = new AtomicLongArray(OPCODES);
+	private final AtomicLongArray busyAnswers = new AtomicLongArray(OPCODES); // requests of this agent answered with BSY
+	private final AtomicLongArray rejected = new AtomicLongArray(OPCODES); // requests answered with BSY by this agent
+	private final AtomicLongArray roundTimedOutPeers = new AtomicLongArray(OPCODES);
+	private final AtomicReferenceArray<SlowestPeer> slowestPeers = new AtomicReferenceArray<>(OPCODES); // of the last round
+	private final LongAdder bytesSent = new LongAdder();
+	private final LongAdder bytesReceived = new LongAdder();
+	private final LongAdder connectionsOpened = new LongAdder();
+	private final LongAdder connectionFailures = new LongAdder();
+	private final LongAdder connectionsAccepted = new LongAdder();
+	private final LongAdder connectionsRefused = new LongAdder();
+	private final LongAdder writeTimeouts = new LongAdder();
+
+	public AgentMetrics() {
+		for(byte opcode : REQUEST_OPCODES) {
+			clientLatency[opcode] = new LatencyHistogram();
+			serverLatency[opcode] = new LatencyHistogram();
+			roundDuration[opcode] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Records time of a request sent by this agent
+	 * @param opcode opcode of the request
+	 * @param nanos
+	 */
+	public void recordClient(byte opcode, long nanos) {
+		LatencyHistogram histogram = clientLatency[opcode & (OPCODES - 1)];
+		if(histogram != null)
+			histogram.record(nanos);
+	}
+
+	/**
+	 * Records time of answering a request received by this agent
+	 * @param opcode opcode of the request
+	 * @param nanos
+	 */
+	public void recordServer(byte opcode, long nanos) {
+		LatencyHistogram histogram = serverLatency[opcode & (OPCODES - 1)];
+		if(histogram != null)
+			histogram.record(nanos);
+	}
+
+	/**
+	 * Records request sent by this agent which failed
+	 * @param opcode opcode of the request
+	 * @param exception cause of the failure, SocketTimeoutException is counted as timeout, AgentBusyException as BSY answer
+	 */
+	public void recordFailure(byte opcode, IOException exception) {
+		if(exception instanceof AgentBusyException)
+			busyAnswers.incrementAndGet(opcode & (OPCODES - 1));
+		else if(exception instanceof SocketTimeoutException)
+			timeouts.incrementAndGet(opcode & (OPCODES - 1));
+		else
+			failures.incrementAndGet(opcode & (OPCODES - 1));
+	}
+
+	/**
+	 * Records round of requests sent to all peers
+	 * @param opcode opcode of the requests
+	 * @param result
+	 * @param nanos duration of the whole round
+	 */
+	public void recordRound(byte opcode, FanOutResult<?> result, long nanos) {
+		int index = opcode & (OPCODES - 1);
+		LatencyHistogram histogram = roundDuration[index];
+		if(histogram != null)
+			histogram.record(nanos);
+		roundTimedOutPeers.addAndGet(index, result.getTimedOut().size());
+		String slowest = result.getSlowestPeer();
+		if(slowest != null)
+			slowestPeers.set(index, new SlowestPeer(slowest, result.getSlowestTime()));
+	}
+
+	public void addBytesSent(int bytes) {
+		bytesSent.add(bytes);
+	}
+
+	public void addBytesReceived(int bytes) {
+		bytesReceived.add(bytes);
+	}
+
+	public void connectionOpened() {
+		connectionsOpened.increment();
+	}
+
+	public void connectionFailed() {
+		connectionFailures.increment();
+	}
+
+	public void connectionAccepted() {
+		connectionsAccepted.increment();
+	}
+
+	public void connectionRefused() {
+		connectionsRefused.increment();
+	}
+
+	/**
+	 * Records request answered with BSY by this agent
+	 * @param opcode opcode of the request
+	 */
+	public void requestRejected(byte opcode) {
+		rejected.incrementAndGet(opcode & (OPCODES - 1));
+	}
+
+	/**
+	 * Records connection closed because its answer couldn't be written in AgentConfig.getWriteTimeout()
+	 */
+	public void writeTimedOut() {
+		writeTimeouts.increment();
+	}
+
+	public LatencyHistogram getClientLatency(byte opcode) {
+		return clientLatency[opcode];
+	}
+
+	public LatencyHistogram getServerLatency(byte opcode) {
+		return serverLatency[opcode];
+	}
+
+	public LatencyHistogram getRoundDuration(byte opcode) {
+		return roundDuration[opcode];
+	}
+
+	public long getFailures(byte opcode) {
+		return failures.get(opcode);
+	}
+
+	public long getTimeouts(byte opcode) {
+		return timeouts.get(opcode);
+	}
+
+	public long getBusyAnswers(byte opcode) {
+		return busyAnswers.get(opcode);
+	}
+
+	public long getRejected(byte opcode) {
+		return rejected.get(opcode);
+	}
+
+	public long getRoundTimedOutPeers(byte opcode) {
+		return roundTimedOutPeers.get(opcode);
+	}
+
+	/**
+	 * Returns peer which answered last in the last round of given requests
+	 * @param opcode
+	 * @return peer, or null if there was no round yet
+	 */
+	public SlowestPeer getSlowestPeer(byte opcode) {
+		return slowestPeers.get(opcode);
+	}
+
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	public long getConnectionsOpened() {
+		return connectionsOpened.sum();
+	}
+
+	public long getConnectionFailures() {
+		return connectionFailures.sum();
+	}
+
+	public long getConnectionsAccepted() {
+		return connectionsAccepted.sum();
+	}
+
+	public long getConnectionsRefused() {
+		return connectionsRefused.sum();
+	}
+
+	public long getWriteTimeouts() {
+		return writeTimeouts.sum();
+	}
+}
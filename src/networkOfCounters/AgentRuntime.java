@@ -0,0 +1,382 @@
+package networkOfCounters;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads shared by all agents of the JVM, so an agent costs no threads of its own while it is idle:
+ * one timer thread schedules periodic work, one selector thread accepts connections of all agents and watches their idle connections,
+ * and tasks (served connections, calls to peers, periodic work) run on a shared executor.
+ * The executor creates a virtual thread per task when the JVM has them (Java 21+), otherwise it is a pool of daemon threads
+ * @author Grzegorz Golebiowski
+ *
+ */
+public class AgentRuntime {
+
+	/**
+	 * Handles connection accepted on a registered server channel. Runs on the selector thread, so it must not block
+	 */
+	public interface AcceptHandler {
+		void accepted(SocketChannel channel) throws IOException;
+	}
+
+	/**
+	 * Handle of periodic task, cancels it
+	 */
+	public interface Cancellable {
+		void cancel();
+	}
+
+	private static final long SWEEP_INTERVAL = 1000; // milliseconds
+	private static volatile AgentRuntime shared;
+
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(daemonThreads("agent-runtime-timer"));
+	private final ExecutorService executor;
+	private final boolean virtualThreads;
+	private final Selector selector;
+	private final Queue<Runnable> registrations = new ConcurrentLinkedQueue<>(); // run by the selector thread, only it registers channels
+	private final List<ParkedConnection> resumed = new ArrayList<>(); // used only by the selector thread
+	private long nextSweep; // time of next search for expired parked connections, used only by the selector thread
+	private final Thread selectorThread;
+	private final int maxWaitingConnections;
+	private final AtomicInteger waitingConnections = new AtomicInteger();
+
+	/**
+	 * Idle connection waiting in the selector for its next request. Either the request or the idle timeout ends the wait, whichever comes first.
+	 * Timeouts are checked by the selector thread every SWEEP_INTERVAL, so parking doesn't cost a timer task
+	 */
+	private static class ParkedConnection {
+		final SocketChannel channel;
+		final Runnable resume;
+		final Runnable expire;
+		final long deadline; // System.nanoTime()
+
+		ParkedConnection(SocketChannel channel, Runnable resume, Runnable expire, long deadline) {
+			this.channel = channel;
+			this.resume = resume;
+			this.expire = expire;
+			this.deadline = deadline;
+		}
+	}
+
+	/**
+	 * Task repeated with fixed delay between the end of one run and the start of the next one, so runs never overlap.
+	 * Timer only hands the task over to the executor
+	 */
+	private class PeriodicTask implements Runnable {
+		private final Runnable task;
+		private final long delay;
+		private volatile ScheduledFuture<?> next;
+		private volatile boolean cancelled;
+
+		PeriodicTask(Runnable task, long delay) {
+			this.task = task;
+			this.delay = delay;
+		}
+
+		void schedule() {
+			if(!cancelled)
+				next = timer.schedule(() -> executor.execute(this), delay, TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public void run() {
+			try {
+				if(!cancelled)
+					task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace(); // next runs still have to happen
+			} finally {
+				schedule();
+			}
+		}
+
+		void cancel() {
+			cancelled = true;
+			ScheduledFuture<?> scheduled = next;
+			if(scheduled != null)
+				scheduled.cancel(false);
+		}
+	}
+
+	private AgentRuntime(AgentConfig config) throws IOException {
+		ExecutorService virtual = config.isVirtualThreads() ? newVirtualThreadExecutor() : null;
+		virtualThreads = virtual != null;
+		maxWaitingConnections = config.getMaxWaitingConnections();
+		executor = virtualThreads ? virtual : new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<>(), daemonThreads("agent-runtime-worker"));
+		selector = Selector.open();
+		selectorThread = daemonThreads("agent-runtime-selector").newThread(this::selectLoop);
+		selectorThread.start();
+	}
+
+	/**
+	 * Returns runtime shared by all agents of the JVM, creates it on first use
+	 * @return shared runtime
+	 * @throws IOException when selector can't be opened
+	 */
+	public static AgentRuntime getShared() throws IOException {
+		AgentRuntime runtime = shared;
+		if(runtime == null) {
+			synchronized(AgentRuntime.class) {
+				if(shared == null)
+					shared = new AgentRuntime(AgentConfig.getDefault());
+				runtime = shared;
+			}
+		}
+		return runtime;
+	}
+
+	/**
+	 * Returns executor of agents' tasks. It has no limit of threads, limits are kept by agents
+	 * @return executor, not to be shut down
+	 */
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Checks whether tasks run on virtual threads
+	 * @return true if executor creates a virtual thread per task
+	 */
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Reserves a thread for waiting on idle connection, waiting threads of all agents are limited by AgentConfig.getMaxWaitingConnections()
+	 * @return true if connection may wait on its thread, false if it should be parked
+	 */
+	public boolean reserveWaitingThread() {
+		if(waitingConnections.incrementAndGet() <= maxWaitingConnections)
+			return true;
+		waitingConnections.decrementAndGet();
+		return false;
+	}
+
+	public void releaseWaitingThread() {
+		waitingConnections.decrementAndGet();
+	}
+
+	/**
+	 * Runs task on the executor repeatedly, with given delay before the first run and between the end of a run and the next one
+	 * @param task
+	 * @param delay milliseconds
+	 * @return handle cancelling further runs
+	 */
+	public Cancellable scheduleWithFixedDelay(Runnable task, long delay) {
+		PeriodicTask periodic = new PeriodicTask(task, delay);
+		periodic.schedule();
+		return periodic::cancel;
+	}
+
+	/**
+	 * Starts accepting connections on given server channel. Closing the channel stops accepting
+	 * @param channel bound server channel, it is switched to non-blocking mode
+	 * @param handler called with every accepted connection, which is in blocking mode
+	 * @throws IOException
+	 */
+	public void register(ServerSocketChannel channel, AcceptHandler handler) throws IOException {
+		channel.configureBlocking(false);
+		registerLater(() -> {
+			try {
+				channel.register(selector, SelectionKey.OP_ACCEPT, handler);
+			} catch (ClosedChannelException e) {
+				// agent stopped before its channel was registered
+			}
+		});
+	}
+
+	/**
+	 * Closes server channel registered with this runtime, its port is freed by the selector thread
+	 * @param channel
+	 * @throws IOException
+	 */
+	public void unregister(ServerSocketChannel channel) throws IOException {
+		channel.close();
+		selector.wakeup(); // key is deregistered, and socket closed, on next select
+	}
+
+	/**
+	 * Hands idle connection over to the selector, so it doesn't hold a thread until its next request.
+	 * Must not be called for connection with data already buffered by its reader
+	 * @param channel connection in blocking mode, it is switched to non-blocking mode until it is resumed
+	 * @param idleTimeout milliseconds after which connection without request expires
+	 * @param resume run on the executor when next request arrives or peer closes connection, channel is in blocking mode again
+	 * @param expire run on the executor when idle timeout passes, should close the channel. Timeout is checked every SWEEP_INTERVAL
+	 * @throws IOException
+	 */
+	public void park(SocketChannel channel, long idleTimeout, Runnable resume, Runnable expire) throws IOException {
+		channel.configureBlocking(false);
+		ParkedConnection parked = new ParkedConnection(channel, resume, expire, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(idleTimeout));
+		registerLater(() -> {
+			try {
+				channel.register(selector, SelectionKey.OP_READ, parked);
+			} catch (ClosedChannelException e) {
+				executor.execute(expire);
+			}
+		});
+	}
+
+	/**
+	 * Queues registration of channel, selector can be changed only by its own thread without blocking
+	 * @param registration
+	 */
+	private void registerLater(Runnable registration) {
+		registrations.add(registration);
+		selector.wakeup();
+	}
+
+	/**
+	 * Loop of the selector thread
+	 */
+	private void selectLoop() {
+		while(true) {
+			try {
+				if(selector.selectedKeys().isEmpty())
+					selector.select(SWEEP_INTERVAL);
+				else
+					selector.selectNow(); // keys selected while resuming connections are waiting
+				Runnable registration;
+				while((registration = registrations.poll()) != null)
+					registration.run();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if(!key.isValid())
+						continue;
+					if(key.isAcceptable())
+						accept(key);
+					else if(key.isReadable())
+						resumeLater(key);
+				}
+				resumeConnections();
+				expireConnections();
+			} catch (IOException | RuntimeException e) {
+				e.printStackTrace(); // selector serves all agents, it must keep running
+			}
+		}
+	}
+
+	/**
+	 * Cancels key of parked connection which became readable, connection can't be switched to blocking mode before its key is deregistered
+	 * @param key
+	 */
+	private void resumeLater(SelectionKey key) {
+		key.cancel();
+		resumed.add((ParkedConnection) key.attachment());
+	}
+
+	/**
+	 * Deregisters cancelled keys and hands connections with requests over to the executor
+	 * @throws IOException
+	 */
+	private void resumeConnections() throws IOException {
+		if(resumed.isEmpty())
+			return;
+		selector.selectNow(); // deregisters cancelled keys
+		for(ParkedConnection parked : resumed) {
+			try {
+				parked.channel.configureBlocking(true);
+				executor.execute(parked.resume);
+			} catch (IOException | RuntimeException e) {
+				executor.execute(parked.expire); // connection is broken, it is closed like expired one
+			}
+		}
+		resumed.clear();
+	}
+
+	/**
+	 * Hands parked connections idle longer than their timeout over to the executor to be closed, at most once per SWEEP_INTERVAL
+	 */
+	private void expireConnections() {
+		long now = System.nanoTime();
+		if(now - nextSweep < 0)
+			return;
+		nextSweep = now + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL);
+		for(SelectionKey key : selector.keys()) {
+			Object attachment = key.attachment();
+			if(key.isValid() && attachment instanceof ParkedConnection && now - ((ParkedConnection) attachment).deadline >= 0) {
+				key.cancel();
+				executor.execute(((ParkedConnection) attachment).expire); // closes channel, it is deregistered on next select
+			}
+		}
+	}
+
+	/**
+	 * Accepts all pending connections of a single server channel
+	 * @param key
+	 */
+	private void accept(SelectionKey key) {
+		ServerSocketChannel server = (ServerSocketChannel) key.channel();
+		AcceptHandler handler = (AcceptHandler) key.attachment();
+		while(true) {
+			SocketChannel channel;
+			try {
+				channel = server.accept();
+			} catch (IOException e) {
+				return; // channel closed by its agent or accept failed, other channels are served anyway
+			}
+			if(channel == null)
+				return;
+			try {
+				channel.configureBlocking(true);
+				handler.accepted(channel);
+			} catch (IOException | RuntimeException e) {
+				e.printStackTrace();
+				try {
+					channel.close();
+				} catch (IOException closing) {
+					// connection is dropped anyway
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates executor with virtual thread per task via reflection, so the code still runs on Java 8
+	 * @return executor, or null when JVM has no virtual threads
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null; // before Java 21, or preview not enabled
+		}
+	}
+
+	/**
+	 * Returns factory of daemon threads with given name prefix, so runtime's threads don't keep the JVM alive
+	 * @param name
+	 * @return thread factory
+	 */
+	private static ThreadFactory daemonThreads(String name) {
+		AtomicInteger created = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, name + "-" + created.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+}
@@ -0,0 +1,97 @@
+package networkOfCounters;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Body of HTTP/1.1 response sent with chunked transfer encoding, so it's streamed while it's written instead of being
+ * held in memory until its length is known. Data is collected into chunks of a fixed size, finish() sends the last chunk
+ * and leaves the connection open for the next request
+ * @author Grzegorz Golebiowski
+ *
+ */
+class ChunkedOutputStream extends OutputStream {
+
+	private static final int CHUNK_SIZE = 8192;
+	private static final byte[] CRLF = {'\r', '\n'};
+	private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	private final OutputStream out;
+	private final byte[] buffer = new byte[CHUNK_SIZE];
+	private int count;
+	private boolean finished;
+
+	/**
+	 * @param out stream of the connection, headers of the response are already written
+	 */
+	ChunkedOutputStream(OutputStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if(count == buffer.length)
+			sendBuffer();
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if(len >= buffer.length) { // large arrays, e.g. cached parts of the page, go as their own chunk
+			sendBuffer();
+			sendChunk(b, off, len);
+			return;
+		}
+		if(len > buffer.length - count)
+			sendBuffer();
+		System.arraycopy(b, off, buffer, count, len);
+		count += len;
+	}
+
+	/**
+	 * Sends collected data as a chunk and pushes it to the client
+	 */
+	@Override
+	public void flush() throws IOException {
+		sendBuffer();
+		out.flush();
+	}
+
+	/**
+	 * Sends collected data and the last chunk, which ends the body. Connection isn't closed
+	 * @throws IOException
+	 */
+	void finish() throws IOException {
+		if(finished)
+			return;
+		sendBuffer();
+		finished = true;
+		out.write(LAST_CHUNK);
+		out.flush();
+	}
+
+	/**
+	 * Ends the body, the same as finish()
+	 */
+	@Override
+	public void close() throws IOException {
+		finish();
+	}
+
+	private void sendBuffer() throws IOException {
+		if(count > 0) {
+			sendChunk(buffer, 0, count);
+			count = 0;
+		}
+	}
+
+	private void sendChunk(byte[] b, int off, int len) throws IOException {
+		if(finished)
+			throw new IOException("Body already finished");
+		out.write(Integer.toHexString(len).getBytes(StandardCharsets.US_ASCII));
+		out.write(CRLF);
+		out.write(b, off, len);
+		out.write(CRLF);
+	}
+}
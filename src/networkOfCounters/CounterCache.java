@@ -0,0 +1,70 @@
+package networkOfCounters;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recent counters of agent's peers, taken from VAL answers and from counters piggybacked on ACK answers and HBT requests.
+ * Counter of a peer grows by one every millisecond, so a reading is aged forward with local monotonic clock
+ * instead of being fetched again, until it's older than AgentConfig.getCounterCacheTtl()
+ * @author Grzegorz Golebiowski
+ *
+ */
+public class CounterCache {
+
+	/**
+	 * Counter of a peer and the moment it was received
+	 */
+	private static class Reading {
+		final long value;
+		final long time; // System.nanoTime()
+
+		Reading(long value, long time) {
+			this.value = value;
+			this.time = time;
+		}
+	}
+
+	private final AgentConfig config;
+	private final Map<String, Reading> readings = new ConcurrentHashMap<>();
+
+	public CounterCache(AgentConfig config) {
+		this.config = config;
+	}
+
+	/**
+	 * Records counter received from a peer
+	 * @param peer IP address and port
+	 * @param counter
+	 */
+	public void put(String peer, long counter) {
+		if(config.getCounterCacheTtl() > 0)
+			readings.put(peer, new Reading(counter, System.nanoTime()));
+	}
+
+	/**
+	 * Returns counter of a peer aged by the time since it was received
+	 * @param peer
+	 * @return counter now, null if peer's counter isn't known or is older than AgentConfig.getCounterCacheTtl()
+	 */
+	public Long get(String peer) {
+		Reading reading = readings.get(peer);
+		if(reading == null)
+			return null;
+		long age = System.nanoTime() - reading.time;
+		if(age >= TimeUnit.MILLISECONDS.toNanos(config.getCounterCacheTtl())) {
+			readings.remove(peer, reading);
+			return null;
+		}
+		return reading.value + TimeUnit.NANOSECONDS.toMillis(age);
+	}
+
+	/**
+	 * Drops counter of a peer, e.g. when it leaves the network
+	 * @param peer
+	 */
+	public void forget(String peer) {
+		readings.remove(peer);
+	}
+}
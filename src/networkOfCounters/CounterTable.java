@@ -0,0 +1,218 @@
+package networkOfCounters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Named counters of an agent, kept in primitive arrays, so thousands of counters don't cost a boxed value and a map entry each.
+ * Counter is identified by a 64-bit hash of its name, the same on every agent, so frames carry ids instead of names.
+ * Like the agent's own counter, every named counter grows by one every millisecond and is stored as offset from agent's clock.
+ * Counters are kept densely in the order of creation, open addressing index maps ids to their slots
+ * @author Grzegorz Golebiowski
+ *
+ */
+public class CounterTable {
+
+	private static final int INITIAL_CAPACITY = 16;
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * Sums of named counters received from peers during a single averaging round, indexed by slots of the table
+	 */
+	public class Round {
+		private final long start; // clock of the agent when round started, milliseconds
+		private final int ownCount; // counters which existed when round started, later ones were learned from peers
+		private long[] sums;
+		private int[] counts;
+		private boolean finished; // answers arriving after finishRound are ignored
+
+		private Round(long start, int ownCount, int capacity) {
+			this.start = start;
+			this.ownCount = ownCount;
+			this.sums = new long[capacity];
+			this.counts = new int[capacity];
+		}
+
+		/**
+		 * Adds counters carried by VAL answer of a peer. Counters this agent doesn't have are created with the received value,
+		 * until finishRound sets them to the average. Answers which come after the round was finished are ignored
+		 * @param frame
+		 */
+		public void add(Frame frame) {
+			synchronized(CounterTable.this) {
+				if(finished)
+					return;
+				for(int i = 0; i < frame.getCounterCount(); i++) {
+					int created = size;
+					int slot = getOrCreateSlot(frame.getCounterId(i), null);
+					if(slot == created)
+						offsets[slot] = frame.getCounterValue(i) - start; // value of the peer read close to the start of the round
+					if(slot >= sums.length) {
+						sums = Arrays.copyOf(sums, ids.length);
+						counts = Arrays.copyOf(counts, ids.length);
+					}
+					sums[slot] += frame.getCounterValue(i);
+					counts[slot]++;
+				}
+			}
+		}
+	}
+
+	private long[] ids = new long[INITIAL_CAPACITY];
+	private long[] offsets = new long[INITIAL_CAPACITY]; // counter value = agent's clock + offset
+	private String[] names = new String[INITIAL_CAPACITY]; // null for counters learned from peers
+	private int[] index = new int[INITIAL_CAPACITY * 2]; // slot + 1 at position given by id, 0 when empty
+	private int size;
+
+	/**
+	 * Returns id of a counter, its FNV-1a hash
+	 * @param name
+	 * @return id
+	 */
+	public static long idOf(String name) {
+		long hash = FNV_OFFSET_BASIS;
+		for(int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			hash = (hash ^ (c & 0xFF)) * FNV_PRIME;
+			hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+		}
+		return hash;
+	}
+
+	/**
+	 * Sets counter, creating it if it doesn't exist
+	 * @param name
+	 * @param value
+	 * @param now clock of the agent, milliseconds
+	 */
+	public synchronized void set(String name, long value, long now) {
+		int slot = getOrCreateSlot(idOf(name), name); // may grow the arrays
+		offsets[slot] = value - now;
+	}
+
+	/**
+	 * Returns value of a counter
+	 * @param name
+	 * @param now clock of the agent, milliseconds
+	 * @return counter value
+	 * @throws IllegalArgumentException when there is no such counter
+	 */
+	public synchronized long get(String name, long now) {
+		int slot = findSlot(idOf(name));
+		if(slot < 0)
+			throw new IllegalArgumentException("Unknown counter: " + name);
+		return now + offsets[slot];
+	}
+
+	public synchronized boolean contains(String name) {
+		return findSlot(idOf(name)) >= 0;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns names of counters, counters learned from peers by id only are named #id
+	 * @return names in the order of creation
+	 */
+	public synchronized List<String> getNames() {
+		List<String> result = new ArrayList<>(size);
+		for(int i = 0; i < size; i++)
+			result.add(names[i] != null ? names[i] : "#" + Long.toHexString(ids[i]));
+		return Collections.unmodifiableList(result);
+	}
+
+	/**
+	 * Appends all counters to VAL frame
+	 * @param frame
+	 * @param now clock of the agent, milliseconds
+	 */
+	public synchronized void writeTo(Frame frame, long now) {
+		for(int i = 0; i < size; i++)
+			frame.addCounter(ids[i], now + offsets[i]);
+	}
+
+	/**
+	 * Starts averaging round, values of counters at this moment are averaged with values received from peers
+	 * @param now clock of the agent, milliseconds
+	 * @return round to which answers of peers are added
+	 */
+	public synchronized Round startRound(long now) {
+		return new Round(now, size, ids.length);
+	}
+
+	/**
+	 * Sets every counter to the average of its value at the start of the round and values received from peers.
+	 * Counters learned from peers during the round are set to the average of received values
+	 * @param round
+	 * @param now clock of the agent, milliseconds
+	 */
+	public synchronized void finishRound(Round round, long now) {
+		round.finished = true;
+		int received = Math.min(size, round.sums.length);
+		for(int i = 0; i < received; i++) {
+			boolean own = i < round.ownCount;
+			int count = round.counts[i] + (own ? 1 : 0);
+			if(count == 0)
+				continue;
+			long sum = round.sums[i] + (own ? round.start + offsets[i] : 0);
+			offsets[i] = sum / count - now;
+		}
+	}
+
+	private int findSlot(long id) {
+		int mask = index.length - 1;
+		for(int position = mix(id) & mask; index[position] != 0; position = (position + 1) & mask) {
+			int slot = index[position] - 1;
+			if(ids[slot] == id)
+				return slot;
+		}
+		return -1;
+	}
+
+	private int getOrCreateSlot(long id, String name) {
+		int slot = findSlot(id);
+		if(slot >= 0) {
+			if(names[slot] == null)
+				names[slot] = name;
+			return slot;
+		}
+		if(size == ids.length)
+			grow();
+		slot = size++;
+		ids[slot] = id;
+		names[slot] = name;
+		insert(id, slot);
+		return slot;
+	}
+
+	private void grow() {
+		int capacity = ids.length * 2;
+		ids = Arrays.copyOf(ids, capacity);
+		offsets = Arrays.copyOf(offsets, capacity);
+		names = Arrays.copyOf(names, capacity);
+		index = new int[capacity * 2]; // load factor stays at most 0.5
+		for(int i = 0; i < size; i++)
+			insert(ids[i], i);
+	}
+
+	private void insert(long id, int slot) {
+		int mask = index.length - 1;
+		int position = mix(id) & mask;
+		while(index[position] != 0)
+			position = (position + 1) & mask;
+		index[position] = slot + 1;
+	}
+
+	private static int mix(long id) {
+		return (int) (id ^ (id >>> 32));
+	}
+}
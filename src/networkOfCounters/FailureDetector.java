@@ -0,0 +1,132 @@
+package networkOfCounters;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Phi accrual failure detector of agent's peers. Every answer and every frame received from a peer is its heartbeat,
+ * mean and variance of intervals between heartbeats are kept as moving averages, so the detector adapts to the traffic with each peer.
+ * Phi is -log10 of the probability that a heartbeat comes even later than now, given the intervals seen so far:
+ * peer is suspected when phi reaches AgentConfig.getSuspectPhi() and considered dead when it reaches AgentConfig.getDeadPhi()
+ * @author Grzegorz Golebiowski
+ *
+ */
+public class FailureDetector {
+
+	private static final double SMOOTHING = 0.125; // weight of the newest interval in the averages
+
+	/**
+	 * Heartbeats of a single peer
+	 */
+	private static class PeerState {
+		long last; // milliseconds, time of the last heartbeat
+		double mean; // milliseconds
+		double variance;
+
+		PeerState(long last, double mean, double deviation) {
+			this.last = last;
+			this.mean = mean;
+			this.variance = deviation * deviation;
+		}
+	}
+
+	private final AgentConfig config;
+	private final Map<String, PeerState> peers = new ConcurrentHashMap<>();
+
+	public FailureDetector(AgentConfig config) {
+		this.config = config;
+	}
+
+	/**
+	 * Records heartbeat of a peer. Heartbeats closer than half of AgentConfig.getHeartbeatInterval() to the previous one only
+	 * move its time, so bursts of frames don't shrink the expected interval
+	 * @param peer IP address and port
+	 */
+	public void heartbeat(String peer) {
+		long now = System.currentTimeMillis();
+		PeerState state = peers.get(peer);
+		if(state == null) {
+			peers.putIfAbsent(peer, newState(now));
+			return;
+		}
+		synchronized(state) {
+			long interval = now - state.last;
+			state.last = now;
+			if(interval < config.getHeartbeatInterval() / 2)
+				return;
+			double difference = interval - state.mean;
+			state.mean += SMOOTHING * difference;
+			state.variance = (1 - SMOOTHING) * (state.variance + SMOOTHING * difference * difference);
+		}
+	}
+
+	/**
+	 * Starts watching a peer which hasn't sent any heartbeat yet, as if its last heartbeat came now
+	 * @param peer
+	 */
+	public void watch(String peer) {
+		if(!peers.containsKey(peer))
+			peers.putIfAbsent(peer, newState(System.currentTimeMillis()));
+	}
+
+	/**
+	 * Stops watching a peer, e.g. when it has left the network
+	 * @param peer
+	 */
+	public void forget(String peer) {
+		peers.remove(peer);
+	}
+
+	/**
+	 * Returns suspicion level of a peer. Deviation of intervals is at least AgentConfig.getMinHeartbeatDeviation()
+	 * and AgentConfig.getAcceptableHeartbeatPause() is added to their mean, so a single late heartbeat doesn't make peer suspected
+	 * @param peer
+	 * @return phi, 0 for peer which isn't watched
+	 */
+	public double phi(String peer) {
+		PeerState state = peers.get(peer);
+		if(state == null)
+			return 0;
+		long silence;
+		double mean;
+		double deviation;
+		synchronized(state) {
+			silence = System.currentTimeMillis() - state.last;
+			mean = state.mean + config.getAcceptableHeartbeatPause();
+			deviation = Math.max(Math.sqrt(state.variance), config.getMinHeartbeatDeviation());
+		}
+		// logistic approximation of the normal distribution's tail
+		double y = (silence - mean) / deviation;
+		double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+		if(silence > mean)
+			return -Math.log10(e / (1 + e));
+		return -Math.log10(1 - 1 / (1 + e));
+	}
+
+	public boolean isSuspect(String peer) {
+		return phi(peer) >= config.getSuspectPhi();
+	}
+
+	public boolean isDead(String peer) {
+		return phi(peer) >= config.getDeadPhi();
+	}
+
+	/**
+	 * Returns time of the last heartbeat of a peer
+	 * @param peer
+	 * @return milliseconds, 0 for peer which isn't watched
+	 */
+	public long getLastHeartbeat(String peer) {
+		PeerState state = peers.get(peer);
+		if(state == null)
+			return 0;
+		synchronized(state) {
+			return state.last;
+		}
+	}
+
+	private PeerState newState(long now) {
+		long interval = config.getHeartbeatInterval();
+		return new PeerState(now, interval, interval / 4.0);
+	}
+}
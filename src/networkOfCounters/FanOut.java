@@ -0,0 +1,69 @@
+package networkOfCounters;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the same request to many peers at once and collects answers which came back before the deadline
+ * @author Grzegorz Golebiowski
+ *
+ */
+public class FanOut {
+
+	/**
+	 * Request sent to a single peer
+	 * @param <T> type of the answer
+	 */
+	public interface PeerCall<T> {
+		T call(String peer) throws IOException;
+	}
+
+	private final ExecutorService executor;
+
+	public FanOut(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Calls every given peer in parallel and waits until all of them answer or the deadline passes.
+	 * Calls still running after the deadline are cancelled and reported as timed out
+	 * @param peers IP addresses and ports of peers
+	 * @param call request sent to each peer
+	 * @param deadline milliseconds
+	 * @return answers, failures and timed out peers of the round
+	 * @throws InterruptedException
+	 */
+	public <T> FanOutResult<T> broadcast(Collection<String> peers, PeerCall<T> call, long deadline) throws InterruptedException {
+		Map<String, T> answers = new ConcurrentHashMap<>();
+		Map<String, IOException> failures = new ConcurrentHashMap<>();
+		Map<String, Long> durations = new ConcurrentHashMap<>();
+		Map<String, Future<?>> calls = new ConcurrentHashMap<>();
+		CountDownLatch finished = new CountDownLatch(peers.size());
+		long start = System.nanoTime();
+		for(String peer : peers) {
+			calls.put(peer, executor.submit(() -> {
+				try {
+					answers.put(peer, call.call(peer));
+				} catch (IOException e) {
+					failures.put(peer, e);
+				} finally {
+					durations.put(peer, System.nanoTime() - start);
+					finished.countDown();
+				}
+			}));
+		}
+		boolean complete = finished.await(deadline, TimeUnit.MILLISECONDS);
+		FanOutResult<T> result = new FanOutResult<>(peers, answers, failures, durations, System.nanoTime() - start);
+		if(!complete) {
+			for(String peer : result.getTimedOut())
+				calls.get(peer).cancel(true);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,105 @@
+package networkOfCounters;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Outcome of a single FanOut round: which peers answered, which failed and which didn't make it before the deadline
+ * @author Grzegorz Golebiowski
+ *
+ * @param <T> type of the answers
+ */
+public class FanOutResult<T> {
+
+	private final Map<String, T> answers;
+	private final Map<String, IOException> failures;
+	private final Set<String> timedOut = new LinkedHashSet<>();
+	private String slowestPeer;
+	private long slowestTime; // nanoseconds
+
+	/**
+	 * Takes snapshot of answers and failures, so calls finishing after the deadline don't change the result
+	 * @param peers all peers of the round
+	 * @param answers
+	 * @param failures
+	 * @param durations time from the start of the round until the end of each finished call, nanoseconds
+	 * @param elapsed duration of the round, nanoseconds
+	 */
+	FanOutResult(Collection<String> peers, Map<String, T> answers, Map<String, IOException> failures, Map<String, Long> durations, long elapsed) {
+		this.answers = Collections.unmodifiableMap(new HashMap<>(answers));
+		this.failures = Collections.unmodifiableMap(new HashMap<>(failures));
+		for(String peer : peers) {
+			if(!this.answers.containsKey(peer) && !this.failures.containsKey(peer)) {
+				timedOut.add(peer);
+				if(slowestTime < elapsed) { // first timed out peer
+					slowestPeer = peer;
+					slowestTime = elapsed;
+				}
+				continue;
+			}
+			Long duration = durations.get(peer);
+			if(duration != null && (slowestPeer == null || duration > slowestTime)) {
+				slowestPeer = peer;
+				slowestTime = duration;
+			}
+		}
+	}
+
+	/**
+	 * Returns answers of peers which answered before the deadline
+	 * @return map of peer address to its answer
+	 */
+	public Map<String, T> getAnswers() {
+		return answers;
+	}
+
+	/**
+	 * Returns peers whose calls ended with an exception
+	 * @return map of peer address to the exception
+	 */
+	public Map<String, IOException> getFailures() {
+		return failures;
+	}
+
+	/**
+	 * Returns peers which didn't answer before the deadline
+	 * @return peers addresses
+	 */
+	public Set<String> getTimedOut() {
+		return Collections.unmodifiableSet(timedOut);
+	}
+
+	/**
+	 * Returns peer which answered last, or first of peers which didn't answer before the deadline
+	 * @return peer address, or null when there were no peers
+	 */
+	public String getSlowestPeer() {
+		return slowestPeer;
+	}
+
+	/**
+	 * Returns time after which the slowest peer answered, or duration of the round when it didn't answer
+	 * @return time in nanoseconds
+	 */
+	public long getSlowestTime() {
+		return slowestTime;
+	}
+
+	/**
+	 * Checks if every peer answered
+	 * @return true if there were no failures nor timeouts
+	 */
+	public boolean isComplete() {
+		return failures.isEmpty() && timedOut.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return "answered: " + answers.keySet() + ", failed: " + failures.keySet() + ", timed out: " + timedOut;
+	}
+}
@@ -0,0 +1,262 @@
+package networkOfCounters;
+
+import java.util.Arrays;
+
+/**
+ * Single binary message exchanged between agents. Instances are mutable and meant to be reused,
+ * so encoding and decoding with MessageUtils doesn't allocate
+ * @author Grzegorz Golebiowski
+ *
+ */
+public class Frame {
+
+	private static final int INITIAL_ADDRESSES_CAPACITY = 16;
+	private static final int INITIAL_COUNTERS_CAPACITY = 16;
+
+	private byte version = MessageUtils.PROTOCOL_VERSION;
+	private byte opcode;
+	private int ip; // IPv4 address of the sender
+	private int port; // port of the sender
+	private long value; // counter value carried by VAL, ACK and HBT, epoch carried by PSH, AGG, SUM, AVG and LVE, membership version carried by NET and LST, sequence number of PN-counter carried by DLT and DLR, backoff carried by BSY
+	private byte mode; // sync mode carried by LST and MOD
+	private double mass; // push-sum share carried by PSH and LVE
+	private double weight;
+	private long aggregate; // sum of counters carried by SUM, their average carried by AVG
+	private int count; // number of counters summed in aggregate
+	private long since; // sequence number of the receiver up to which DLT sender has merged its pairs
+	private boolean snapshot; // LST carries all members instead of changes
+	private int addressCount; // number of addresses carried by LST, AGG, DLT, DLR and LVE
+	private long[] addresses = new long[INITIAL_ADDRESSES_CAPACITY]; // packed with MessageUtils.packAddress
+	private byte[] operations = new byte[INITIAL_ADDRESSES_CAPACITY]; // Membership.ADDED or REMOVED of each address
+	private long[] increments = new long[INITIAL_ADDRESSES_CAPACITY]; // PN-counter pair of each address carried by DLT, DLR and LVE
+	private long[] decrements = new long[INITIAL_ADDRESSES_CAPACITY];
+	private int counterCount; // number of named counters carried by VAL
+	private long[] counterIds = new long[INITIAL_COUNTERS_CAPACITY]; // CounterTable.idOf names
+	private long[] counterValues = new long[INITIAL_COUNTERS_CAPACITY];
+
+	/**
+	 * Sets header of the frame and clears its payload
+	 * @param opcode
+	 * @param ip
+	 * @param port
+	 * @return this frame
+	 */
+	public Frame set(byte opcode, int ip, int port) {
+		this.version = MessageUtils.PROTOCOL_VERSION;
+		this.opcode = opcode;
+		this.ip = ip;
+		this.port = port;
+		this.value = 0;
+		this.mode = 0;
+		this.mass = 0;
+		this.weight = 0;
+		this.aggregate = 0;
+		this.count = 0;
+		this.since = 0;
+		this.snapshot = false;
+		this.addressCount = 0;
+		this.counterCount = 0;
+		return this;
+	}
+
+	/**
+	 * Appends change of membership to the payload
+	 * @param operation Membership.ADDED or REMOVED
+	 * @param packedAddress
+	 */
+	public void addAddress(byte operation, long packedAddress) {
+		if(addressCount == addresses.length) {
+			long[] grown = new long[addresses.length * 2];
+			System.arraycopy(addresses, 0, grown, 0, addressCount);
+			addresses = grown;
+			byte[] grownOperations = new byte[operations.length * 2];
+			System.arraycopy(operations, 0, grownOperations, 0, addressCount);
+			operations = grownOperations;
+		}
+		operations[addressCount] = operation;
+		addresses[addressCount++] = packedAddress;
+	}
+
+	/**
+	 * Appends address of an agent of the subtree carried by AGG
+	 * @param packedAddress
+	 */
+	public void addAddress(long packedAddress) {
+		addAddress(Membership.ADDED, packedAddress);
+	}
+
+	/**
+	 * Appends PN-counter pair of an agent to the payload of DLT, DLR or LVE
+	 * @param packedAddress agent which made the increments and decrements
+	 * @param increments
+	 * @param decrements
+	 */
+	public void addPair(long packedAddress, long increments, long decrements) {
+		addAddress(packedAddress);
+		if(this.increments.length < addresses.length) {
+			this.increments = Arrays.copyOf(this.increments, addresses.length);
+			this.decrements = Arrays.copyOf(this.decrements, addresses.length);
+		}
+		this.increments[addressCount - 1] = increments;
+		this.decrements[addressCount - 1] = decrements;
+	}
+
+	/**
+	 * Appends named counter to the payload of VAL
+	 * @param id CounterTable.idOf name of the counter
+	 * @param value
+	 */
+	public void addCounter(long id, long value) {
+		if(counterCount == counterIds.length) {
+			counterIds = Arrays.copyOf(counterIds, counterCount * 2);
+			counterValues = Arrays.copyOf(counterValues, counterCount * 2);
+		}
+		counterIds[counterCount] = id;
+		counterValues[counterCount++] = value;
+	}
+
+	void clearAddresses() {
+		addressCount = 0;
+	}
+
+	public byte getVersion() {
+		return version;
+	}
+
+	void setVersion(byte version) {
+		this.version = version;
+	}
+
+	public byte getOpcode() {
+		return opcode;
+	}
+
+	public int getIP() {
+		return ip;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public long getValue() {
+		return value;
+	}
+
+	public Frame setValue(long value) {
+		this.value = value;
+		return this;
+	}
+
+	public byte getMode() {
+		return mode;
+	}
+
+	public Frame setMode(byte mode) {
+		this.mode = mode;
+		return this;
+	}
+
+	public double getMass() {
+		return mass;
+	}
+
+	public double getWeight() {
+		return weight;
+	}
+
+	/**
+	 * Sets push-sum share carried by PSH or LVE
+	 * @param mass
+	 * @param weight
+	 * @return this frame
+	 */
+	public Frame setShare(double mass, double weight) {
+		this.mass = mass;
+		this.weight = weight;
+		return this;
+	}
+
+	public long getAggregate() {
+		return aggregate;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Sets sum of counters carried by SUM or their average carried by AVG
+	 * @param aggregate
+	 * @param count number of summed counters, not sent by AVG
+	 * @return this frame
+	 */
+	public Frame setAggregate(long aggregate, int count) {
+		this.aggregate = aggregate;
+		this.count = count;
+		return this;
+	}
+
+	public long getSince() {
+		return since;
+	}
+
+	public Frame setSince(long since) {
+		this.since = since;
+		return this;
+	}
+
+	public int getAddressCount() {
+		return addressCount;
+	}
+
+	public long getAddress(int index) {
+		return addresses[index];
+	}
+
+	public byte getOperation(int index) {
+		return operations[index];
+	}
+
+	public long getIncrements(int index) {
+		return increments[index];
+	}
+
+	public long getDecrements(int index) {
+		return decrements[index];
+	}
+
+	public int getCounterCount() {
+		return counterCount;
+	}
+
+	public long getCounterId(int index) {
+		return counterIds[index];
+	}
+
+	public long getCounterValue(int index) {
+		return counterValues[index];
+	}
+
+	public boolean isSnapshot() {
+		return snapshot;
+	}
+
+	public Frame setSnapshot(boolean snapshot) {
+		this.snapshot = snapshot;
+		return this;
+	}
+
+	/**
+	 * Returns sender's address in IP:port form
+	 * @return sender address
+	 */
+	public String getSender() {
+		return MessageUtils.addressToString(ip, port);
+	}
+
+	@Override
+	public String toString() {
+		return MessageUtils.getSegment(MessageUtils.getFlagName(opcode), MessageUtils.ipToString(ip), port);
+	}
+}
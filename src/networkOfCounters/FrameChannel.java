@@ -0,0 +1,233 @@
+package networkOfCounters;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends and receives frames on a socket, reusing its buffers and frames between messages
+ * @author Grzegorz Golebiowski
+ *
+ */
+public class FrameChannel implements Closeable {
+
+	private static final int INITIAL_BUFFER_SIZE = 256;
+
+	private final Socket socket;
+	private final DataInputStream in;
+	private final OutputStream out;
+	private final Frame inbound = new Frame();
+	private final Frame outbound = new Frame();
+	private final AgentMetrics metrics; // may be null
+	private ByteBuffer inBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private ByteBuffer outBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private int frameReadTimeout; // milliseconds, 0 when rest of a frame is read with timeout of the socket
+	private volatile long writeStart; // System.nanoTime() when write in progress started, 0 when there is none
+	private long framesWritten; // frames written whole
+	private byte lastWrittenOpcode; // opcode of the frame written last
+	private long framesStarted; // frames of which at least one byte was read
+
+	public FrameChannel(Socket socket) throws IOException {
+		this(socket, null);
+	}
+
+	/**
+	 * Creates channel which records bytes and latencies of its calls
+	 * @param socket
+	 * @param metrics metrics of the agent owning the channel, may be null
+	 * @throws IOException
+	 */
+	public FrameChannel(Socket socket, AgentMetrics metrics) throws IOException {
+		this.socket = socket;
+		this.metrics = metrics;
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		this.out = socket.getOutputStream();
+	}
+
+	/**
+	 * Returns reusable frame to be filled and sent
+	 * @return outbound frame
+	 */
+	public Frame outbound() {
+		return outbound;
+	}
+
+	/**
+	 * Returns frame received last
+	 * @return inbound frame, valid until next call of receive
+	 */
+	public Frame inbound() {
+		return inbound;
+	}
+
+	/**
+	 * Sends frame as a single write
+	 * @param frame
+	 * @throws IOException
+	 */
+	public void send(Frame frame) throws IOException {
+		int length = MessageUtils.getEncodedLength(frame);
+		if(outBuffer.capacity() < length)
+			outBuffer = ByteBuffer.allocate(Math.max(length, outBuffer.capacity() * 2));
+		outBuffer.clear();
+		MessageUtils.encode(frame, outBuffer);
+		writeStart = System.nanoTime() | 1; // never 0 while writing
+		try {
+			out.write(outBuffer.array(), 0, outBuffer.position());
+			out.flush();
+		} finally {
+			writeStart = 0;
+		}
+		framesWritten++;
+		lastWrittenOpcode = frame.getOpcode();
+		if(metrics != null)
+			metrics.addBytesSent(length);
+	}
+
+	/**
+	 * Blocks until next frame arrives. When frame read timeout is set, the rest of the frame has to arrive within it after its length
+	 * @return received frame, valid until next call of receive
+	 * @throws IOException
+	 * @throws SocketTimeoutException when frame or its rest didn't arrive in time
+	 * @throws EOFException when peer closed connection
+	 */
+	public Frame receive() throws IOException {
+		in.mark(1);
+		if(in.read() < 0)
+			throw new EOFException("Connection closed by peer");
+		in.reset();
+		framesStarted++; // peer has started to answer
+		int length = in.readInt();
+		MessageUtils.checkLength(length);
+		if(inBuffer.capacity() < length)
+			inBuffer = ByteBuffer.allocate(Math.max(length, inBuffer.capacity() * 2));
+		inBuffer.clear();
+		if(frameReadTimeout > 0 && in.available() < length) {
+			int idleTimeout = socket.getSoTimeout();
+			socket.setSoTimeout(frameReadTimeout);
+			try {
+				in.readFully(inBuffer.array(), 0, length);
+			} finally {
+				socket.setSoTimeout(idleTimeout);
+			}
+		} else {
+			in.readFully(inBuffer.array(), 0, length);
+		}
+		inBuffer.limit(length);
+		MessageUtils.decode(inBuffer, inbound);
+		if(metrics != null)
+			metrics.addBytesReceived(MessageUtils.LENGTH_PREFIX_SIZE + length);
+		return inbound;
+	}
+
+	/**
+	 * Waits until next frame starts to arrive, without consuming any of its bytes
+	 * @param timeout milliseconds
+	 * @return true if data is available, false if nothing arrived before the timeout
+	 * @throws IOException
+	 * @throws EOFException when peer closed connection
+	 */
+	public boolean awaitInput(int timeout) throws IOException {
+		if(in.available() > 0)
+			return true;
+		int idleTimeout = socket.getSoTimeout();
+		socket.setSoTimeout(timeout);
+		try {
+			in.mark(1);
+			if(in.read() < 0)
+				throw new EOFException();
+			in.reset(); // byte stays buffered for receive
+			return true;
+		} catch (SocketTimeoutException e) {
+			return false; // nothing was read, stream is intact
+		} finally {
+			socket.setSoTimeout(idleTimeout);
+		}
+	}
+
+	/**
+	 * Sends request and waits for the response
+	 * @param request
+	 * @return response, valid until next call of receive
+	 * @throws IOException
+	 * @throws ProtocolException when receiving agent answers with ERR
+	 * @throws AgentBusyException when receiving agent answers with BSY, connection can be used further
+	 */
+	public Frame call(Frame request) throws IOException {
+		byte opcode = request.getOpcode();
+		long start = System.nanoTime();
+		try {
+			send(request);
+			Frame response = receive();
+			if(response.getOpcode() == MessageUtils.ERR)
+				throw new ProtocolException("Flag " + MessageUtils.getFlagName(opcode) + " rejected by agent " + response.getSender());
+			if(response.getOpcode() == MessageUtils.BSY)
+				throw new AgentBusyException(response.getSender(), MessageUtils.getFlagName(opcode), response.getValue());
+			if(metrics != null)
+				metrics.recordClient(opcode, System.nanoTime() - start);
+			return response;
+		} catch (IOException e) {
+			if(metrics != null)
+				metrics.recordFailure(opcode, e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Sets time in which the rest of a frame has to arrive once its length was read
+	 * @param frameReadTimeout milliseconds, 0 waits with timeout of the socket
+	 */
+	public void setFrameReadTimeout(int frameReadTimeout) {
+		this.frameReadTimeout = frameReadTimeout;
+	}
+
+	/**
+	 * Checks whether a write has been blocked for longer than given time, e.g. because the peer doesn't read its answers
+	 * @param timeoutNanos
+	 * @return true if write in progress started before the timeout
+	 */
+	public boolean isWriteStalled(long timeoutNanos) {
+		long start = writeStart;
+		return start != 0 && System.nanoTime() - start > timeoutNanos;
+	}
+
+	/**
+	 * Returns number of frames written whole, compared before and after an exchange shows whether its request left this agent
+	 * @return frames written
+	 */
+	public long getFramesWritten() {
+		return framesWritten;
+	}
+
+	/**
+	 * Returns opcode of the frame written last
+	 * @return opcode from MessageUtils, 0 when nothing was written
+	 */
+	public byte getLastWrittenOpcode() {
+		return lastWrittenOpcode;
+	}
+
+	/**
+	 * Returns number of frames of which at least one byte was received
+	 * @return frames started
+	 */
+	public long getFramesStarted() {
+		return framesStarted;
+	}
+
+	public Socket getSocket() {
+		return socket;
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+}
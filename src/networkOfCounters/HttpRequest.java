@@ -0,0 +1,156 @@
+package networkOfCounters;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Single HTTP request received by the monitor: request line, headers and body of Content-Length bytes.
+ * Parameters of application/x-www-form-urlencoded body, e.g. sent by a form with POST method, are added to the query parameters
+ * @author Grzegorz Golebiowski
+ *
+ */
+public class HttpRequest {
+
+	private static final int MAX_HEADERS = 100;
+	private static final int MAX_BODY_LENGTH = 64 * 1024; // bytes
+	private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+
+	private final String requestLine;
+	private final String method;
+	private final String path;
+	private final String query; // without '?', empty when there is no query
+	private final String version;
+	private final Map<String, String> headers = new HashMap<>(); // lower case names
+	private String body = "";
+	private QueryString parameters; // parsed on first use
+
+	private HttpRequest(String requestLine, String method, String target, String version) {
+		this.requestLine = requestLine;
+		this.method = method;
+		this.version = version;
+		int queryStart = target.indexOf('?');
+		this.path = queryStart < 0 ? target : target.substring(0, queryStart);
+		this.query = queryStart < 0 ? "" : target.substring(queryStart + 1);
+	}
+
+	/**
+	 * Reads next request from the connection
+	 * @param in
+	 * @return request, or null when connection was closed before next request
+	 * @throws IOException when request is malformed or connection failed
+	 */
+	public static HttpRequest read(BufferedReader in) throws IOException {
+		String line;
+		do { // empty lines between requests are allowed
+			line = in.readLine();
+			if(line == null)
+				return null;
+		} while(line.isEmpty());
+		int methodEnd = line.indexOf(' ');
+		int targetEnd = line.indexOf(' ', methodEnd + 1);
+		if(methodEnd <= 0 || targetEnd <= methodEnd + 1 || !line.startsWith("HTTP/", targetEnd + 1))
+			throw new IOException("Malformed request line: " + line);
+		HttpRequest request = new HttpRequest(line, line.substring(0, methodEnd), line.substring(methodEnd + 1, targetEnd), line.substring(targetEnd + 1));
+		while((line = in.readLine()) != null && !line.isEmpty()) {
+			int separator = line.indexOf(':');
+			if(separator > 0 && request.headers.size() < MAX_HEADERS)
+				request.headers.put(line.substring(0, separator).trim().toLowerCase(Locale.ROOT), line.substring(separator + 1).trim());
+		}
+		request.body = readBody(in, request);
+		return request;
+	}
+
+	/**
+	 * Reads body of given length, so the next request on the connection starts after it
+	 * @param in
+	 * @param request request whose headers were read
+	 * @return body, empty when there is no Content-Length
+	 * @throws IOException when body is too long, sent in chunks or cut off
+	 */
+	private static String readBody(BufferedReader in, HttpRequest request) throws IOException {
+		String transferEncoding = request.getHeader("transfer-encoding");
+		if(transferEncoding != null && !transferEncoding.equalsIgnoreCase("identity"))
+			throw new IOException("Unsupported transfer encoding of request body: " + transferEncoding);
+		String contentLength = request.getHeader("content-length");
+		if(contentLength == null)
+			return "";
+		int length;
+		try {
+			length = Integer.parseInt(contentLength);
+		} catch (NumberFormatException e) {
+			throw new IOException("Malformed Content-Length: " + contentLength);
+		}
+		if(length < 0 || length > MAX_BODY_LENGTH)
+			throw new IOException("Incorrect Content-Length: " + length);
+		StringBuilder body = new StringBuilder(length);
+		for(int bytes = 0; bytes < length; ) { // reader decodes UTF-8, length counts bytes
+			int c = in.read();
+			if(c < 0)
+				throw new IOException("Request body cut off after " + bytes + " of " + length + " bytes");
+			body.append((char) c);
+			bytes += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate((char) c) ? 2 : 3; // surrogate pair has 4 bytes
+		}
+		return body.toString();
+	}
+
+	/**
+	 * Checks whether connection should stay open after the response: default for HTTP/1.1, on request for HTTP/1.0
+	 * @return true if connection is persistent
+	 */
+	public boolean isKeepAlive() {
+		String connection = getHeader("connection");
+		if(connection != null && connection.equalsIgnoreCase("close"))
+			return false;
+		if(version.equals("HTTP/1.0"))
+			return connection != null && connection.equalsIgnoreCase("keep-alive");
+		return true;
+	}
+
+	/**
+	 * Returns decoded value of given query parameter
+	 * @param name
+	 * @return value, or null when parameter is missing
+	 * @throws IllegalArgumentException when value contains malformed escape
+	 */
+	public String getParameter(String name) {
+		if(parameters == null)
+			parameters = new QueryString(isForm() ? query + "&" + body : query); // query parameters come first
+		return parameters.get(name);
+	}
+
+	private boolean isForm() {
+		String contentType = getHeader("content-type");
+		return !body.isEmpty() && contentType != null && contentType.toLowerCase(Locale.ROOT).startsWith(FORM_CONTENT_TYPE);
+	}
+
+	public String getHeader(String name) {
+		return headers.get(name.toLowerCase(Locale.ROOT));
+	}
+
+	public String getRequestLine() {
+		return requestLine;
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public String getQuery() {
+		return query;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	public String getBody() {
+		return body;
+	}
+}
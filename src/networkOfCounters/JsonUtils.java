@@ -0,0 +1,36 @@
+package networkOfCounters;
+
+/**
+ * Additional class for writing JSON responses of the monitor
+ * @author Grzegorz Golebiowski
+ *
+ */
+public class JsonUtils {
+
+	/**
+	 * Returns given text as JSON string literal
+	 * @param text
+	 * @return quoted and escaped text, or null literal
+	 */
+	public static String quote(String text) {
+		if(text == null)
+			return "null";
+		StringBuilder quoted = new StringBuilder(text.length() + 2).append('"');
+		for(int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch(c) {
+				case '"': quoted.append("\\\""); break;
+				case '\\': quoted.append("\\\\"); break;
+				case '\n': quoted.append("\\n"); break;
+				case '\r': quoted.append("\\r"); break;
+				case '\t': quoted.append("\\t"); break;
+				default:
+					if(c < 0x20)
+						quoted.append(String.format("\\u%04x", (int) c));
+					else
+						quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+}
@@ -0,0 +1,63 @@
+package networkOfCounters;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations with fixed buckets from 50 microseconds to 10 seconds,
+ * recording costs a few comparisons and two atomic increments
+ * @author Grzegorz Golebiowski
+ *
+ */
+public class LatencyHistogram {
+
+	private static final long[] BOUNDS = { // upper bounds of buckets in nanoseconds, last bucket has no bound
+			50_000L, 100_000L, 250_000L, 500_000L,
+			1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L, 100_000_000L, 250_000_000L, 500_000_000L,
+			1_000_000_000L, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L};
+
+	private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+	private final AtomicLong sum = new AtomicLong(); // nanoseconds
+
+	/**
+	 * Records single duration
+	 * @param nanos duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		int bucket = 0;
+		while(bucket < BOUNDS.length && nanos > BOUNDS[bucket])
+			bucket++;
+		counts.incrementAndGet(bucket);
+		sum.addAndGet(nanos);
+	}
+
+	/**
+	 * Returns number of buckets, including the last one without upper bound
+	 * @return number of buckets
+	 */
+	public static int getBucketCount() {
+		return BOUNDS.length + 1;
+	}
+
+	/**
+	 * Returns upper bound of given bucket
+	 * @param bucket
+	 * @return bound in nanoseconds, Long.MAX_VALUE for the last bucket
+	 */
+	public static long getBound(int bucket) {
+		return bucket < BOUNDS.length ? BOUNDS[bucket] : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Returns number of durations recorded in given bucket only (not cumulative)
+	 * @param bucket
+	 * @return count
+	 */
+	public long getCount(int bucket) {
+		return counts.get(bucket);
+	}
+
+	public long getSum() {
+		return sum.get();
+	}
+}
@@ -0,0 +1,176 @@
+package networkOfCounters;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Versioned list of agent's peers. Every change gets next version number and is kept in a bounded log,
+ * so peers can ask only for changes made after the version they already know.
+ * Readers get immutable snapshots, which can be iterated while the list is being updated
+ * @author Grzegorz Golebiowski
+ *
+ */
+public class Membership {
+
+	public static final byte ADDED = 1;
+	public static final byte REMOVED = 2;
+
+	/**
+	 * Receives changes of the list, called while the list is locked
+	 */
+	public interface Listener {
+		void changed(byte operation, String address, long version);
+	}
+
+	/**
+	 * Single change of the list
+	 */
+	private static class Change {
+		final long version;
+		final byte operation;
+		final String address;
+
+		Change(long version, byte operation, String address) {
+			this.version = version;
+			this.operation = operation;
+			this.address = address;
+		}
+	}
+
+	private final AgentConfig config;
+	private final Set<String> members = new LinkedHashSet<>();
+	private final Deque<Change> changes = new ArrayDeque<>();
+	private final Map<String, Long> tombstones = new HashMap<>(); // removed address -> time of removal, stops re-adding it with old changes
+	private volatile List<String> snapshot = Collections.emptyList();
+	private volatile Set<String> snapshotSet = Collections.emptySet();
+	private long version;
+	private Listener listener; // may be null
+
+	public Membership(AgentConfig config) {
+		this.config = config;
+	}
+
+	public synchronized void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Replaces the list with members and version of a restarted agent. Log of changes is empty,
+	 * so peers which knew an older version get all members
+	 * @param version
+	 * @param restored
+	 */
+	public synchronized void restore(long version, Collection<String> restored) {
+		members.clear();
+		members.addAll(restored);
+		changes.clear();
+		this.version = version;
+		snapshot = Collections.unmodifiableList(new ArrayList<>(members));
+		snapshotSet = Collections.unmodifiableSet(new HashSet<>(members));
+	}
+
+	/**
+	 * Returns current members
+	 * @return immutable list of peers' IP addresses and ports
+	 */
+	public List<String> getMembers() {
+		return snapshot;
+	}
+
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	public int size() {
+		return snapshot.size();
+	}
+
+	public boolean contains(String address) {
+		return snapshotSet.contains(address);
+	}
+
+	/**
+	 * Adds address learned from another peer, unless it was removed recently
+	 * @param address
+	 * @return true if list has changed
+	 */
+	public synchronized boolean add(String address) {
+		Long removed = tombstones.get(address);
+		if(removed != null && System.currentTimeMillis() - removed < config.getTombstoneTimeout())
+			return false;
+		return addDirectly(address);
+	}
+
+	/**
+	 * Adds address of a peer which contacted this agent itself, so it's alive even if it was removed before
+	 * @param address
+	 * @return true if list has changed
+	 */
+	public synchronized boolean addDirectly(String address) {
+		tombstones.remove(address);
+		if(!members.add(address))
+			return false;
+		record(ADDED, address);
+		return true;
+	}
+
+	/**
+	 * Removes address from the list
+	 * @param address
+	 * @return true if list has changed
+	 */
+	public synchronized boolean remove(String address) {
+		tombstones.put(address, System.currentTimeMillis());
+		if(!members.remove(address))
+			return false;
+		record(REMOVED, address);
+		return true;
+	}
+
+	private void record(byte operation, String address) {
+		changes.addLast(new Change(++version, operation, address));
+		while(changes.size() > config.getMembershipLogSize())
+			changes.removeFirst();
+		snapshot = Collections.unmodifiableList(new ArrayList<>(members));
+		snapshotSet = Collections.unmodifiableSet(new HashSet<>(members));
+		if(listener != null)
+			listener.changed(operation, address, version);
+		long now = System.currentTimeMillis();
+		for(Iterator<Long> it = tombstones.values().iterator(); it.hasNext(); ) {
+			if(now - it.next() >= config.getTombstoneTimeout())
+				it.remove();
+		}
+	}
+
+	/**
+	 * Fills LST frame with changes made after given version, or with all members when the changes aren't in the log anymore
+	 * @param knownVersion version already known by the asking peer
+	 * @param frame LST frame
+	 */
+	public synchronized void writeChangesSince(long knownVersion, Frame frame) {
+		frame.setValue(version);
+		Change oldest = changes.peekFirst();
+		boolean inLog = knownVersion == version || (knownVersion > 0 && knownVersion < version && oldest != null && oldest.version <= knownVersion + 1);
+		if(!inLog) {
+			frame.setSnapshot(true);
+			for(String member : members)
+				frame.addAddress(ADDED, MessageUtils.packAddress(member));
+			return;
+		}
+		frame.setSnapshot(false);
+		for(Change change : changes) {
+			if(change.version > knownVersion)
+				frame.addAddress(change.operation, MessageUtils.packAddress(change.address));
+		}
+	}
+}
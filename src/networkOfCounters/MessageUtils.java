@@ -1,77 +1,412 @@
 package networkOfCounters;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.text.SimpleDateFormat;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
 
 /**
- * Additional class for sending data to agents and parsing sent segments  
+ * Additional class for encoding frames sent to agents and parsing sent segments.
+ * Frame layout (big-endian): int length of the rest | byte version | byte opcode | int IPv4 | short port | payload,
+ * where payload is long counter value, int count and count * (long counter id, long value) of named counters for VAL,
+ * long counter value for ACK and HBT, long known membership version for NET,
+ * byte sync mode, long membership version, byte snapshot flag, int count and count * (byte operation, int IPv4, short port) for LST,
+ * byte sync mode for MOD, long epoch, double mass and double weight for PSH, long epoch, int count and count * (int IPv4, short port) for AGG,
+ * long epoch, long sum and int count for SUM, long epoch and long average for AVG,
+ * long sequence number, long merged sequence number of the receiver, int count and count * (int IPv4, short port, long increments, long decrements) for DLT,
+ * long sequence number, int count and count * (int IPv4, short port, long increments, long decrements) for DLR,
+ * long milliseconds after which request should be retried for BSY,
+ * long epoch, double mass, double weight, int count and count * (int IPv4, short port, long increments, long decrements) for LVE and empty for other opcodes
  * @author Grzesiek
  *
  */
 public class MessageUtils {
-	
+
 	public static final int FLAG_START_INDEX = 0;
 	public static final int FLAG_END_INDEX = 3;
 	public static final int SEGMENT_IP_AND_PORT_INDEX = 1;
 	public static final String SEGMENT_SEPARATOR = "->";
-	public static final SimpleDateFormat SDF = new SimpleDateFormat("HH:mm:ss.SSS"); // time format with ms
-	
+
+	public static final byte PROTOCOL_VERSION = 2; // version 1 - segments sent as serialized Java objects
+	public static final int LENGTH_PREFIX_SIZE = 4;
+	public static final int HEADER_SIZE = 8; // version, opcode, IPv4, port
+	public static final int ADDRESS_SIZE = 6; // IPv4, port
+	public static final int CHANGE_SIZE = 1 + ADDRESS_SIZE; // operation, address
+	public static final int PAIR_SIZE = ADDRESS_SIZE + 2 * Long.BYTES; // address, increments, decrements
+	public static final int NAMED_COUNTER_SIZE = 2 * Long.BYTES; // id, value
+	public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+	private static final int LEGACY_STREAM_MAGIC = 0xACED; // first bytes of ObjectOutputStream used by version 1
+
+	// requests
+	public static final byte NET = 1;
+	public static final byte CLK = 2;
+	public static final byte SYN = 3;
+	public static final byte UPD = 4;
+	public static final byte DEL = 5;
+	public static final byte PSH = 6; // push-sum share
+	public static final byte MOD = 7; // change of sync mode
+	public static final byte HBT = 8; // heartbeat of failure detector
+	public static final byte AGG = 9; // aggregation of subtree's counters
+	public static final byte AVG = 10; // average pushed down the tree
+	public static final byte DLT = 11; // delta-state of PN-counter
+	public static final byte LVE = 12; // agent leaves the network, replaces DEL followed by SYN
+	// responses
+	public static final byte ACK = 16;
+	public static final byte LST = 17;
+	public static final byte VAL = 18;
+	public static final byte SUM = 19; // sum and count of subtree's counters
+	public static final byte DLR = 20; // delta-state of PN-counter sent back
+	public static final byte BSY = 21; // request rejected because agent is overloaded
+	public static final byte ERR = 31;
+
+	/**
+	 * Returns number of bytes needed to encode given frame, including length prefix
+	 * @param frame
+	 * @return encoded length
+	 */
+	public static int getEncodedLength(Frame frame) {
+		int length = LENGTH_PREFIX_SIZE + HEADER_SIZE;
+		switch(frame.getOpcode()) {
+			case VAL:
+				return length + Long.BYTES + Integer.BYTES + frame.getCounterCount() * NAMED_COUNTER_SIZE;
+			case ACK:
+			case HBT:
+			case NET:
+			case BSY:
+				return length + Long.BYTES;
+			case LST:
+				return length + Byte.BYTES + Long.BYTES + Byte.BYTES + Integer.BYTES + frame.getAddressCount() * CHANGE_SIZE;
+			case MOD:
+				return length + Byte.BYTES;
+			case PSH:
+				return length + Long.BYTES + 2 * Double.BYTES;
+			case AGG:
+				return length + Long.BYTES + Integer.BYTES + frame.getAddressCount() * ADDRESS_SIZE;
+			case SUM:
+				return length + 2 * Long.BYTES + Integer.BYTES;
+			case AVG:
+				return length + 2 * Long.BYTES;
+			case DLT:
+				return length + 2 * Long.BYTES + Integer.BYTES + frame.getAddressCount() * PAIR_SIZE;
+			case DLR:
+				return length + Long.BYTES + Integer.BYTES + frame.getAddressCount() * PAIR_SIZE;
+			case LVE:
+				return length + Long.BYTES + 2 * Double.BYTES + Integer.BYTES + frame.getAddressCount() * PAIR_SIZE;
+			default:
+				return length;
+		}
+	}
+
+	/**
+	 * Writes frame with its length prefix to a given buffer starting at its position
+	 * @param frame
+	 * @param buffer buffer with at least getEncodedLength(frame) bytes remaining
+	 */
+	public static void encode(Frame frame, ByteBuffer buffer) {
+		buffer.putInt(getEncodedLength(frame) - LENGTH_PREFIX_SIZE);
+		buffer.put(frame.getVersion());
+		buffer.put(frame.getOpcode());
+		buffer.putInt(frame.getIP());
+		buffer.putShort((short) frame.getPort());
+		switch(frame.getOpcode()) {
+			case VAL:
+				buffer.putLong(frame.getValue());
+				buffer.putInt(frame.getCounterCount());
+				for(int i = 0; i < frame.getCounterCount(); i++) {
+					buffer.putLong(frame.getCounterId(i));
+					buffer.putLong(frame.getCounterValue(i));
+				}
+				break;
+			case ACK:
+			case HBT:
+			case NET:
+			case BSY:
+				buffer.putLong(frame.getValue());
+				break;
+			case MOD:
+				buffer.put(frame.getMode());
+				break;
+			case PSH:
+				buffer.putLong(frame.getValue());
+				buffer.putDouble(frame.getMass());
+				buffer.putDouble(frame.getWeight());
+				break;
+			case AGG:
+				buffer.putLong(frame.getValue());
+				buffer.putInt(frame.getAddressCount());
+				for(int i = 0; i < frame.getAddressCount(); i++) {
+					long address = frame.getAddress(i);
+					buffer.putInt(getPackedIP(address));
+					buffer.putShort((short) getPackedPort(address));
+				}
+				break;
+			case SUM:
+				buffer.putLong(frame.getValue());
+				buffer.putLong(frame.getAggregate());
+				buffer.putInt(frame.getCount());
+				break;
+			case AVG:
+				buffer.putLong(frame.getValue());
+				buffer.putLong(frame.getAggregate());
+				break;
+			case DLT:
+				buffer.putLong(frame.getValue());
+				buffer.putLong(frame.getSince());
+				encodePairs(frame, buffer);
+				break;
+			case DLR:
+				buffer.putLong(frame.getValue());
+				encodePairs(frame, buffer);
+				break;
+			case LVE:
+				buffer.putLong(frame.getValue());
+				buffer.putDouble(frame.getMass());
+				buffer.putDouble(frame.getWeight());
+				encodePairs(frame, buffer);
+				break;
+			case LST:
+				buffer.put(frame.getMode());
+				buffer.putLong(frame.getValue());
+				buffer.put((byte) (frame.isSnapshot() ? 1 : 0));
+				buffer.putInt(frame.getAddressCount());
+				for(int i = 0; i < frame.getAddressCount(); i++) {
+					long address = frame.getAddress(i);
+					buffer.put(frame.getOperation(i));
+					buffer.putInt(getPackedIP(address));
+					buffer.putShort((short) getPackedPort(address));
+				}
+				break;
+			default:
+		}
+	}
+
+	private static void encodePairs(Frame frame, ByteBuffer buffer) {
+		buffer.putInt(frame.getAddressCount());
+		for(int i = 0; i < frame.getAddressCount(); i++) {
+			long address = frame.getAddress(i);
+			buffer.putInt(getPackedIP(address));
+			buffer.putShort((short) getPackedPort(address));
+			buffer.putLong(frame.getIncrements(i));
+			buffer.putLong(frame.getDecrements(i));
+		}
+	}
+
+	/**
+	 * Checks length prefix of incoming frame
+	 * @param length
+	 * @throws ProtocolException when length is out of range or data was sent by agent using serialized objects
+	 */
+	public static void checkLength(int length) throws ProtocolException {
+		if(length >>> 16 == LEGACY_STREAM_MAGIC)
+			throw new ProtocolException("Received serialized object stream, peer uses protocol version 1");
+		if(length < HEADER_SIZE || length > MAX_FRAME_LENGTH)
+			throw new ProtocolException("Incorrect frame length: " + length);
+	}
+
+	/**
+	 * Reads frame (without length prefix) from given buffer into given frame
+	 * @param buffer
+	 * @param frame
+	 * @throws ProtocolException when frame has unsupported version or is malformed
+	 */
+	public static void decode(ByteBuffer buffer, Frame frame) throws ProtocolException {
+		if(buffer.remaining() < HEADER_SIZE)
+			throw new ProtocolException("Frame shorter than header: " + buffer.remaining() + " bytes");
+		byte version = buffer.get();
+		if(version != PROTOCOL_VERSION)
+			throw new ProtocolException("Unsupported protocol version: " + version);
+		byte opcode = buffer.get();
+		int ip = buffer.getInt();
+		int port = buffer.getShort() & 0xFFFF;
+		frame.set(opcode, ip, port);
+		switch(opcode) {
+			case VAL:
+				checkPayload(buffer, opcode, Long.BYTES + Integer.BYTES, false);
+				frame.setValue(buffer.getLong());
+				int counters = buffer.getInt();
+				if(counters < 0 || counters > buffer.remaining() / NAMED_COUNTER_SIZE)
+					throw new ProtocolException("Incorrect number of counters: " + counters);
+				for(int i = 0; i < counters; i++)
+					frame.addCounter(buffer.getLong(), buffer.getLong());
+				break;
+			case ACK:
+			case HBT:
+			case NET:
+			case BSY:
+				checkPayload(buffer, opcode, Long.BYTES, true);
+				frame.setValue(buffer.getLong());
+				break;
+			case MOD:
+				checkPayload(buffer, opcode, Byte.BYTES, true);
+				frame.setMode(buffer.get());
+				break;
+			case PSH:
+				checkPayload(buffer, opcode, Long.BYTES + 2 * Double.BYTES, true);
+				frame.setValue(buffer.getLong());
+				frame.setShare(buffer.getDouble(), buffer.getDouble());
+				break;
+			case AGG:
+				checkPayload(buffer, opcode, Long.BYTES + Integer.BYTES, false);
+				frame.setValue(buffer.getLong());
+				int subtreeSize = buffer.getInt();
+				if(subtreeSize < 0 || subtreeSize > buffer.remaining() / ADDRESS_SIZE)
+					throw new ProtocolException("Incorrect number of addresses: " + subtreeSize);
+				for(int i = 0; i < subtreeSize; i++)
+					frame.addAddress(packAddress(buffer.getInt(), buffer.getShort() & 0xFFFF));
+				break;
+			case SUM:
+				checkPayload(buffer, opcode, 2 * Long.BYTES + Integer.BYTES, true);
+				frame.setValue(buffer.getLong());
+				frame.setAggregate(buffer.getLong(), buffer.getInt());
+				break;
+			case AVG:
+				checkPayload(buffer, opcode, 2 * Long.BYTES, true);
+				frame.setValue(buffer.getLong());
+				frame.setAggregate(buffer.getLong(), 0);
+				break;
+			case DLT:
+				checkPayload(buffer, opcode, 2 * Long.BYTES + Integer.BYTES, false);
+				frame.setValue(buffer.getLong());
+				frame.setSince(buffer.getLong());
+				decodePairs(buffer, frame);
+				break;
+			case DLR:
+				checkPayload(buffer, opcode, Long.BYTES + Integer.BYTES, false);
+				frame.setValue(buffer.getLong());
+				decodePairs(buffer, frame);
+				break;
+			case LVE:
+				checkPayload(buffer, opcode, Long.BYTES + 2 * Double.BYTES + Integer.BYTES, false);
+				frame.setValue(buffer.getLong());
+				frame.setShare(buffer.getDouble(), buffer.getDouble());
+				decodePairs(buffer, frame);
+				break;
+			case LST:
+				checkPayload(buffer, opcode, Byte.BYTES + Long.BYTES + Byte.BYTES + Integer.BYTES, false);
+				frame.setMode(buffer.get());
+				frame.setValue(buffer.getLong());
+				frame.setSnapshot(buffer.get() != 0);
+				int count = buffer.getInt();
+				if(count < 0 || count > buffer.remaining() / CHANGE_SIZE)
+					throw new ProtocolException("Incorrect number of addresses: " + count);
+				for(int i = 0; i < count; i++) {
+					byte operation = buffer.get();
+					frame.addAddress(operation, packAddress(buffer.getInt(), buffer.getShort() & 0xFFFF));
+				}
+				break;
+			default:
+		}
+	}
+
+	/**
+	 * Checks that payload of a frame is long enough to be read
+	 * @param buffer positioned after the header
+	 * @param opcode
+	 * @param size size of the payload, or of its fixed part
+	 * @param exact true if payload has only the fixed part
+	 * @throws ProtocolException when payload is too short, or longer than its fixed size
+	 */
+	private static void checkPayload(ByteBuffer buffer, byte opcode, int size, boolean exact) throws ProtocolException {
+		if(buffer.remaining() < size || exact && buffer.remaining() != size)
+			throw new ProtocolException("Incorrect payload length of " + getFlagName(opcode) + ": " + buffer.remaining() + " bytes");
+	}
+
+	private static void decodePairs(ByteBuffer buffer, Frame frame) throws ProtocolException {
+		int pairs = buffer.getInt();
+		if(pairs < 0 || pairs > buffer.remaining() / PAIR_SIZE)
+			throw new ProtocolException("Incorrect number of pairs: " + pairs);
+		for(int i = 0; i < pairs; i++)
+			frame.addPair(packAddress(buffer.getInt(), buffer.getShort() & 0xFFFF), buffer.getLong(), buffer.getLong());
+	}
+
 	/**
-	 * Sends given message to a given socket
-	 * @param socket
-	 * @param msg
-	 * @throws IOException
+	 * Returns flag name of given opcode, e.g. for logs
+	 * @param opcode
+	 * @return flag
 	 */
-	public static void sendMessage(Socket socket, String msg) throws IOException {
-		OutputStream oStream = socket.getOutputStream();
-		ObjectOutputStream oos = new ObjectOutputStream(oStream);
-		oos.writeUTF(msg);
-		oos.flush();
-	} 
-	
+	public static String getFlagName(byte opcode) {
+		switch(opcode) {
+			case NET: return "NET";
+			case CLK: return "CLK";
+			case SYN: return "SYN";
+			case UPD: return "UPD";
+			case DEL: return "DEL";
+			case PSH: return "PSH";
+			case MOD: return "MOD";
+			case HBT: return "HBT";
+			case AGG: return "AGG";
+			case AVG: return "AVG";
+			case DLT: return "DLT";
+			case LVE: return "LVE";
+			case ACK: return "ACK";
+			case LST: return "LST";
+			case VAL: return "VAL";
+			case SUM: return "SUM";
+			case DLR: return "DLR";
+			case BSY: return "BSY";
+			case ERR: return "ERR";
+			default: return "???";
+		}
+	}
+
 	/**
-	 * Sends Object to a given socket
-	 * @param socket
-	 * @param obj
-	 * @throws IOException
+	 * Converts dotted IPv4 address to int without allocating
+	 * @param IPAddress e.g. 127.0.0.1
+	 * @return address as int
 	 */
-	public static void sendObject(Socket socket, Object obj) throws IOException {
-		OutputStream oStream = socket.getOutputStream();
-		ObjectOutputStream oos = new ObjectOutputStream(oStream);
-		oos.writeObject(obj);
-		oos.flush();
+	public static int ipToInt(String IPAddress) {
+		int result = 0;
+		int octet = 0;
+		for(int i = 0; i < IPAddress.length(); i++) {
+			char c = IPAddress.charAt(i);
+			if(c == '.') {
+				result = (result << 8) | octet;
+				octet = 0;
+			} else {
+				octet = octet * 10 + (c - '0');
+			}
+		}
+		return (result << 8) | octet;
+	}
+
+	public static String ipToString(int ip) {
+		return (ip >>> 24) + "." + ((ip >>> 16) & 0xFF) + "." + ((ip >>> 8) & 0xFF) + "." + (ip & 0xFF);
 	}
-	
+
 	/**
-	 * Returns server answer as String
-	 * @param socket
-	 * @return
-	 * @throws IOException
+	 * Packs IPv4 address and port into single long
+	 * @param ip
+	 * @param port
+	 * @return packed address
 	 */
-	public static String getMessage(Socket socket) throws IOException {
-		InputStream iStream = socket.getInputStream();
-		ObjectInputStream ois = new ObjectInputStream(iStream);
-		return ois.readUTF();
+	public static long packAddress(int ip, int port) {
+		return ((ip & 0xFFFFFFFFL) << 16) | (port & 0xFFFF);
 	}
-	
+
 	/**
-	 * Returns server answer as Object
-	 * @param socket
-	 * @return
-	 * @throws IOException
-	 * @throws ClassNotFoundException
+	 * Packs address in IP:port form into single long
+	 * @param ipAndPort
+	 * @return packed address
 	 */
-	public static Object getObject(Socket socket) throws IOException, ClassNotFoundException {
-		InputStream iStream = socket.getInputStream();
-		ObjectInputStream ois = new ObjectInputStream(iStream);
-		return ois.readObject();
+	public static long packAddress(String ipAndPort) {
+		int separator = ipAndPort.indexOf(':');
+		return packAddress(ipToInt(ipAndPort.substring(0, separator)), Integer.parseInt(ipAndPort.substring(separator + 1)));
 	}
-	
+
+	public static int getPackedIP(long packedAddress) {
+		return (int) (packedAddress >>> 16);
+	}
+
+	public static int getPackedPort(long packedAddress) {
+		return (int) (packedAddress & 0xFFFF);
+	}
+
+	public static String addressToString(long packedAddress) {
+		return addressToString(getPackedIP(packedAddress), getPackedPort(packedAddress));
+	}
+
+	public static String addressToString(int ip, int port) {
+		return ipToString(ip) + ":" + port;
+	}
+
 	/**
 	 * Adds to given flag IP address and port
 	 * @param flag
@@ -80,7 +415,7 @@ public class MessageUtils {
 	public static String getSegment(String flag, String IPAddress, int port) {
 		return flag + MessageUtils.SEGMENT_SEPARATOR + IPAddress + ":" + port;
 	}
-	
+
 	/**
 	 * Returns flag from a given segment
 	 * @param segment
@@ -89,7 +424,7 @@ public class MessageUtils {
 	public static String getFlagFromSegment(String segment) {
 		return segment.substring(FLAG_START_INDEX, FLAG_END_INDEX);
 	}
-	
+
 	/**
 	 * Returns IP and port of a given segment
 	 * @param data
@@ -99,4 +434,4 @@ public class MessageUtils {
 		String[] splitedSegment = data.split(SEGMENT_SEPARATOR); // e.g. UDP->127.0.0.1:8888
 		return splitedSegment[SEGMENT_IP_AND_PORT_INDEX];
 	}
-}
+}
\ No newline at end of file
@@ -0,0 +1,178 @@
+package networkOfCounters;
+
+import java.util.List;
+
+/**
+ * Writes metrics of agents in Prometheus text exposition format, samples of every metric are grouped under its HELP and TYPE lines
+ * @author Grzegorz Golebiowski
+ *
+ */
+public class MetricsExporter {
+
+	private static final String PREFIX = "networkOfCounters_";
+
+	private final StringBuilder out = new StringBuilder(16 * 1024);
+
+	/**
+	 * Returns metrics of given agents and of the whole network
+	 * @param agents
+	 * @param syncSpread spread of counters measured after each sync sent by the monitor
+	 * @return metrics in text format
+	 */
+	public static String export(List<Agent> agents, LatencyHistogram syncSpread) {
+		MetricsExporter exporter = new MetricsExporter();
+		exporter.writeAgents(agents);
+		exporter.writeNetwork(agents, syncSpread);
+		return exporter.out.toString();
+	}
+
+	private void writeAgents(List<Agent> agents) {
+		family("client_request_duration_seconds", "histogram", "Time from sending a flag to a peer until its answer");
+		for(Agent a : agents) {
+			for(byte opcode : AgentMetrics.REQUEST_OPCODES)
+				histogram("client_request_duration_seconds", labels(a, opcode), a.getMetrics().getClientLatency(opcode));
+		}
+		family("server_request_duration_seconds", "histogram", "Time from receiving a flag until the answer is sent");
+		for(Agent a : agents) {
+			for(byte opcode : AgentMetrics.REQUEST_OPCODES)
+				histogram("server_request_duration_seconds", labels(a, opcode), a.getMetrics().getServerLatency(opcode));
+		}
+		family("round_duration_seconds", "histogram", "Time from sending a flag to all peers until all answers or the deadline");
+		for(Agent a : agents) {
+			for(byte opcode : AgentMetrics.REQUEST_OPCODES)
+				histogram("round_duration_seconds", labels(a, opcode), a.getMetrics().getRoundDuration(opcode));
+		}
+		family("round_slowest_peer_seconds", "gauge", "Time after which the slowest peer of the last round answered");
+		for(Agent a : agents) {
+			for(byte opcode : AgentMetrics.REQUEST_OPCODES) {
+				AgentMetrics.SlowestPeer slowest = a.getMetrics().getSlowestPeer(opcode);
+				if(slowest != null)
+					sample("round_slowest_peer_seconds", labels(a, opcode) + ",peer=\"" + slowest.getPeer() + "\"", seconds(slowest.getNanos()));
+			}
+		}
+		family("round_timed_out_peers_total", "counter", "Peers which didn't answer before the deadline of a round");
+		for(Agent a : agents) {
+			for(byte opcode : AgentMetrics.REQUEST_OPCODES)
+				sample("round_timed_out_peers_total", labels(a, opcode), a.getMetrics().getRoundTimedOutPeers(opcode));
+		}
+		family("request_failures_total", "counter", "Flags sent to a peer which failed, without timeouts");
+		for(Agent a : agents) {
+			for(byte opcode : AgentMetrics.REQUEST_OPCODES)
+				sample("request_failures_total", labels(a, opcode), a.getMetrics().getFailures(opcode));
+		}
+		family("request_timeouts_total", "counter", "Flags sent to a peer which weren't answered in time");
+		for(Agent a : agents) {
+			for(byte opcode : AgentMetrics.REQUEST_OPCODES)
+				sample("request_timeouts_total", labels(a, opcode), a.getMetrics().getTimeouts(opcode));
+		}
+		family("request_busy_total", "counter", "Flags sent to a peer which were answered with BSY");
+		for(Agent a : agents) {
+			for(byte opcode : AgentMetrics.REQUEST_OPCODES)
+				sample("request_busy_total", labels(a, opcode), a.getMetrics().getBusyAnswers(opcode));
+		}
+		family("requests_rejected_total", "counter", "Flags received from peers which were answered with BSY because of the in-flight requests limit");
+		for(Agent a : agents) {
+			for(byte opcode : AgentMetrics.REQUEST_OPCODES)
+				sample("requests_rejected_total", labels(a, opcode), a.getMetrics().getRejected(opcode));
+		}
+		family("connections_opened_total", "counter", "Connections opened to peers");
+		for(Agent a : agents)
+			sample("connections_opened_total", labels(a), a.getMetrics().getConnectionsOpened());
+		family("connection_failures_total", "counter", "Connections to peers which couldn't be opened");
+		for(Agent a : agents)
+			sample("connection_failures_total", labels(a), a.getMetrics().getConnectionFailures());
+		family("connections_accepted_total", "counter", "Connections accepted from peers");
+		for(Agent a : agents)
+			sample("connections_accepted_total", labels(a), a.getMetrics().getConnectionsAccepted());
+		family("connections_refused_total", "counter", "Connections from peers closed because of the connections limit");
+		for(Agent a : agents)
+			sample("connections_refused_total", labels(a), a.getMetrics().getConnectionsRefused());
+		family("write_timeouts_total", "counter", "Connections from peers closed because the answer couldn't be written in time");
+		for(Agent a : agents)
+			sample("write_timeouts_total", labels(a), a.getMetrics().getWriteTimeouts());
+		family("requests_in_flight", "gauge", "Requests from peers being answered");
+		for(Agent a : agents)
+			sample("requests_in_flight", labels(a), a.getInFlightRequests());
+		family("connections_active", "gauge", "Connections from peers being served");
+		for(Agent a : agents)
+			sample("connections_active", labels(a), a.getActiveConnections());
+		family("bytes_sent_total", "counter", "Bytes of frames sent");
+		for(Agent a : agents)
+			sample("bytes_sent_total", labels(a), a.getMetrics().getBytesSent());
+		family("bytes_received_total", "counter", "Bytes of frames received");
+		for(Agent a : agents)
+			sample("bytes_received_total", labels(a), a.getMetrics().getBytesReceived());
+		family("log_dropped_records_total", "counter", "Activity log records dropped because the buffer was full");
+		for(Agent a : agents)
+			sample("log_dropped_records_total", labels(a), a.getDroppedLogRecords());
+		family("counter_value_seconds", "gauge", "Counter of the agent");
+		for(Agent a : agents)
+			sample("counter_value_seconds", labels(a), a.getTimerValue() / 1000.0);
+	}
+
+	private void writeNetwork(List<Agent> agents, LatencyHistogram syncSpread) {
+		family("agents", "gauge", "Agents in the network");
+		sample("agents", null, agents.size());
+		if(!agents.isEmpty()) {
+			long min = Long.MAX_VALUE;
+			long max = Long.MIN_VALUE;
+			for(Agent a : agents) {
+				long counter = a.getTimerValue();
+				min = Math.min(min, counter);
+				max = Math.max(max, counter);
+			}
+			family("counter_spread_seconds", "gauge", "Difference between the highest and the lowest counter");
+			sample("counter_spread_seconds", null, (max - min) / 1000.0);
+		}
+		family("sync_spread_seconds", "histogram", "Difference between the highest and the lowest counter after each sync sent by the monitor");
+		histogram("sync_spread_seconds", null, syncSpread);
+	}
+
+	private void family(String name, String type, String help) {
+		out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+	}
+
+	private void sample(String name, String labels, double value) {
+		out.append(PREFIX).append(name);
+		if(labels != null)
+			out.append('{').append(labels).append('}');
+		out.append(' ');
+		if(value == Math.rint(value) && Math.abs(value) < 1e15)
+			out.append((long) value);
+		else
+			out.append(value);
+		out.append('\n');
+	}
+
+	/**
+	 * Writes cumulative buckets, sum and count of given histogram
+	 * @param name
+	 * @param labels
+	 * @param histogram
+	 */
+	private void histogram(String name, String labels, LatencyHistogram histogram) {
+		String prefix = labels == null ? "" : labels + ",";
+		long cumulative = 0;
+		for(int bucket = 0; bucket < LatencyHistogram.getBucketCount(); bucket++) {
+			cumulative += histogram.getCount(bucket);
+			long bound = LatencyHistogram.getBound(bucket);
+			String le = bound == Long.MAX_VALUE ? "+Inf" : String.valueOf(seconds(bound));
+			sample(name + "_bucket", prefix + "le=\"" + le + "\"", cumulative);
+		}
+		sample(name + "_sum", labels, seconds(histogram.getSum()));
+		sample(name + "_count", labels, cumulative);
+	}
+
+	private static String labels(Agent agent) {
+		return "agent=\"" + agent + "\"";
+	}
+
+	private static String labels(Agent agent, byte opcode) {
+		return "agent=\"" + agent + "\",flag=\"" + MessageUtils.getFlagName(opcode) + "\"";
+	}
+
+	private static double seconds(long nanos) {
+		return nanos / 1e9;
+	}
+}
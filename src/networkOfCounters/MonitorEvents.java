@@ -0,0 +1,266 @@
+package networkOfCounters;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server-Sent Events stream of the monitor. Agents are sampled periodically and only changes are sent:
+ * counters grow by 1 every millisecond between events, so a counter is sent only when it moves away from that (e.g. after sync),
+ * joins and leaves of agents and changes of their membership are sent when noticed.
+ * Every client has a bounded queue of events, client which doesn't keep up is disconnected.
+ * Clients are served by a pool of their own, so open streams don't hold threads serving HTTP requests of the monitor
+ * @author Grzegorz Golebiowski
+ *
+ */
+public class MonitorEvents {
+
+	private static final long MAX_DRIFT = 1; // milliseconds, difference caused by rounding of elapsed time
+	private static final long HEARTBEAT_INTERVAL = 15000; // milliseconds, comment line sent when there are no events
+
+	/**
+	 * Last values of an agent sent to clients
+	 */
+	private static class Sample {
+		long counter;
+		long time; // System.nanoTime() when counter was sent
+		long membershipVersion;
+
+		Sample(long counter, long time, long membershipVersion) {
+			this.counter = counter;
+			this.time = time;
+			this.membershipVersion = membershipVersion;
+		}
+
+		long expectedCounter(long now) {
+			return counter + (now - time) / 1_000_000;
+		}
+	}
+
+	/**
+	 * Connected client
+	 */
+	private static class Client {
+		final Socket socket;
+		final BlockingQueue<String> queue;
+		volatile boolean dropped;
+
+		Client(Socket socket, int queueSize) {
+			this.socket = socket;
+			this.queue = new ArrayBlockingQueue<>(queueSize);
+		}
+	}
+
+	private final List<Agent> agents;
+	private final long sampleInterval;
+	private final int clientQueueSize;
+	private final List<Client> clients = new CopyOnWriteArrayList<>();
+	private final Map<Agent, Sample> samples = new HashMap<>(); // used only by the sampler thread
+	private final ThreadPoolExecutor streams; // thread of every connected client
+	private ScheduledExecutorService sampler;
+
+	/**
+	 * @param agents agents of the monitor, read on every sample
+	 * @param sampleInterval time between two samples in milliseconds
+	 * @param clientQueueSize number of events waiting for a client after which the client is disconnected
+	 * @param maxClients number of clients connected at the same time
+	 */
+	public MonitorEvents(List<Agent> agents, long sampleInterval, int clientQueueSize, int maxClients) {
+		this.agents = agents;
+		this.sampleInterval = sampleInterval;
+		this.clientQueueSize = clientQueueSize;
+		this.streams = new ThreadPoolExecutor(0, maxClients, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+			Thread thread = new Thread(runnable, "monitor-events-client");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Hands connection of a client to a thread of the event streams, so the thread which read the request can serve other connections.
+	 * The connection is closed when the stream ends
+	 * @param socket connection of the client
+	 * @param out output stream of the connection
+	 * @return false if maxClients clients are already connected, connection stays with the caller
+	 */
+	public boolean accept(Socket socket, OutputStream out) {
+		try {
+			streams.execute(() -> {
+				try(Socket s = socket) {
+					serve(s, out);
+				} catch (IOException ex) {
+					System.err.println(ex.getMessage());
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Streams events to a client until it disconnects or is dropped. Starts with snapshot of all agents
+	 * @param socket connection of the client, closed when the client is dropped
+	 * @param out output stream of the connection
+	 * @throws IOException
+	 */
+	private void serve(Socket socket, OutputStream out) throws IOException {
+		out.write(("HTTP/1.1 200 OK\r\n"
+				+ "Content-Type: text/event-stream; charset=\"UTF-8\"\r\n"
+				+ "Cache-Control: no-store\r\n"
+				+ "Connection: close\r\n" // stream ends with the connection
+				+ "\r\n"
+				+ "retry: " + Math.max(sampleInterval, 1000) + "\n\n").getBytes(StandardCharsets.UTF_8));
+		out.flush();
+		Client client = new Client(socket, clientQueueSize);
+		clients.add(client);
+		startSampler().execute(() -> sendSnapshot(client)); // on sampler thread, so following deltas are based on the same values
+		try {
+			while(!client.dropped) {
+				String event = client.queue.poll(HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+				if(event == null) {
+					out.write(":\n\n".getBytes(StandardCharsets.UTF_8)); // detects closed connections
+				} else {
+					do {
+						out.write(event.getBytes(StandardCharsets.UTF_8));
+					} while((event = client.queue.poll()) != null);
+				}
+				out.flush();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} finally {
+			clients.remove(client);
+		}
+	}
+
+	/**
+	 * Sends event to all clients, clients with full queues are dropped
+	 * @param event name of the event, e.g. sync
+	 * @param data JSON object
+	 */
+	public void publish(String event, String data) {
+		if(clients.isEmpty())
+			return;
+		String message = "event: " + event + "\ndata: " + data + "\n\n";
+		for(Client client : clients) {
+			if(!client.queue.offer(message))
+				drop(client);
+		}
+	}
+
+	/**
+	 * Sends event about given agent
+	 * @param event
+	 * @param agent
+	 */
+	public void publish(String event, Agent agent) {
+		publish(event, "{\"time\":" + System.currentTimeMillis() + ",\"address\":" + JsonUtils.quote(agent.toString()) + "}");
+	}
+
+	private void drop(Client client) {
+		client.dropped = true;
+		clients.remove(client);
+		try {
+			client.socket.close(); // unblocks writing to a client which doesn't read
+		} catch (IOException ex) {
+			System.err.println(ex.getMessage());
+		}
+	}
+
+	private synchronized ScheduledExecutorService startSampler() {
+		if(sampler == null) {
+			sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "monitor-events");
+				thread.setDaemon(true);
+				return thread;
+			});
+			sampler.scheduleWithFixedDelay(this::sample, sampleInterval, sampleInterval, TimeUnit.MILLISECONDS);
+		}
+		return sampler;
+	}
+
+	/**
+	 * Sends snapshot of all agents to a new client
+	 * @param client
+	 */
+	private void sendSnapshot(Client client) {
+		StringBuilder data = new StringBuilder("{\"time\":").append(System.currentTimeMillis()).append(",\"agents\":[");
+		boolean first = true;
+		for(Agent agent : agents) {
+			Sample sample = samples.get(agent);
+			if(sample == null) {
+				sample = new Sample(agent.getTimerValue(), System.nanoTime(), agent.getMembershipVersion());
+				samples.put(agent, sample);
+			}
+			if(!first)
+				data.append(',');
+			first = false;
+			data.append("{\"address\":").append(JsonUtils.quote(agent.toString()))
+				.append(",\"counter\":").append(sample.expectedCounter(System.nanoTime()))
+				.append(",\"members\":").append(agent.getMembers().size())
+				.append(",\"membershipVersion\":").append(sample.membershipVersion)
+				.append('}');
+		}
+		String message = "event: snapshot\ndata: " + data.append("]}") + "\n\n";
+		if(!client.queue.offer(message))
+			drop(client);
+	}
+
+	/**
+	 * Single sample of all agents, run by the sampler thread
+	 */
+	private void sample() {
+		if(clients.isEmpty()) {
+			samples.clear(); // new client gets snapshot anyway
+			return;
+		}
+		long time = System.currentTimeMillis();
+		StringBuilder counters = null;
+		for(Agent agent : agents) {
+			long counter = agent.getTimerValue();
+			long now = System.nanoTime(); // right after reading the counter, so expected value doesn't drift
+			long membershipVersion = agent.getMembershipVersion();
+			Sample sample = samples.get(agent);
+			if(sample == null) {
+				samples.put(agent, new Sample(counter, now, membershipVersion));
+				publish("join", "{\"time\":" + time + ",\"address\":" + JsonUtils.quote(agent.toString()) + ",\"counter\":" + counter + "}");
+				continue;
+			}
+			if(Math.abs(counter - sample.expectedCounter(now)) > MAX_DRIFT) {
+				counters = counters == null ? new StringBuilder("{\"time\":").append(time).append(",\"counters\":{") : counters.append(',');
+				counters.append(JsonUtils.quote(agent.toString())).append(':').append(counter);
+				sample.counter = counter;
+				sample.time = now;
+			}
+			if(membershipVersion != sample.membershipVersion) {
+				sample.membershipVersion = membershipVersion;
+				publish("membership", "{\"time\":" + time + ",\"address\":" + JsonUtils.quote(agent.toString())
+						+ ",\"members\":" + agent.getMembers().size() + ",\"membershipVersion\":" + membershipVersion + "}");
+			}
+		}
+		if(counters != null)
+			publish("counters", counters.append("}}").toString());
+		for(Iterator<Agent> it = samples.keySet().iterator(); it.hasNext(); ) {
+			Agent agent = it.next();
+			if(!agents.contains(agent)) {
+				it.remove();
+				publish("leave", agent);
+			}
+		}
+	}
+}
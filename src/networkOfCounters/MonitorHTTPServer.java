@@ -1,20 +1,31 @@
 package networkOfCounters;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
-import java.net.URLDecoder;
-import java.net.UnknownHostException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * HTTP server which controls the network
@@ -24,8 +35,24 @@ import java.util.List;
 public class MonitorHTTPServer {
 	
 	private static final int PORT = 8080;
-	private static final int EMPTY_GET_APPROX_LENGTH = "GET /? HTTP/1.1 ".length();
-	private static volatile List<Agent> agents = new ArrayList<Agent>();
+	private static final int MAX_CONNECTIONS = Integer.getInteger("networkOfCounters.monitorMaxConnections", 32); // connections served at the same time
+	private static final int KEEP_ALIVE_TIMEOUT = Integer.getInteger("networkOfCounters.monitorKeepAliveTimeout", 15000); // milliseconds
+	private static final int JOB_THREADS = 4;
+	private static final int MAX_FINISHED_JOBS = 256; // finished jobs kept for polling
+	private static final long SAMPLE_INTERVAL = Long.getLong("networkOfCounters.monitorSampleInterval", 200); // milliseconds between samples sent to /events
+	private static final int EVENT_QUEUE_SIZE = Integer.getInteger("networkOfCounters.monitorEventQueueSize", 64); // events waiting for a client before it is dropped
+	private static final int MAX_EVENT_CLIENTS = Integer.getInteger("networkOfCounters.monitorMaxEventClients", 64); // /events streams open at the same time
+	private static final List<Agent> agents = new CopyOnWriteArrayList<Agent>(); // read by many connections, changed rarely
+	private static final Object agentsLock = new Object(); // guards adding first agent
+	private static final ThreadPoolExecutor connectionExecutor = new ThreadPoolExecutor(0, MAX_CONNECTIONS, 60, TimeUnit.SECONDS,
+			new SynchronousQueue<>(), daemonThreads());
+	private static final ExecutorService jobExecutor = Executors.newFixedThreadPool(JOB_THREADS, daemonThreads());
+	private static final Map<Long, MonitorJob> jobs = new ConcurrentHashMap<>();
+	private static final AtomicLong lastJobId = new AtomicLong();
+	private static final LatencyHistogram syncSpread = new LatencyHistogram(); // spread of counters after SYN sent by the monitor
+	private static final MonitorEvents events = new MonitorEvents(agents, SAMPLE_INTERVAL, EVENT_QUEUE_SIZE, MAX_EVENT_CLIENTS);
+	private static final MonitorPage page = new MonitorPage();
+	private static final Router router = createRouter();
 	private static ServerSocket httpServerSocket;
 	private static Thread serverThread;
 	
@@ -34,7 +61,7 @@ public class MonitorHTTPServer {
 	}
 	
 	/**
-	 * Initializes and starts server thread
+	 * Initializes and starts server thread, which hands accepted connections to a pool of threads
 	 * @throws IOException
 	 */
 	public static void startServer() throws IOException{
@@ -44,16 +71,13 @@ public class MonitorHTTPServer {
 				displayServerInfo("Server started");
 				while(true) {
 					Socket socket = httpServerSocket.accept();
-					BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-					BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-					String req = getRequest(in);
-					processRequest(req);
-			        sendHeader(out);
-			        sendAddFirstAgentOption(out);
-			        sendAgentsGroup(out);
-			        close(socket, out, in);
+					try {
+						connectionExecutor.execute(() -> serveConnection(socket));
+					} catch (RejectedExecutionException ex) {
+						rejectConnection(socket);
+					}
 				}
-			} catch (IOException | NumberFormatException | ClassNotFoundException | InterruptedException ex) {
+			} catch (IOException ex) {
 				ex.printStackTrace();
 			}
 		});
@@ -61,213 +85,525 @@ public class MonitorHTTPServer {
 	}
 
 	/**
-	 * Does certain actions according to a given request
+	 * Answers requests received on a single connection until client closes it, asks to close it or stays idle too long.
+	 * Connection asking for /events is handed over to the stream of events, which has threads of its own
+	 * @param socket
+	 */
+	private static void serveConnection(Socket socket) {
+		boolean streaming = false; // connection belongs to the stream of events
+		try {
+			socket.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			HttpRequest request;
+			while((request = HttpRequest.read(in)) != null) {
+				if(request.getPath().equals("/events")) {
+					streaming = events.accept(socket, out);
+					if(!streaming)
+						sendText(out, 503, "Too many event streams", false);
+					break;
+				}
+				boolean keepAlive = request.isKeepAlive();
+				try {
+					router.dispatch(request, out, keepAlive);
+				} catch (IllegalArgumentException ex) { // malformed parameter
+					sendText(out, 400, ex.getMessage(), keepAlive);
+				}
+				if(!keepAlive)
+					break;
+			}
+		} catch (SocketTimeoutException ex) {
+			// idle keep-alive connection
+		} catch (IOException ex) {
+			System.err.println(ex.getMessage());
+		} finally {
+			if(!streaming)
+				closeConnection(socket);
+		}
+	}
+
+	private static void closeConnection(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException ex) {
+			System.err.println(ex.getMessage());
+		}
+	}
+
+	/**
+	 * Answers with 503 when all threads are busy
+	 * @param socket
+	 */
+	private static void rejectConnection(Socket socket) {
+		try(Socket s = socket) {
+			sendText(s.getOutputStream(), 503, "Server busy", false);
+		} catch (IOException ex) {
+			System.err.println(ex.getMessage());
+		}
+	}
+
+	/**
+	 * Creates routes of the page, metrics and JSON API. Actions of the API which do network I/O are started as jobs,
+	 * response carries the job to be polled. Actions of the API change the network, so they accept only POST
+	 * @return router
+	 */
+	private static Router createRouter() {
+		return new Router(MonitorHTTPServer::sendNotFound,
+				(request, out, keepAlive) -> sendText(out, 405, "Method not allowed", keepAlive))
+			.add("/", MonitorHTTPServer::sendPage, "GET")
+			.add("/metrics", (request, out, keepAlive) -> sendResponse(out, 200, "text/plain; version=0.0.4; charset=\"UTF-8\"",
+					MetricsExporter.export(agents, syncSpread).getBytes(StandardCharsets.UTF_8), keepAlive), "GET")
+			.add("/api/agents", (request, out, keepAlive) -> sendJson(out, 200, agentsToJson(), keepAlive), "GET")
+			.add("/api/jobs", MonitorHTTPServer::sendJobs, "GET")
+			.add("/api/syn", (request, out, keepAlive) -> sendAgentJob(request, out, keepAlive, "SYN", MonitorHTTPServer::sendSYN), "POST")
+			.add("/api/del", (request, out, keepAlive) -> sendAgentJob(request, out, keepAlive, "DEL", MonitorHTTPServer::deleteAgent), "POST")
+			.add("/api/add", MonitorHTTPServer::sendAddJob, "POST")
+			.add("/api/mode", MonitorHTTPServer::sendModeJob, "POST");
+	}
+
+	private static void sendNotFound(HttpRequest request, OutputStream out, boolean keepAlive) throws IOException {
+		if(request.getPath().startsWith("/api/"))
+			sendJson(out, 404, error("Unknown endpoint"), keepAlive);
+		else
+			sendText(out, 404, "Not found", keepAlive);
+	}
+
+	/**
+	 * Starts action of the control panel as a job and sends the page with agents given by page, size and filter parameters at once.
+	 * Page is streamed with chunked transfer encoding, HTTP/1.0 clients get it with its length
 	 * @param request
+	 * @param out
+	 * @param keepAlive
 	 * @throws IOException
-	 * @throws NumberFormatException
-	 * @throws ClassNotFoundException
-	 * @throws InterruptedException
 	 */
-	private static void processRequest(String request) throws IOException, NumberFormatException, ClassNotFoundException, InterruptedException {
-		if(isRequestEmpty(request))
+	private static void sendPage(HttpRequest request, OutputStream out, boolean keepAlive) throws IOException {
+		MonitorJob job = processPageAction(request);
+		int pageNumber = parseInt(request.getParameter("page"), 1);
+		int pageSize = Math.min(Math.max(1, parseInt(request.getParameter("size"), MonitorPage.DEFAULT_PAGE_SIZE)), MonitorPage.MAX_PAGE_SIZE);
+		String filter = request.getParameter("filter");
+		if(filter == null)
+			filter = "";
+		String contentType = "text/html; charset=\"UTF-8\"";
+		if(request.getVersion().equals("HTTP/1.0")) {
+			ByteArrayOutputStream body = new ByteArrayOutputStream(8192);
+			page.write(body, agents, pageNumber, pageSize, filter, job);
+			sendResponse(out, 200, contentType, body.toByteArray(), keepAlive);
 			return;
-		else if(isRequestSingle(request))
-			singleValueRequestProcess(request);
-		else 
-			doubleValuesRequestProcess(request);
+		}
+		writeHeader(out, 200, contentType, -1, keepAlive);
+		ChunkedOutputStream body = new ChunkedOutputStream(out);
+		page.write(body, agents, pageNumber, pageSize, filter, job);
+		body.finish();
+	}
+
+	private static int parseInt(String value, int defaultValue) {
+		try {
+			return value == null || value.isEmpty() ? defaultValue : Integer.parseInt(value);
+		} catch (NumberFormatException ex) {
+			return defaultValue;
+		}
 	}
 
-	private static boolean isRequestEmpty(String request) {
-		return request == null || request.length() <=	 EMPTY_GET_APPROX_LENGTH;
+	/**
+	 * Agent's action started by the API
+	 */
+	private interface AgentAction {
+		void run(Agent agent) throws Exception;
 	}
 
 	/**
-	 * Checks if GET request is single
+	 * Starts job doing given action with agent given by agent parameter
 	 * @param request
-	 * @return true if request is single
+	 * @param out
+	 * @param keepAlive
+	 * @param name name of the job
+	 * @param action
+	 * @throws IOException
 	 */
-	private static boolean isRequestSingle(String request) {
-		return !request.contains("&");
+	private static void sendAgentJob(HttpRequest request, OutputStream out, boolean keepAlive, String name, AgentAction action) throws IOException {
+		Agent agent = findAgent(request.getParameter("agent"));
+		if(agent == null) {
+			sendJson(out, 404, error("Unknown agent"), keepAlive);
+			return;
+		}
+		sendJson(out, 202, submitJob(name + " " + agent, () -> {
+			action.run(agent);
+			return agent.toString();
+		}).toJson(), keepAlive);
 	}
 
 	/**
-	 * Processes request when GET is single
+	 * Starts job changing sync mode of the network to mode parameter
 	 * @param request
+	 * @param out
+	 * @param keepAlive
 	 * @throws IOException
-	 * @throws InterruptedException
-	 * @throws ClassNotFoundException 
-	 * @throws NumberFormatException 
 	 */
-	private static void singleValueRequestProcess(String request) throws IOException, InterruptedException, NumberFormatException, ClassNotFoundException {
-		String name = RequestUtils.getReqName(request, RequestUtils.SINGLE);
-		String value = RequestUtils.getReqValue(request, RequestUtils.SINGLE);
-		if(name == null && value == null) 
+	private static void sendModeJob(HttpRequest request, OutputStream out, boolean keepAlive) throws IOException {
+		SyncMode mode = parseSyncMode(request.getParameter("mode"));
+		if(mode == null) {
+			sendJson(out, 400, error("Unknown sync mode"), keepAlive);
 			return;
-		else if (name.equals("flag")) 
-			processFlagRequest(value);
-		else if(name.equals("agentAction"))
-			processAgentActionRequest(value);
+		}
+		sendJson(out, 202, submitJob("MOD " + mode, () -> {
+			changeSyncMode(mode);
+			return mode.toString();
+		}).toJson(), keepAlive);
 	}
 
 	/**
-	 * Processes GET request with flags SYN and DEL
-	 * @param value
-	 * @throws UnknownHostException
+	 * Sends job given by id parameter, or all kept jobs when there is no id
+	 * @param request
+	 * @param out
+	 * @param keepAlive
 	 * @throws IOException
-	 * @throws InterruptedException
-	 * @throws ClassNotFoundException 
-	 * @throws NumberFormatException 
 	 */
-	private static void processFlagRequest(String value) throws IOException, InterruptedException, NumberFormatException, ClassNotFoundException {
-		if(value.contains("SYN")) {
-			processSYNRequest(value);
-		} else if(value.contains("DEL")) {
-			processDELRequest(value);			
+	private static void sendJobs(HttpRequest request, OutputStream out, boolean keepAlive) throws IOException {
+		String id = request.getParameter("id");
+		if(id == null) {
+			StringBuilder json = new StringBuilder("{\"jobs\":[");
+			for(MonitorJob job : jobs.values())
+				json.append(job.toJson()).append(',');
+			if(json.charAt(json.length() - 1) == ',')
+				json.setLength(json.length() - 1);
+			sendJson(out, 200, json.append("]}").toString(), keepAlive);
+			return;
+		}
+		MonitorJob job;
+		try {
+			job = jobs.get(Long.parseLong(id));
+		} catch (NumberFormatException ex) {
+			job = null;
 		}
+		if(job == null)
+			sendJson(out, 404, error("Unknown job"), keepAlive);
+		else
+			sendJson(out, 200, job.toJson(), keepAlive);
 	}
-	
-	private static void processSYNRequest(String value) throws IOException {
-		for(Agent a : agents) {
-			String agentInfo = value.substring(3); // IP Address and port
-			if(a.toString().equals(agentInfo)) {
-				displayServerInfo("Sending SYN flag ... ");
-				Socket socket = new Socket(a.getIP(), a.getPort());
-				MessageUtils.sendMessage(socket, MessageUtils.getSegment("SYN", a.getIP(), a.getPort()));
-				MessageUtils.getMessage(socket);
-			}
+
+	/**
+	 * Starts job adding new agent with counter parameter and intro parameter (IP:port of introducing agent, first agent by default).
+	 * When there are no agents the first agent of the network is added, its counter starts with 0
+	 * @param request
+	 * @param out
+	 * @param keepAlive
+	 * @throws IOException
+	 */
+	private static void sendAddJob(HttpRequest request, OutputStream out, boolean keepAlive) throws IOException {
+		if(agents.isEmpty()) {
+			sendJson(out, 202, submitJob("ADD first", () -> addFirstAgent().toString()).toJson(), keepAlive);
+			return;
+		}
+		long counter;
+		try {
+			counter = Long.parseLong(request.getParameter("counter"));
+		} catch (NumberFormatException ex) {
+			sendJson(out, 400, error("Missing or incorrect counter"), keepAlive);
+			return;
 		}
+		String introAddress = request.getParameter("intro");
+		Agent intro = introAddress == null ? agents.get(0) : findAgent(introAddress);
+		if(intro == null) {
+			sendJson(out, 404, error("Unknown introducing agent"), keepAlive);
+			return;
+		}
+		sendJson(out, 202, submitJob("ADD " + counter + " via " + intro, () -> addAgent(counter, intro.getPort()).toString()).toJson(), keepAlive);
+	}
+
+	/**
+	 * Runs given action in the background
+	 * @param name
+	 * @param action
+	 * @return started job
+	 */
+	private static MonitorJob submitJob(String name, MonitorJob.Action action) {
+		long id = lastJobId.incrementAndGet();
+		MonitorJob job = new MonitorJob(id, name);
+		jobs.put(id, job);
+		jobs.values().removeIf(j -> j.isFinished() && j.getId() <= id - MAX_FINISHED_JOBS);
+		displayServerInfo("Started job " + id + ": " + name);
+		jobExecutor.execute(() -> job.run(action));
+		return job;
 	}
-	private static void processDELRequest(String value) throws IOException, InterruptedException {
-		Agent agentToDelete = null;
+
+	/**
+	 * Returns agents with their counters as JSON
+	 * @return JSON
+	 */
+	private static String agentsToJson() {
+		StringBuilder json = new StringBuilder(64 + agents.size() * 128);
+		SyncMode mode = agents.isEmpty() ? AgentConfig.getDefault().getSyncMode() : agents.get(0).getSyncMode();
+		json.append("{\"syncMode\":\"").append(mode).append("\",\"agents\":[");
+		boolean first = true;
 		for(Agent a : agents) {
-			String agentInfo = value.substring(3); // IP Address and port
-			if(a.toString().equals(agentInfo)) {
-				displayServerInfo("Deleting agent");
-				agentToDelete = a;
-				break;
-			}
+			if(!first)
+				json.append(',');
+			first = false;
+			json.append("{\"address\":").append(JsonUtils.quote(a.toString()))
+				.append(",\"counter\":").append(a.getTimerValue())
+				.append(",\"syncMode\":\"").append(a.getSyncMode()).append('"')
+				.append(",\"members\":").append(a.getMembers().size())
+				.append(",\"membershipVersion\":").append(a.getMembershipVersion())
+				.append('}');
 		}
-		if(agentToDelete != null)
-			agents.remove(agents.indexOf(agentToDelete)).removeAgentFromNetwork();
+		return json.append("]}").toString();
+	}
+
+	private static String error(String message) {
+		return "{\"error\":" + JsonUtils.quote(message) + "}";
+	}
+
+	private static void sendText(OutputStream out, int status, String text, boolean keepAlive) throws IOException {
+		sendResponse(out, status, "text/plain; charset=\"UTF-8\"", text.getBytes(StandardCharsets.UTF_8), keepAlive);
+	}
+
+	private static void sendJson(OutputStream out, int status, String json, boolean keepAlive) throws IOException {
+		sendResponse(out, status, "application/json; charset=\"UTF-8\"", json.getBytes(StandardCharsets.UTF_8), keepAlive);
 	}
 
 	/**
-	 * Processes single requests with name parameter set to agentAction
-	 * @param value
+	 * Sends HTTP/1.1 response with given body
+	 * @param out
+	 * @param status
+	 * @param contentType
+	 * @param body
+	 * @param keepAlive whether connection stays open
 	 * @throws IOException
 	 */
-	private static void processAgentActionRequest(String value) throws IOException {
-		if(value.equals("addFirstAgent") && agents.isEmpty()) {
-			displayServerInfo("Adding first agent in the network");
-			agents.add(new Agent());
-		} else if(value.equals("toggle")) {
-			toggleLogMessages();
-			displayServerInfo("Toggled logs");
-		}
+	private static void sendResponse(OutputStream out, int status, String contentType, byte[] body, boolean keepAlive) throws IOException {
+		writeHeader(out, status, contentType, body.length, keepAlive);
+		out.write(body);
+		out.flush();
 	}
 
-	private static void toggleLogMessages() {
-		if(Agent.displayingLogMessages)
-			Agent.displayingLogMessages = false;
+	/**
+	 * Writes status line and headers of HTTP/1.1 response
+	 * @param out
+	 * @param status
+	 * @param contentType
+	 * @param contentLength length of the body, -1 when body is sent with chunked transfer encoding
+	 * @param keepAlive whether connection stays open
+	 * @throws IOException
+	 */
+	private static void writeHeader(OutputStream out, int status, String contentType, int contentLength, boolean keepAlive) throws IOException {
+		StringBuilder header = new StringBuilder(256);
+		header.append("HTTP/1.1 ").append(status).append(' ').append(getReasonPhrase(status)).append("\r\n");
+		header.append("Date: ").append(DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneId.of("GMT")))).append("\r\n");
+		header.append("Content-Type: ").append(contentType).append("\r\n");
+		if(contentLength < 0)
+			header.append("Transfer-Encoding: chunked\r\n");
 		else
-			Agent.displayingLogMessages = true;
+			header.append("Content-Length: ").append(contentLength).append("\r\n");
+		header.append("Cache-Control: no-store\r\n");
+		if(keepAlive)
+			header.append("Connection: keep-alive\r\nKeep-Alive: timeout=").append(KEEP_ALIVE_TIMEOUT / 1000).append("\r\n");
+		else
+			header.append("Connection: close\r\n");
+		header.append("\r\n"); // CRLF - carriage return + line feed
+		out.write(header.toString().getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private static String getReasonPhrase(int status) {
+		switch(status) {
+			case 200: return "OK";
+			case 202: return "Accepted";
+			case 400: return "Bad Request";
+			case 404: return "Not Found";
+			case 405: return "Method Not Allowed";
+			case 503: return "Service Unavailable";
+			default: return "Status " + status;
+		}
 	}
 
 	/**
-	 * Processes requests with doubled parameters e.g. timerValue=12 and agentAction=IPaddress:port
-	 * @throws NumberFormatException
-	 * @throws UnknownHostException
-	 * @throws ClassNotFoundException
-	 * @throws IOException
-	 * @throws InterruptedException
+	 * Starts action of control panel given by action parameter as a job: SYN or DEL with agent parameter, ADD with timerValue
+	 * and intro parameters (first agent is added without them), MOD with mode parameter. Toggle is done at once
+	 * @param request
+	 * @return started job, null when there is no action to be run
 	 */
-	private static void doubleValuesRequestProcess(String request) throws NumberFormatException, ClassNotFoundException, IOException, InterruptedException {
-		String[] doubleValReq = request.split("&");
-		String timerValue = RequestUtils.getReqValue(doubleValReq[0], RequestUtils.DOUBLE);
-		String agentAddValue = RequestUtils.getReqValue(doubleValReq[1], RequestUtils.SINGLE);
-		if(timerValue == null) {
-			return ; // counter value not set
-		} else {
-			String[] data = agentAddValue.split(":");
-			displayServerInfo("Adding new agent with intro agent on port " + data[1]);
-			agents.add(new Agent(Long.parseLong(timerValue),Integer.parseInt(data[1])));
+	private static MonitorJob processPageAction(HttpRequest request) {
+		String action = request.getParameter("action");
+		if(action == null)
+			return null;
+		switch(action) {
+			case "SYN": {
+				Agent agent = findAgent(request.getParameter("agent"));
+				if(agent == null)
+					return null;
+				return submitJob("SYN " + agent, () -> {
+					sendSYN(agent);
+					return agent.toString();
+				});
+			}
+			case "DEL": {
+				Agent agent = findAgent(request.getParameter("agent"));
+				if(agent == null)
+					return null;
+				return submitJob("DEL " + agent, () -> {
+					deleteAgent(agent);
+					return agent.toString();
+				});
+			}
+			case "ADD":
+				return processAddRequest(request);
+			case "MOD": {
+				SyncMode mode = parseSyncMode(request.getParameter("mode"));
+				if(mode == null)
+					return null;
+				return submitJob("MOD " + mode, () -> {
+					changeSyncMode(mode);
+					return mode.toString();
+				});
+			}
+			case "toggle":
+				toggleLogMessages();
+				displayServerInfo("Toggled logs");
+				return null;
+			default:
+				return null;
 		}
 	}
 
 	/**
-	 * Returns GET request
-	 * @param in
-	 * @return GET
-	 * @throws IOException
+	 * Starts job adding first agent, or agent with counter from timerValue parameter introduced by agent from intro parameter
+	 * @param request
+	 * @return started job, null when counter or introducing agent is missing
 	 */
-	private static String getRequest(BufferedReader in) throws IOException {
+	private static MonitorJob processAddRequest(HttpRequest request) {
+		if(agents.isEmpty())
+			return submitJob("ADD first", () -> addFirstAgent().toString());
+		String timerValue = request.getParameter("timerValue");
+		Agent intro = findAgent(request.getParameter("intro"));
+		if(timerValue == null || timerValue.isEmpty() || intro == null)
+			return null; // counter value not set
+		long counter;
 		try {
-			String getRequestLine;
-			while((getRequestLine = in.readLine()) != null) {
-				if(getRequestLine.contains("GET")) {
-					return URLDecoder.decode(getRequestLine,"UTF-8");
-				}
-				if(getRequestLine.isEmpty()){
-					break;
-				}
-			}
-			return null;
-		} catch (SocketException ex) {
+			counter = Long.parseLong(timerValue);
+		} catch (NumberFormatException ex) {
 			System.err.println(ex.getMessage());
 			return null;
 		}
+		return submitJob("ADD " + counter + " via " + intro, () -> addAgent(counter, intro.getPort()).toString());
 	}
 
 	/**
-	 * Sends HTTP header
-	 * @param out
+	 * Returns agent with given address
+	 * @param address IP:port
+	 * @return agent, or null if there is no such agent
+	 */
+	private static Agent findAgent(String address) {
+		if(address == null)
+			return null;
+		for(Agent a : agents) {
+			if(a.toString().equals(address))
+				return a;
+		}
+		return null;
+	}
+
+	/**
+	 * Sends SYN flag to a given agent, as if it came from the agent itself
+	 * @param agent
 	 * @throws IOException
 	 */
-	private static void sendHeader(BufferedWriter out) throws IOException {
-        out.write("HTTP/1.0 200 OK\r\n");
-        out.write("Date: "+DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneId.of("GMT")))+"\r\n");
-        out.write("Content-Type: text/html; charset=\"UTF-8\"\r\n");
-        out.write("\r\n"); // CRLF - carriage return + line feed
-        out.write("<title>Siec licznikow</title>");
+	private static void sendSYN(Agent agent) throws IOException {
+		displayServerInfo("Sending SYN flag ... ");
+		AgentConfig config = AgentConfig.getDefault();
+		try(Socket socket = new Socket()) { // agents keep connections open until the peer closes them
+			socket.connect(new InetSocketAddress(agent.getIP(), agent.getPort()), config.getConnectTimeout()); // hung agent doesn't block the worker
+			socket.setSoTimeout(2 * config.getRoundDeadline()); // agent answers after its own CLK round
+			FrameChannel channel = new FrameChannel(socket);
+			channel.call(channel.outbound().set(MessageUtils.SYN, MessageUtils.ipToInt(agent.getIP()), agent.getPort()));
+		}
+		events.publish("sync", agent);
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		for(Agent a : agents) {
+			long counter = a.getTimerValue();
+			min = Math.min(min, counter);
+			max = Math.max(max, counter);
+		}
+		if(min <= max)
+			syncSpread.record(TimeUnit.MILLISECONDS.toNanos(max - min));
 	}
 
 	/**
-	 * Sends HTML code form of refresh, toggle and addFirstAgent button
-	 * @param out
+	 * Removes agent from the network, unless another request has already removed it
+	 * @param agent
 	 * @throws IOException
+	 * @throws InterruptedException
 	 */
-	private static void sendAddFirstAgentOption(BufferedWriter out) throws IOException {
-	    out.write("<form action=\"\" method=\"get\"><div>\r\n");	
-	    out.write("</br>&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;<button type=\"submit\">REFRESH</button>\r\n");
-	    out.write("&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;<button type=\"submit\" name=\"agentAction\" value=\"toggle\">TOGGLE LOGS</button></div></br></br>\r\n");out.write("<label for=\"say\">Kliknij aby dodac pierwszego agenta</label>\r\n");
-	    out.write("<button name=\"agentAction\" type=\"submit\" value=\"addFirstAgent\">ADD AGENT</button></div>\r\n");
-	    out.write("</form><br/>\r\n");	    		
+	private static void deleteAgent(Agent agent) throws IOException, InterruptedException {
+		if(agents.remove(agent)) {
+			page.forget(agent);
+			displayServerInfo("Deleting agent");
+			agent.removeAgentFromNetwork();
+		}
 	}
 
 	/**
-	 * Sends HTML code with list of all agents in the network
-	 * @param out
+	 * Adds first agent of the network, unless there is already an agent
+	 * @return first agent
 	 * @throws IOException
 	 */
-	private static void sendAgentsGroup(BufferedWriter out) throws IOException {
-		out.write("");
-		out.write("<table>\r\n");
-		for(Agent a : agents) {
-		    out.write("<form action=\"\" method=\"get\">");	
-			out.write("Agent: "+a+" "+" || Wartosc licznika: "+a.getTimerValue()+ " ");
-			out.write("<button name=\"flag\" type=\"submit\" value=\"SYN"+a+"\">SEND SYN</button>\r\n ");
-			out.write("<button name=\"flag\" type=\"submit\" value=\"DEL"+a+"\">SEND DEL</button>\r\n<br/> ");
-			out.write("</form>\r\n");
-			
-			out.write("<form action=\"\" method=\"get\">");
-			out.write("<label for=\"say\">Wprowadz nowego agenta. Licznik: </label>");
-			out.write("<input type=\"number\" min=\"0\" max=\"1000000000\" name=\"timerValue\">");
-			out.write("<button type=\"submit\" name=\"agentAction\" value=\"addAgentByPort"+a+"\">ADD AGENT</button></div>");
-			out.write("</form><br/><br/><br/>\r\n");
+	private static Agent addFirstAgent() throws IOException {
+		synchronized(agentsLock) {
+			if(!agents.isEmpty())
+				return agents.get(0);
+			displayServerInfo("Adding first agent in the network");
+			Agent agent = new Agent();
+			agents.add(agent);
+			return agent;
 		}
-		out.write("</table>\r\n");
-	}	
-	
+	}
+
+	private static Agent addAgent(long counter, int introAgentPort) throws IOException, InterruptedException {
+		displayServerInfo("Adding new agent with intro agent on port " + introAgentPort);
+		Agent agent = new Agent(counter, introAgentPort);
+		agents.add(agent);
+		return agent;
+	}
+
+	/**
+	 * Adds agent created outside of the control panel, e.g. by the load generator, so it is shown with its metrics and events
+	 * @param agent
+	 */
+	static void registerAgent(Agent agent) {
+		agents.add(agent);
+	}
+
+	static void unregisterAgent(Agent agent) {
+		agents.remove(agent);
+		page.forget(agent);
+	}
+
+	private static SyncMode parseSyncMode(String value) {
+		try {
+			return value == null ? null : SyncMode.valueOf(value);
+		} catch (IllegalArgumentException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Changes sync mode of the network, or of the network which will be created when there are no agents
+	 * @param mode
+	 * @throws InterruptedException
+	 */
+	private static void changeSyncMode(SyncMode mode) throws InterruptedException {
+		displayServerInfo("Changing sync mode to " + mode);
+		AgentConfig.getDefault().setSyncMode(mode);
+		if(!agents.isEmpty())
+			agents.get(0).changeSyncMode(mode);
+	}
+
+	private static void toggleLogMessages() {
+		if(Agent.displayingLogMessages)
+			Agent.displayingLogMessages = false;
+		else
+			Agent.displayingLogMessages = true;
+	}
+
 	/**
 	 * Displays text in console
 	 * @param string
@@ -278,22 +614,15 @@ public class MonitorHTTPServer {
 	}
 	
 	/**
-	 * Closes connection
-	 * @param socket
-	 * @param out
-	 * @param in
-	 * @throws IOException
+	 * Returns factory of daemon threads, so monitor's pools don't keep the JVM alive after server thread ends
+	 * @return thread factory
 	 */
-	private static void close(Socket socket, BufferedWriter out, BufferedReader in) throws IOException {
-        try {
-        	out.close();
-            in.close();
-            socket.close();
-        } catch(SocketException ex) {
-        	ex.printStackTrace(); 
-        	//System.err.println("\nServer executed\n");
-        	//System.exit(1);
-        }
+	private static ThreadFactory daemonThreads() {
+		return runnable -> {
+			Thread thread = new Thread(runnable);
+			thread.setDaemon(true);
+			return thread;
+		};
 	}
 	
 }
@@ -0,0 +1,93 @@
+package networkOfCounters;
+
+/**
+ * Long-running action started with the monitor's JSON API, e.g. adding an agent or sending DEL.
+ * Clients get its id at once and poll /api/jobs?id= for the result
+ * @author Grzegorz Golebiowski
+ *
+ */
+public class MonitorJob {
+
+	public enum Status {
+		RUNNING, DONE, FAILED
+	}
+
+	/**
+	 * Work done by the job
+	 */
+	public interface Action {
+		/**
+		 * @return short description of the result, e.g. address of added agent
+		 * @throws Exception
+		 */
+		String run() throws Exception;
+	}
+
+	private final long id;
+	private final String name;
+	private final long created = System.currentTimeMillis();
+	private volatile Status status = Status.RUNNING;
+	private volatile String result;
+	private volatile long finished;
+
+	public MonitorJob(long id, String name) {
+		this.id = id;
+		this.name = name;
+	}
+
+	/**
+	 * Runs the action in the calling thread and stores its result or error
+	 * @param action
+	 */
+	void run(Action action) {
+		try {
+			result = action.run();
+			status = Status.DONE;
+		} catch (Exception ex) {
+			result = ex.toString();
+			status = Status.FAILED;
+		}
+		finished = System.currentTimeMillis();
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public boolean isFinished() {
+		return status != Status.RUNNING;
+	}
+
+	/**
+	 * Returns time when the job finished
+	 * @return time in milliseconds, 0 while running
+	 */
+	public long getFinished() {
+		return finished;
+	}
+
+	/**
+	 * Returns job as JSON object
+	 * @return JSON
+	 */
+	public String toJson() {
+		Status status = this.status; // result is written before status
+		StringBuilder json = new StringBuilder("{\"id\":").append(id)
+				.append(",\"action\":").append(JsonUtils.quote(name))
+				.append(",\"status\":\"").append(status).append('"')
+				.append(",\"created\":").append(created);
+		if(status != Status.RUNNING) {
+			json.append(",\"finished\":").append(finished)
+				.append(status == Status.DONE ? ",\"result\":" : ",\"error\":").append(JsonUtils.quote(result));
+		}
+		return json.append('}').toString();
+	}
+}
@@ -0,0 +1,224 @@
+package networkOfCounters;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * HTML page of the control panel. Parts which never change, i.e. buttons on top of the page and sync mode buttons,
+ * are rendered once and kept as bytes. Every agent has its fragment with forms rendered around its counter, kept until
+ * the agent is removed from the monitor, so only counters and status lines are rendered for each request.
+ * Table of agents is split into pages and can be filtered by address
+ * @author Grzegorz Golebiowski
+ *
+ */
+class MonitorPage {
+
+	static final int DEFAULT_PAGE_SIZE = Integer.getInteger("networkOfCounters.monitorPageSize", 100); // agents on a page
+	static final int MAX_PAGE_SIZE = 1000;
+
+	private static final byte[] HEADER = bytes("<title>Siec licznikow</title>"
+			+ "<form action=\"\" method=\"get\"><div>\r\n"
+			+ "</br>&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;<button type=\"submit\">REFRESH</button>\r\n"
+			+ "&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;<button type=\"submit\" name=\"action\" value=\"toggle\">TOGGLE LOGS</button></div></br></br>\r\n"
+			+ "<label for=\"say\">Kliknij aby dodac pierwszego agenta</label>\r\n"
+			+ "<button name=\"action\" type=\"submit\" value=\"ADD\">ADD AGENT</button></div>\r\n"
+			+ "</form><br/>\r\n");
+	private static final byte[] MODE_FORM = bytes("<form action=\"\" method=\"get\"><input type=\"hidden\" name=\"action\" value=\"MOD\">Tryb synchronizacji: ");
+	private static final byte[] MODE_BUTTONS = renderModeButtons();
+	private static final byte[] TABLE_START = bytes("<table>\r\n");
+	private static final byte[] TABLE_END = bytes("</table>\r\n");
+
+	/**
+	 * Cached HTML of a single agent, its counter is written between the two parts
+	 */
+	private static class Fragment {
+		final String address;
+		final byte[] beforeCounter;
+		final byte[] afterCounter;
+
+		Fragment(String address) {
+			this.address = address;
+			this.beforeCounter = bytes("<form action=\"\" method=\"get\"><input type=\"hidden\" name=\"agent\" value=\"" + address + "\">"
+					+ "Agent: " + address + " " + " || Wartosc licznika: ");
+			this.afterCounter = bytes(" <button name=\"action\" type=\"submit\" value=\"SYN\">SEND SYN</button>\r\n "
+					+ "<button name=\"action\" type=\"submit\" value=\"DEL\">SEND DEL</button>\r\n<br/> "
+					+ "</form>\r\n"
+					+ "<form action=\"\" method=\"get\"><input type=\"hidden\" name=\"intro\" value=\"" + address + "\">"
+					+ "<label for=\"say\">Wprowadz nowego agenta. Licznik: </label>"
+					+ "<input type=\"number\" min=\"0\" max=\"1000000000\" name=\"timerValue\">"
+					+ "<button type=\"submit\" name=\"action\" value=\"ADD\">ADD AGENT</button></div>"
+					+ "</form><br/><br/><br/>\r\n");
+		}
+	}
+
+	private final Map<Agent, Fragment> fragments = new ConcurrentHashMap<>();
+
+	/**
+	 * Writes the page
+	 * @param out body of the response
+	 * @param agents agents of the monitor
+	 * @param page number of the page, from 1, pages after the last one show the last one
+	 * @param pageSize agents on a page
+	 * @param filter part of the address of shown agents, empty shows all agents
+	 * @param job job started by the request of the page, may be null
+	 * @throws IOException
+	 */
+	void write(OutputStream out, List<Agent> agents, int page, int pageSize, String filter, MonitorJob job) throws IOException {
+		out.write(HEADER);
+		if(job != null)
+			write(out, "Uruchomiono zadanie " + job.getId() + " (" + escape(job.getName()) + "), stan: <a href=\"/api/jobs?id=" + job.getId()
+					+ "\">/api/jobs?id=" + job.getId() + "</a><br/><br/>\r\n");
+		writeSyncModeInfo(out, agents);
+		List<Fragment> shown = new ArrayList<>(filter.isEmpty() ? agents.size() : 16);
+		List<Agent> shownAgents = new ArrayList<>(shown.size());
+		for(Agent a : agents) {
+			Fragment fragment = fragments.computeIfAbsent(a, agent -> new Fragment(agent.toString()));
+			if(fragment.address.contains(filter)) {
+				shown.add(fragment);
+				shownAgents.add(a);
+			}
+		}
+		int pages = Math.max(1, (shown.size() + pageSize - 1) / pageSize);
+		page = Math.min(Math.max(1, page), pages);
+		writeNavigation(out, shown.size(), page, pages, pageSize, filter);
+		out.write(TABLE_START);
+		int end = Math.min(shown.size(), page * pageSize);
+		for(int i = (page - 1) * pageSize; i < end; i++) {
+			Fragment fragment = shown.get(i);
+			out.write(fragment.beforeCounter);
+			write(out, Long.toString(shownAgents.get(i).getTimerValue()));
+			out.write(fragment.afterCounter);
+		}
+		out.write(TABLE_END);
+	}
+
+	/**
+	 * Drops cached fragment of an agent removed from the monitor
+	 * @param agent
+	 */
+	void forget(Agent agent) {
+		fragments.remove(agent);
+	}
+
+	/**
+	 * Writes sync mode buttons and, in GOSSIP mode, convergence of push-sum estimates, in CRDT mode spread of counters
+	 * @param out
+	 * @param agents
+	 * @throws IOException
+	 */
+	private static void writeSyncModeInfo(OutputStream out, List<Agent> agents) throws IOException {
+		SyncMode current = agents.isEmpty() ? AgentConfig.getDefault().getSyncMode() : agents.get(0).getSyncMode();
+		out.write(MODE_FORM);
+		write(out, current + " ");
+		out.write(MODE_BUTTONS);
+		if(current == SyncMode.GOSSIP && !agents.isEmpty()) {
+			long minEstimate = Long.MAX_VALUE;
+			long maxEstimate = Long.MIN_VALUE;
+			long epoch = Long.MIN_VALUE;
+			int roundsLeft = 0;
+			double lastChange = 0;
+			for(Agent a : agents) {
+				long estimate = a.getGossipEstimate();
+				minEstimate = Math.min(minEstimate, estimate);
+				maxEstimate = Math.max(maxEstimate, estimate);
+				epoch = Math.max(epoch, a.getGossipEpoch());
+				roundsLeft = Math.max(roundsLeft, a.getGossipRoundsLeft());
+				if(!Double.isNaN(a.getGossipLastChange()))
+					lastChange = Math.max(lastChange, a.getGossipLastChange());
+			}
+			write(out, "Gossip - epoka: " + epoch + " || pozostale rundy: " + roundsLeft + " || rozrzut oszacowan: " + (maxEstimate - minEstimate)
+					+ " ms || najwieksza zmiana w ostatniej rundzie: " + String.format("%.2f", lastChange) + " ms<br/>\r\n");
+		}
+		if(current == SyncMode.CRDT && !agents.isEmpty()) {
+			long minCounter = Long.MAX_VALUE;
+			long maxCounter = Long.MIN_VALUE;
+			int pairs = 0;
+			for(Agent a : agents) {
+				long counter = a.getTimerValue();
+				minCounter = Math.min(minCounter, counter);
+				maxCounter = Math.max(maxCounter, counter);
+				pairs = Math.max(pairs, a.getPNCounterSize());
+			}
+			write(out, "CRDT - par licznika PN: " + pairs + " || rozrzut licznikow: " + (maxCounter - minCounter) + " ms<br/>\r\n");
+		}
+		write(out, "<br/>\r\n");
+	}
+
+	/**
+	 * Writes filter form and links to the previous and next page
+	 * @param out
+	 * @param shown number of agents matching the filter
+	 * @param page
+	 * @param pages
+	 * @param pageSize
+	 * @param filter
+	 * @throws IOException
+	 */
+	private static void writeNavigation(OutputStream out, int shown, int page, int pages, int pageSize, String filter) throws IOException {
+		StringBuilder html = new StringBuilder(512);
+		html.append("<form action=\"\" method=\"get\">Filtr adresu: <input type=\"text\" name=\"filter\" value=\"").append(escape(filter)).append("\"> ")
+			.append("Agentow na stronie: <input type=\"number\" min=\"1\" max=\"").append(MAX_PAGE_SIZE).append("\" name=\"size\" value=\"").append(pageSize).append("\"> ")
+			.append("<button type=\"submit\">FILTRUJ</button></form>\r\n")
+			.append("Agenci: ").append(shown).append(" || Strona ").append(page).append(" z ").append(pages);
+		if(page > 1)
+			html.append(" || <a href=\"").append(getPageLink(page - 1, pageSize, filter)).append("\">POPRZEDNIA</a>");
+		if(page < pages)
+			html.append(" || <a href=\"").append(getPageLink(page + 1, pageSize, filter)).append("\">NASTEPNA</a>");
+		html.append("<br/><br/>\r\n");
+		write(out, html.toString());
+	}
+
+	private static String getPageLink(int page, int pageSize, String filter) {
+		String link = "?page=" + page + "&amp;size=" + pageSize;
+		if(filter.isEmpty())
+			return link;
+		try {
+			return link + "&amp;filter=" + URLEncoder.encode(filter, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e); // UTF-8 is always supported
+		}
+	}
+
+	/**
+	 * Escapes text put into HTML attribute or element
+	 * @param text
+	 * @return escaped text
+	 */
+	private static String escape(String text) {
+		StringBuilder escaped = new StringBuilder(text.length());
+		for(int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch(c) {
+				case '<': escaped.append("&lt;"); break;
+				case '>': escaped.append("&gt;"); break;
+				case '&': escaped.append("&amp;"); break;
+				case '"': escaped.append("&quot;"); break;
+				case '\'': escaped.append("&#39;"); break;
+				default: escaped.append(c);
+			}
+		}
+		return escaped.toString();
+	}
+
+	private static byte[] renderModeButtons() {
+		StringBuilder html = new StringBuilder(256);
+		for(SyncMode mode : SyncMode.values())
+			html.append("<button name=\"mode\" type=\"submit\" value=\"").append(mode).append("\">").append(mode).append("</button>\r\n");
+		return bytes(html.append("</form>\r\n").toString());
+	}
+
+	private static void write(OutputStream out, String text) throws IOException {
+		out.write(bytes(text));
+	}
+
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+}
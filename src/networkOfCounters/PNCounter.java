@@ -0,0 +1,163 @@
+package networkOfCounters;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * PN-counter of CRDT mode: every agent has its own pair of sums, of increments and of decrements it made, and the value
+ * is the sum of all increments minus the sum of all decrements. Pairs are merged by taking the maximum of each sum,
+ * so merges are commutative and idempotent and agents which have seen the same pairs have the same value.
+ * Every change of a pair gets the next local sequence number, a peer is sent only pairs changed after the sequence number
+ * it has acknowledged (delta-state) and asks only for pairs changed after the sequence number it has already merged.
+ * Pairs of agents which left the network stay, their increments and decrements still count
+ * @author Grzegorz Golebiowski
+ *
+ */
+class PNCounter {
+
+	/**
+	 * Increments and decrements made by a single agent
+	 */
+	private static class Pair {
+		long increments;
+		long decrements;
+		long sequence; // local sequence number of the last change
+	}
+
+	private final Map<String, Pair> pairs = new HashMap<>(); // agent -> its pair
+	private final Map<String, Long> acknowledged = new HashMap<>(); // peer -> own sequence number up to which peer has merged pairs
+	private final Map<String, Long> merged = new HashMap<>(); // peer -> its sequence number up to which its pairs were merged
+	private long sequence = System.currentTimeMillis() << 16; // restarted agent continues above sequence numbers merged by peers before
+	private volatile long value; // read without locking
+
+	/**
+	 * Adds delta to the pair of given agent, increments when delta is positive and decrements otherwise
+	 * @param agent IP address and port
+	 * @param delta
+	 */
+	synchronized void add(String agent, long delta) {
+		if(delta == 0)
+			return;
+		Pair pair = pairs.computeIfAbsent(agent, a -> new Pair());
+		if(delta > 0)
+			pair.increments += delta;
+		else
+			pair.decrements -= delta;
+		pair.sequence = ++sequence;
+		value += delta;
+	}
+
+	/**
+	 * Returns sum of increments minus sum of decrements of all known pairs
+	 * @return value
+	 */
+	long getValue() {
+		return value;
+	}
+
+	synchronized boolean isEmpty() {
+		return pairs.isEmpty();
+	}
+
+	synchronized int size() {
+		return pairs.size();
+	}
+
+	/**
+	 * Returns sequence number of given peer up to which its pairs were merged, sent in DLT so the peer answers only with newer changes
+	 * @param peer
+	 * @return sequence number, 0 if nothing was merged
+	 */
+	synchronized long getMerged(String peer) {
+		return merged.getOrDefault(peer, 0L);
+	}
+
+	/**
+	 * Appends to DLT pairs changed after the sequence number acknowledged by given peer
+	 * @param peer
+	 * @param frame
+	 * @return sequence number of the delta, acknowledged by the peer when it answers
+	 */
+	synchronized long writeDelta(String peer, Frame frame) {
+		writeChangesSince(acknowledged.getOrDefault(peer, 0L), frame);
+		return sequence;
+	}
+
+	/**
+	 * Appends pairs changed after given sequence number and sets the current sequence number as value of the frame
+	 * @param since
+	 * @param frame DLT or DLR
+	 */
+	synchronized void writeChangesSince(long since, Frame frame) {
+		frame.setValue(sequence);
+		for(Map.Entry<String, Pair> entry : pairs.entrySet()) {
+			Pair pair = entry.getValue();
+			if(pair.sequence > since)
+				frame.addPair(MessageUtils.packAddress(entry.getKey()), pair.increments, pair.decrements);
+		}
+	}
+
+	/**
+	 * Merges pairs carried by DLT or DLR of given peer, pairs which changed get new local sequence numbers, so they are passed on
+	 * @param peer
+	 * @param frame
+	 * @return number of pairs which changed
+	 */
+	synchronized int merge(String peer, Frame frame) {
+		int changed = mergePairs(frame);
+		merged.merge(peer, frame.getValue(), Math::max);
+		return changed;
+	}
+
+	/**
+	 * Merges pairs carried by a frame without recording sequence number of the sender, e.g. the pair of an agent carried by its LVE
+	 * @param frame
+	 * @return number of pairs which changed
+	 */
+	synchronized int mergePairs(Frame frame) {
+		int changed = 0;
+		for(int i = 0; i < frame.getAddressCount(); i++) {
+			long increments = frame.getIncrements(i);
+			long decrements = frame.getDecrements(i);
+			Pair pair = pairs.computeIfAbsent(MessageUtils.addressToString(frame.getAddress(i)), a -> new Pair());
+			if(increments <= pair.increments && decrements <= pair.decrements)
+				continue;
+			long increase = Math.max(0, increments - pair.increments) - Math.max(0, decrements - pair.decrements);
+			pair.increments = Math.max(pair.increments, increments);
+			pair.decrements = Math.max(pair.decrements, decrements);
+			pair.sequence = ++sequence;
+			value += increase;
+			changed++;
+		}
+		return changed;
+	}
+
+	/**
+	 * Appends pair of given agent, if it has one
+	 * @param agent
+	 * @param frame
+	 */
+	synchronized void writePair(String agent, Frame frame) {
+		Pair pair = pairs.get(agent);
+		if(pair != null)
+			frame.addPair(MessageUtils.packAddress(agent), pair.increments, pair.decrements);
+	}
+
+	/**
+	 * Records that given peer has merged pairs of this agent up to given sequence number
+	 * @param peer
+	 * @param sequence returned by writeDelta
+	 */
+	synchronized void acknowledge(String peer, long sequence) {
+		acknowledged.merge(peer, sequence, Math::max);
+	}
+
+	/**
+	 * Drops sequence numbers of a peer which left the network, its pair stays
+	 * @param peer
+	 */
+	synchronized void forget(String peer) {
+		acknowledged.remove(peer);
+		merged.remove(peer);
+	}
+}
@@ -0,0 +1,83 @@
+package networkOfCounters;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Long-lived TCP connection to a single peer, owned by PeerConnectionPool
+ * @author Grzegorz Golebiowski
+ *
+ */
+class PeerConnection implements Closeable {
+
+	private final String address; // IP:port
+	private final Socket socket;
+	private final FrameChannel channel;
+	private volatile long lastUsed; // milliseconds
+	private boolean reused;
+
+	/**
+	 * Opens new connection to a peer
+	 * @param address peer's IP and port, e.g. 127.0.0.1:8888
+	 * @param metrics metrics of the agent owning the pool
+	 * @param connectTimeout milliseconds
+	 * @throws IOException
+	 */
+	PeerConnection(String address, AgentMetrics metrics, int connectTimeout) throws IOException {
+		String ipAndPort[] = address.split(":");
+		this.address = address;
+		this.socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(ipAndPort[0], Integer.parseInt(ipAndPort[1])), connectTimeout); // host which is down doesn't block the caller for minutes
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		this.socket.setTcpNoDelay(true); // single small frames, no point in waiting for more data
+		this.channel = new FrameChannel(socket, metrics);
+		this.lastUsed = System.currentTimeMillis();
+	}
+
+	String getAddress() {
+		return address;
+	}
+
+	FrameChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Checks if connection was taken from the pool, so the peer might have already closed it
+	 * @return true if connection was used before
+	 */
+	boolean isReused() {
+		return reused;
+	}
+
+	void markReused() {
+		reused = true;
+	}
+
+	void touch() {
+		lastUsed = System.currentTimeMillis();
+	}
+
+	boolean isIdleLongerThan(long timeout) {
+		return System.currentTimeMillis() - lastUsed > timeout;
+	}
+
+	boolean isBroken() {
+		return socket.isClosed() || !socket.isConnected() || socket.isInputShutdown() || socket.isOutputShutdown();
+	}
+
+	@Override
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
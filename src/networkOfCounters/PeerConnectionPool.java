@@ -0,0 +1,257 @@
+package networkOfCounters;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps reusable connections to agent's peers, so a single flag doesn't cost a TCP handshake.
+ * Connections idle longer than AgentConfig.getConnectionIdleTimeout() and broken connections are evicted.
+ * @author Grzegorz Golebiowski
+ *
+ */
+public class PeerConnectionPool {
+
+	/**
+	 * Single request-response exchange done on a pooled connection
+	 * @param <T> type of the answer
+	 */
+	public interface Exchange<T> {
+		T apply(FrameChannel channel) throws IOException;
+	}
+
+	private final Map<String, Deque<PeerConnection>> idleConnections = new ConcurrentHashMap<>();
+	private final AgentConfig config;
+	private final AgentMetrics metrics;
+	private final FailureDetector failureDetector; // may be null
+	private final CounterCache counterCache; // may be null
+	private volatile long lastEviction = System.currentTimeMillis();
+	private volatile boolean closed;
+
+	/**
+	 * @param config
+	 * @param metrics
+	 * @param failureDetector gets heartbeat of a peer with every answer of the peer, may be null
+	 * @param counterCache gets counter of a peer with every VAL and ACK answer of the peer, may be null
+	 */
+	public PeerConnectionPool(AgentConfig config, AgentMetrics metrics, FailureDetector failureDetector, CounterCache counterCache) {
+		this.config = config;
+		this.metrics = metrics;
+		this.failureDetector = failureDetector;
+		this.counterCache = counterCache;
+	}
+
+	/**
+	 * Runs exchange on a connection to a given peer, waiting for answers at most AgentConfig.getRoundDeadline()
+	 * @param address peer's IP and port
+	 * @param exchange
+	 * @return answer returned by exchange
+	 * @throws IOException
+	 */
+	public <T> T execute(String address, Exchange<T> exchange) throws IOException {
+		return execute(address, config.getRoundDeadline(), exchange);
+	}
+
+	/**
+	 * Runs exchange on a connection to a given peer. When pooled connection turns out to be closed by the peer,
+	 * i.e. request couldn't be written, or connection was closed or reset before any byte of the answer to an idempotent request arrived,
+	 * exchange is retried once on a new connection. Timeouts, ERR answers and other written requests aren't retried, peer may have applied the request. When the peer answers with BSY, exchange is retried after
+	 * the time sent by the peer, doubled with every retry and randomized, at most AgentConfig.getBusyRetries() times
+	 * and only while the timeout doesn't pass
+	 * @param address peer's IP and port
+	 * @param timeout maximal time of the whole call in milliseconds, retries get only what is left of it
+	 * @param exchange
+	 * @return answer returned by exchange
+	 * @throws IOException
+	 * @throws AgentBusyException when peer is still busy after the retries
+	 */
+	public <T> T execute(String address, int timeout, Exchange<T> exchange) throws IOException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		for(int retry = 0; ; retry++) {
+			try {
+				return executeOnce(address, deadline, exchange);
+			} catch (AgentBusyException e) {
+				long backoff = e.getRetryAfter() << Math.min(retry, 16);
+				backoff = ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1); // retries of many agents don't come back at once
+				if(retry >= config.getBusyRetries() || System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff) - deadline >= 0)
+					throw e;
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException interrupted) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for busy agent " + address);
+				}
+			}
+		}
+	}
+
+	private <T> T executeOnce(String address, long deadline, Exchange<T> exchange) throws IOException {
+		PeerConnection connection = acquire(address);
+		FrameChannel channel = connection.getChannel();
+		long written = channel.getFramesWritten();
+		long started = channel.getFramesStarted();
+		try {
+			return exchangeAndRelease(connection, getRemainingMillis(deadline), exchange);
+		} catch (AgentBusyException e) {
+			throw e; // peer has answered, connection was fine
+		} catch (IOException e) {
+			if(!connection.isReused() || !isClosedByPeer(channel, written, started, e))
+				throw e;
+			return exchangeAndRelease(open(address), getRemainingMillis(deadline), exchange); // stale connection, peer has closed it
+		}
+	}
+
+	/**
+	 * Returns time left until the deadline of a call, used as timeout of the socket
+	 * @param deadline System.nanoTime() at which the call ends
+	 * @return milliseconds, at least 1, since 0 would mean no timeout
+	 */
+	private static int getRemainingMillis(long deadline) {
+		return (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+	}
+
+	/**
+	 * Checks whether exchange failed because peer had closed the connection before it could have applied the request,
+	 * so the request can be sent again on a new connection. Peer may apply a written request and close the connection without answering,
+	 * so a written request is sent again only when applying it twice doesn't change anything
+	 * @param channel
+	 * @param written frames written by the channel before the exchange
+	 * @param started frames started to be received by the channel before the exchange
+	 * @param e failure of the exchange
+	 * @return true if no request was written, or nothing was answered to an idempotent request and the connection was closed or reset
+	 */
+	static boolean isClosedByPeer(FrameChannel channel, long written, long started, IOException e) {
+		if(channel.getFramesStarted() != started)
+			return false; // peer has answered, at least one request was applied
+		if(channel.getFramesWritten() == written)
+			return true;
+		if(!isIdempotent(channel.getLastWrittenOpcode()))
+			return false; // e.g. PSH or UPD may have been applied already
+		return e instanceof EOFException || e instanceof SocketException; // reset, not timeout which is InterruptedIOException
+	}
+
+	/**
+	 * Checks whether request with a given flag can be applied twice with the same result
+	 * @param opcode
+	 * @return true for CLK, NET, HBT and AGG
+	 */
+	private static boolean isIdempotent(byte opcode) {
+		return opcode == MessageUtils.CLK || opcode == MessageUtils.NET || opcode == MessageUtils.HBT || opcode == MessageUtils.AGG;
+	}
+
+	private <T> T exchangeAndRelease(PeerConnection connection, int timeout, Exchange<T> exchange) throws IOException {
+		boolean succeeded = false;
+		try {
+			connection.getChannel().getSocket().setSoTimeout(timeout);
+			T answer = exchange.apply(connection.getChannel());
+			succeeded = true;
+			if(failureDetector != null)
+				failureDetector.heartbeat(connection.getAddress());
+			Frame response = connection.getChannel().inbound();
+			if(counterCache != null && (response.getOpcode() == MessageUtils.VAL || response.getOpcode() == MessageUtils.ACK))
+				counterCache.put(connection.getAddress(), response.getValue());
+			return answer;
+		} catch (AgentBusyException e) {
+			succeeded = true; // BSY was read whole, connection can be reused
+			if(failureDetector != null)
+				failureDetector.heartbeat(connection.getAddress());
+			throw e;
+		} finally {
+			if(succeeded)
+				release(connection);
+			else
+				connection.close(); // stream state is unknown, connection can't be reused
+		}
+	}
+
+	/**
+	 * Returns idle connection to a given peer or opens new one
+	 * @param address
+	 * @return connection
+	 * @throws IOException
+	 */
+	private PeerConnection acquire(String address) throws IOException {
+		Deque<PeerConnection> idle = idleConnections.get(address);
+		if(idle != null) {
+			PeerConnection connection;
+			while((connection = idle.pollFirst()) != null) {
+				if(connection.isBroken() || connection.isIdleLongerThan(config.getConnectionIdleTimeout())) {
+					connection.close();
+				} else {
+					connection.markReused();
+					return connection;
+				}
+			}
+		}
+		return open(address);
+	}
+
+	private PeerConnection open(String address) throws IOException {
+		try {
+			PeerConnection connection = new PeerConnection(address, metrics, config.getConnectTimeout());
+			metrics.connectionOpened();
+			return connection;
+		} catch (IOException e) {
+			metrics.connectionFailed();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gives connection back to the pool, closes it when pool is closed or full
+	 * @param connection
+	 */
+	private void release(PeerConnection connection) {
+		Deque<PeerConnection> idle = idleConnections.computeIfAbsent(connection.getAddress(), a -> new ConcurrentLinkedDeque<>());
+		if(closed || connection.isBroken() || idle.size() >= config.getMaxIdleConnectionsPerPeer()) {
+			connection.close();
+		} else {
+			connection.touch();
+			idle.offerFirst(connection); // most recently used first, so the rest can time out
+		}
+		if(System.currentTimeMillis() - lastEviction > config.getConnectionIdleTimeout() / 2)
+			evictIdle();
+	}
+
+	/**
+	 * Closes every connection which has been idle for too long or is broken
+	 */
+	public void evictIdle() {
+		lastEviction = System.currentTimeMillis();
+		for(Deque<PeerConnection> idle : idleConnections.values()) {
+			idle.removeIf(connection -> {
+				if(connection.isBroken() || connection.isIdleLongerThan(config.getConnectionIdleTimeout())) {
+					connection.close();
+					return true;
+				}
+				return false;
+			});
+		}
+	}
+
+	/**
+	 * Closes all idle connections to a given peer, e.g. when it leaves the network
+	 * @param address
+	 */
+	public void closeConnections(String address) {
+		Deque<PeerConnection> idle = idleConnections.remove(address);
+		if(idle != null)
+			idle.forEach(PeerConnection::close);
+	}
+
+	/**
+	 * Closes all connections, connections released afterwards are closed as well
+	 */
+	public void closeAll() {
+		closed = true;
+		for(String address : idleConnections.keySet())
+			closeConnections(address);
+	}
+}
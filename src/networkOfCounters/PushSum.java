@@ -0,0 +1,187 @@
+package networkOfCounters;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * State of push-sum gossip averaging of a single agent. Each round the agent keeps one part of its (mass, weight)
+ * pair and pushes the other parts to random peers, mass/weight converges to the average of counters.
+ * Mass is kept relative to the local counter, so counters ticking during the epoch don't change the estimate
+ * @author Grzegorz Golebiowski
+ *
+ */
+class PushSum {
+
+	/**
+	 * Part of the state pushed to a peer, mass is absolute (counter value times weight at the moment of sending)
+	 */
+	static class Share {
+		final double mass;
+		final double weight;
+
+		Share(double mass, double weight) {
+			this.mass = mass;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * Share pushed to a single peer. It goes back to the state of the sender only when it provably didn't reach the peer:
+	 * PSH wasn't written or the peer answered with BSY or ERR. PSH which timed out after it was written counts as delivered,
+	 * because the peer may have absorbed it, and mass which exists twice would move the average for good
+	 */
+	static class Delivery {
+		private static final int PENDING = 0; // not written yet or writing failed, may be retried
+		private static final int WRITING = 1;
+		private static final int WRITTEN = 2; // may have been absorbed by the peer
+		private static final int RETURNED = 3; // absorbed back by the sender
+
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+
+		/**
+		 * Called before PSH is written
+		 * @return false if share was already given back, PSH mustn't be sent
+		 */
+		boolean startWrite() {
+			return state.compareAndSet(PENDING, WRITING);
+		}
+
+		/**
+		 * Called after the attempt to send PSH
+		 * @param written true if PSH was written and wasn't rejected with BSY or ERR
+		 */
+		void finishWrite(boolean written) {
+			state.compareAndSet(WRITING, written ? WRITTEN : PENDING);
+		}
+
+		/**
+		 * Gives share back when it wasn't written and no write is in progress, at most once.
+		 * Called after the last attempt and at the end of the round, so a write cut off by the deadline is handled by the attempt itself
+		 * @param pushSum
+		 * @param epoch epoch of the share
+		 * @param share
+		 * @param counter current local counter
+		 */
+		void returnIfUndelivered(PushSum pushSum, long epoch, Share share, long counter) {
+			if(state.compareAndSet(PENDING, RETURNED))
+				pushSum.returnShare(epoch, share, counter);
+		}
+	}
+
+	private static final double MIN_SIGNIFICANT_CHANGE = 0.5; // milliseconds
+
+	private long epoch = -1;
+	private double mass; // relative to local counter
+	private double weight;
+	private int roundsLeft;
+	private double previousRatio; // mass/weight at the previous round
+	private double lastChange = Double.NaN; // how much estimate has moved since the previous round, milliseconds
+
+	/**
+	 * Starts new epoch with local counter as the only mass, unless given epoch isn't newer than the current one
+	 * @param epoch
+	 * @param rounds number of rounds in which this agent pushes its state
+	 * @return true if epoch was started
+	 */
+	synchronized boolean startEpoch(long epoch, int rounds) {
+		if(epoch <= this.epoch)
+			return false;
+		this.epoch = epoch;
+		this.mass = 0;
+		this.weight = 1;
+		this.roundsLeft = rounds;
+		this.previousRatio = 0;
+		this.lastChange = Double.NaN;
+		return true;
+	}
+
+	/**
+	 * Splits state into given number of equal parts, keeps one of them and returns another one, which should be pushed
+	 * to each of (parts - 1) peers. Ends one round
+	 * @param parts
+	 * @param counter current local counter
+	 * @return share to be pushed to each peer
+	 */
+	synchronized Share split(int parts, long counter) {
+		lastChange = Math.abs(mass / weight - previousRatio);
+		previousRatio = mass / weight;
+		mass /= parts;
+		weight /= parts;
+		roundsLeft--;
+		return new Share(mass + weight * counter, weight);
+	}
+
+	/**
+	 * Adds share pushed by a peer (or share which couldn't be delivered) to the state
+	 * @param share
+	 * @param counter current local counter
+	 */
+	synchronized void absorb(Share share, long counter) {
+		mass += share.mass - share.weight * counter;
+		weight += share.weight;
+	}
+
+	/**
+	 * Adds share pushed by a peer, starting its epoch first if it's newer than the current one
+	 * @param epoch epoch of the share
+	 * @param rounds number of rounds in which this agent pushes its state, if the epoch is started
+	 * @param share
+	 * @param counter current local counter
+	 * @return false if share belongs to an epoch older than the current one and was ignored
+	 */
+	synchronized boolean receive(long epoch, int rounds, Share share, long counter) {
+		startEpoch(epoch, rounds);
+		return returnShare(epoch, share, counter);
+	}
+
+	/**
+	 * Adds share of given epoch, pushed by a peer or not delivered to a peer, ignoring it when the epoch has already changed
+	 * @param epoch epoch of the share
+	 * @param share
+	 * @param counter current local counter
+	 * @return false if share belongs to another epoch and was ignored
+	 */
+	synchronized boolean returnShare(long epoch, Share share, long counter) {
+		if(epoch != this.epoch)
+			return false;
+		double previous = mass / weight;
+		absorb(share, counter);
+		if(roundsLeft == 0 && Math.abs(mass / weight - previous) >= MIN_SIGNIFICANT_CHANGE)
+			roundsLeft = 1; // late share would stay here, one more round passes it on and sets the counter again
+		return true;
+	}
+
+	/**
+	 * Moves estimate into the counter: returns difference between estimate and local counter, which has to be added to the counter,
+	 * and rebases mass on the adjusted counter
+	 * @return adjustment of the counter in milliseconds
+	 */
+	synchronized long settle() {
+		if(weight == 0)
+			return 0;
+		long adjustment = Math.round(mass / weight);
+		mass -= adjustment * weight;
+		previousRatio -= adjustment;
+		return adjustment;
+	}
+
+	/**
+	 * Returns current estimate of the average
+	 * @param counter current local counter
+	 * @return estimated average of counters
+	 */
+	synchronized long estimate(long counter) {
+		return weight == 0 ? counter : counter + Math.round(mass / weight);
+	}
+
+	synchronized long getEpoch() {
+		return epoch;
+	}
+
+	synchronized int getRoundsLeft() {
+		return roundsLeft;
+	}
+
+	synchronized double getLastChange() {
+		return lastChange;
+	}
+}
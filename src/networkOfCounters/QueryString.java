@@ -0,0 +1,120 @@
+package networkOfCounters;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parameters of a query string, e.g. action=SYN&agent=127.0.0.1%3A5555. The query is scanned once for boundaries of parameters,
+ * values are decoded only when asked for and without copying when they contain no escapes.
+ * Instances aren't shared between threads, every request has its own
+ * @author Grzegorz Golebiowski
+ *
+ */
+public class QueryString {
+
+	private static final int[] NO_BOUNDS = new int[0];
+
+	private final String query;
+	private final int[] bounds; // for every parameter: start of name, end of name ('=' or end of parameter), end of value
+	private final int count;
+
+	/**
+	 * @param query query string without '?'
+	 */
+	public QueryString(String query) {
+		this.query = query;
+		int parameters = 0;
+		for(int i = 0; i < query.length(); i++) {
+			if(query.charAt(i) == '&')
+				parameters++;
+		}
+		int[] bounds = query.isEmpty() ? NO_BOUNDS : new int[3 * (parameters + 1)];
+		int count = 0;
+		int start = 0;
+		int nameEnd = -1;
+		for(int i = 0; i <= query.length(); i++) {
+			char c = i < query.length() ? query.charAt(i) : '&';
+			if(c == '=' && nameEnd < 0) {
+				nameEnd = i;
+			} else if(c == '&') {
+				if(i > start) { // skips empty parameters, e.g. a&&b
+					bounds[3 * count] = start;
+					bounds[3 * count + 1] = nameEnd < 0 ? i : nameEnd;
+					bounds[3 * count + 2] = i;
+					count++;
+				}
+				start = i + 1;
+				nameEnd = -1;
+			}
+		}
+		this.bounds = bounds;
+		this.count = count;
+	}
+
+	/**
+	 * Returns decoded value of the first parameter with given name
+	 * @param name not encoded name
+	 * @return value, empty for parameter without '=', null when there is no such parameter
+	 * @throws IllegalArgumentException when value contains malformed escape
+	 */
+	public String get(String name) {
+		for(int i = 0; i < count; i++) {
+			int start = bounds[3 * i];
+			int nameEnd = bounds[3 * i + 1];
+			if(nameEnd - start == name.length() && query.startsWith(name, start))
+				return nameEnd == bounds[3 * i + 2] ? "" : decode(query, nameEnd + 1, bounds[3 * i + 2]);
+		}
+		return null;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * Decodes application/x-www-form-urlencoded fragment of given text
+	 * @param text
+	 * @param start
+	 * @param end
+	 * @return decoded fragment
+	 * @throws IllegalArgumentException when fragment contains malformed escape
+	 */
+	public static String decode(String text, int start, int end) {
+		int i = start;
+		while(i < end && text.charAt(i) != '%' && text.charAt(i) != '+')
+			i++;
+		if(i == end)
+			return text.substring(start, end); // nothing to decode
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(end - start);
+		i = start;
+		while(i < end) {
+			char c = text.charAt(i);
+			if(c == '+') {
+				bytes.write(' ');
+				i++;
+			} else if(c == '%') {
+				if(i + 3 > end)
+					throw new IllegalArgumentException("Incomplete escape at " + i);
+				int high = Character.digit(text.charAt(i + 1), 16);
+				int low = Character.digit(text.charAt(i + 2), 16);
+				if(high < 0 || low < 0)
+					throw new IllegalArgumentException("Malformed escape at " + i);
+				bytes.write((high << 4) | low);
+				i += 3;
+			} else if(c < 0x80) {
+				bytes.write(c);
+				i++;
+			} else { // not encoded non-ASCII character
+				int codePoint = text.codePointAt(i);
+				byte[] encoded = new String(Character.toChars(codePoint)).getBytes(StandardCharsets.UTF_8);
+				bytes.write(encoded, 0, encoded.length);
+				i += Character.charCount(codePoint);
+			}
+		}
+		return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,87 @@
+package networkOfCounters;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Dispatches requests of the monitor to handlers by exact path and method. Routes are added before the server starts
+ * and only read afterwards, so one router is shared by all connections
+ * @author Grzegorz Golebiowski
+ *
+ */
+public class Router {
+
+	/**
+	 * Answers a request
+	 */
+	public interface Handler {
+		void handle(HttpRequest request, OutputStream out, boolean keepAlive) throws IOException;
+	}
+
+	/**
+	 * Handler of a single path
+	 */
+	private static class Route {
+		final Set<String> methods;
+		final Handler handler;
+
+		Route(Set<String> methods, Handler handler) {
+			this.methods = methods;
+			this.handler = handler;
+		}
+	}
+
+	private final Map<String, Route> routes = new HashMap<>();
+	private final Handler notFound;
+	private final Handler methodNotAllowed;
+
+	/**
+	 * @param notFound handler of paths without route
+	 * @param methodNotAllowed handler of requests with method not accepted by the route
+	 */
+	public Router(Handler notFound, Handler methodNotAllowed) {
+		this.notFound = notFound;
+		this.methodNotAllowed = methodNotAllowed;
+	}
+
+	/**
+	 * Adds route
+	 * @param path exact path, e.g. /api/agents
+	 * @param handler
+	 * @param methods accepted methods, e.g. GET
+	 * @return this router
+	 */
+	public Router add(String path, Handler handler, String... methods) {
+		routes.put(path, new Route(Collections.unmodifiableSet(new HashSet<>(Arrays.asList(methods))), handler));
+		return this;
+	}
+
+	/**
+	 * Returns handler of given request
+	 * @param request
+	 * @return handler of the route, or handler of missing route or of not accepted method
+	 */
+	public Handler route(HttpRequest request) {
+		Route route = routes.get(request.getPath());
+		if(route == null)
+			return notFound;
+		return route.methods.contains(request.getMethod()) ? route.handler : methodNotAllowed;
+	}
+
+	/**
+	 * Answers request with its handler
+	 * @param request
+	 * @param out
+	 * @param keepAlive
+	 * @throws IOException
+	 */
+	public void dispatch(HttpRequest request, OutputStream out, boolean keepAlive) throws IOException {
+		route(request).handle(request, out, keepAlive);
+	}
+}
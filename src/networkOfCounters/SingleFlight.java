@@ -0,0 +1,93 @@
+package networkOfCounters;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Runs at most one round of a task at a time. Callers coming while a round is waiting to start or running join it
+ * and get its outcome instead of starting another round. The first caller waits for the debounce time before
+ * running the round, so a burst of calls is served by a single round
+ * @author Grzegorz Golebiowski
+ *
+ */
+class SingleFlight {
+
+	/**
+	 * Task run by a round
+	 */
+	interface Round {
+		void run() throws IOException, InterruptedException;
+	}
+
+	private final Round round;
+	private final AgentConfig config;
+	private CompletableFuture<Void> current; // round waiting to start or running, null when there is none
+
+	/**
+	 * @param round
+	 * @param config AgentConfig.getSyncDebounce() is the debounce time
+	 */
+	SingleFlight(Round round, AgentConfig config) {
+		this.round = round;
+		this.config = config;
+	}
+
+	/**
+	 * Joins the current round or starts a new one and waits until it ends
+	 * @return true if the round was started by this call
+	 * @throws IOException when the round failed
+	 * @throws InterruptedException
+	 */
+	boolean run() throws IOException, InterruptedException {
+		CompletableFuture<Void> flight;
+		boolean leader = false;
+		synchronized(this) {
+			if(current == null) {
+				current = new CompletableFuture<>();
+				leader = true;
+			}
+			flight = current;
+		}
+		if(leader) {
+			try {
+				if(config.getSyncDebounce() > 0)
+					Thread.sleep(config.getSyncDebounce()); // callers of the burst join meanwhile
+				round.run();
+				finish(flight, null);
+			} catch (IOException | InterruptedException | RuntimeException | Error e) {
+				finish(flight, e);
+				throw e;
+			}
+			return true;
+		}
+		try {
+			flight.get();
+			return false;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException)
+				throw new IOException("Joined round failed", cause);
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if(cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException("Joined round was interrupted", cause);
+		}
+	}
+
+	/**
+	 * Ends the round, callers coming from now on start a new one
+	 * @param flight
+	 * @param failure null if round succeeded
+	 */
+	private void finish(CompletableFuture<Void> flight, Throwable failure) {
+		synchronized(this) {
+			current = null;
+		}
+		if(failure == null)
+			flight.complete(null);
+		else
+			flight.completeExceptionally(failure);
+	}
+}
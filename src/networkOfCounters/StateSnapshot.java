@@ -0,0 +1,249 @@
+package networkOfCounters;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * State of an agent kept in a memory-mapped file, from which the agent can be restarted: its address, counter, sync mode,
+ * membership version and peers with membership versions known from them. Every change writes only the changed fields,
+ * changes reach the file when the operating system writes the mapped pages, so they survive the end of the process without fsync.
+ * File layout (big-endian): int magic | byte format version | byte sync mode | short port | int IPv4 | int number of peers |
+ * long counter minus wall clock time | long membership version | 16 reserved bytes | peers * (long packed address, long known version)
+ * @author Grzegorz Golebiowski
+ *
+ */
+public class StateSnapshot implements Closeable {
+
+	private static final int MAGIC = 0x4E4F4353; // "NOCS"
+	private static final byte FORMAT_VERSION = 1;
+	private static final int FORMAT_VERSION_OFFSET = 4;
+	private static final int MODE_OFFSET = 5;
+	private static final int PORT_OFFSET = 6;
+	private static final int IP_OFFSET = 8;
+	private static final int COUNT_OFFSET = 12;
+	private static final int COUNTER_OFFSET = 16;
+	private static final int VERSION_OFFSET = 24;
+	private static final int HEADER_SIZE = 48;
+	private static final int SLOT_SIZE = 16; // packed address, known version
+	private static final int INITIAL_CAPACITY = 64; // peers
+
+	private final File file;
+	private final FileChannel channel;
+	private MappedByteBuffer buffer;
+	private int capacity;
+	private final List<String> peers = new ArrayList<>(); // peer of every slot
+	private final Map<String, Integer> slots = new HashMap<>(); // peer -> index of its slot
+	private boolean closed;
+
+	private StateSnapshot(File file, FileChannel channel) {
+		this.file = file;
+		this.channel = channel;
+	}
+
+	/**
+	 * Creates empty snapshot, replacing existing file
+	 * @param file
+	 * @param ip IPv4 address of the agent
+	 * @param port port of the agent
+	 * @return snapshot
+	 * @throws IOException
+	 */
+	public static StateSnapshot create(File file, int ip, int port) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if(!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Can't create snapshots directory: " + dir);
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		StateSnapshot snapshot = new StateSnapshot(file, channel);
+		snapshot.map(INITIAL_CAPACITY);
+		snapshot.buffer.putInt(0, MAGIC);
+		snapshot.buffer.put(FORMAT_VERSION_OFFSET, FORMAT_VERSION);
+		snapshot.buffer.putShort(PORT_OFFSET, (short) port);
+		snapshot.buffer.putInt(IP_OFFSET, ip);
+		return snapshot;
+	}
+
+	/**
+	 * Opens snapshot written by an agent which was stopped, further changes are written to the same file
+	 * @param file
+	 * @return snapshot
+	 * @throws IOException when file can't be read or isn't a snapshot
+	 */
+	public static StateSnapshot load(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		StateSnapshot snapshot = new StateSnapshot(file, channel);
+		try {
+			long size = channel.size();
+			if(size < HEADER_SIZE)
+				throw new IOException("Incorrect snapshot file: " + file);
+			snapshot.map((int) Math.min(Integer.MAX_VALUE / SLOT_SIZE, (size - HEADER_SIZE) / SLOT_SIZE));
+			MappedByteBuffer buffer = snapshot.buffer;
+			int count = buffer.getInt(COUNT_OFFSET);
+			if(buffer.getInt(0) != MAGIC || buffer.get(FORMAT_VERSION_OFFSET) != FORMAT_VERSION || count < 0 || count > snapshot.capacity)
+				throw new IOException("Incorrect snapshot file: " + file);
+			for(int i = 0; i < count; i++) {
+				String peer = MessageUtils.addressToString(buffer.getLong(getSlotOffset(i)));
+				snapshot.slots.put(peer, i);
+				snapshot.peers.add(peer);
+			}
+			return snapshot;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public synchronized int getIP() {
+		return buffer.getInt(IP_OFFSET);
+	}
+
+	public synchronized int getPort() {
+		return buffer.getShort(PORT_OFFSET) & 0xFFFF;
+	}
+
+	/**
+	 * Returns counter of the agent. Counter keeps growing with wall clock while the agent is stopped
+	 * @return counter value now
+	 */
+	public synchronized long getCounter() {
+		return buffer.getLong(COUNTER_OFFSET) + System.currentTimeMillis();
+	}
+
+	/**
+	 * Records current counter of the agent
+	 * @param counter
+	 */
+	public synchronized void setCounter(long counter) {
+		if(!closed)
+			buffer.putLong(COUNTER_OFFSET, counter - System.currentTimeMillis());
+	}
+
+	public synchronized SyncMode getSyncMode() {
+		return SyncMode.fromCode(buffer.get(MODE_OFFSET));
+	}
+
+	public synchronized void setSyncMode(SyncMode mode) {
+		if(!closed)
+			buffer.put(MODE_OFFSET, mode.getCode());
+	}
+
+	public synchronized long getMembershipVersion() {
+		return buffer.getLong(VERSION_OFFSET);
+	}
+
+	/**
+	 * Returns peers of the agent
+	 * @return peer -> membership version known from it
+	 */
+	public synchronized Map<String, Long> getPeers() {
+		Map<String, Long> result = new LinkedHashMap<>();
+		for(int i = 0; i < peers.size(); i++)
+			result.put(peers.get(i), buffer.getLong(getSlotOffset(i) + Long.BYTES));
+		return result;
+	}
+
+	/**
+	 * Records peer added to the agents list
+	 * @param peer
+	 * @param knownVersion membership version known from the peer, 0 if none
+	 * @param membershipVersion version of the list after the change
+	 * @throws IOException when file can't be grown
+	 */
+	public synchronized void addPeer(String peer, long knownVersion, long membershipVersion) throws IOException {
+		if(closed)
+			return;
+		Integer slot = slots.get(peer);
+		if(slot == null) {
+			if(peers.size() == capacity)
+				map(capacity * 2);
+			slot = peers.size();
+			peers.add(peer);
+			slots.put(peer, slot);
+			buffer.putLong(getSlotOffset(slot), MessageUtils.packAddress(peer));
+			buffer.putInt(COUNT_OFFSET, peers.size());
+		}
+		buffer.putLong(getSlotOffset(slot) + Long.BYTES, knownVersion);
+		buffer.putLong(VERSION_OFFSET, membershipVersion);
+	}
+
+	/**
+	 * Records peer removed from the agents list, the last slot takes its place
+	 * @param peer
+	 * @param membershipVersion version of the list after the change
+	 */
+	public synchronized void removePeer(String peer, long membershipVersion) {
+		if(closed)
+			return;
+		Integer slot = slots.remove(peer);
+		if(slot != null) {
+			int last = peers.size() - 1;
+			if(slot != last) {
+				String moved = peers.get(last);
+				peers.set(slot, moved);
+				slots.put(moved, slot);
+				buffer.putLong(getSlotOffset(slot), buffer.getLong(getSlotOffset(last)));
+				buffer.putLong(getSlotOffset(slot) + Long.BYTES, buffer.getLong(getSlotOffset(last) + Long.BYTES));
+			}
+			peers.remove(last);
+			buffer.putInt(COUNT_OFFSET, peers.size());
+		}
+		buffer.putLong(VERSION_OFFSET, membershipVersion);
+	}
+
+	/**
+	 * Records membership version received from a peer, ignored for peers which aren't on the list
+	 * @param peer
+	 * @param knownVersion
+	 */
+	public synchronized void setKnownVersion(String peer, long knownVersion) {
+		Integer slot = slots.get(peer);
+		if(!closed && slot != null)
+			buffer.putLong(getSlotOffset(slot) + Long.BYTES, knownVersion);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Marks the file as invalid, closes and removes it, e.g. when agent leaves the network and shouldn't be restarted.
+	 * Mapping stays until it's collected, so on some systems, e.g. Windows, the file can't be removed yet,
+	 * but it can't be loaded anymore either
+	 * @return false if file is still there
+	 * @throws IOException
+	 */
+	public synchronized boolean delete() throws IOException {
+		buffer.putInt(0, 0); // no magic, load rejects the file
+		if(!closed)
+			buffer.force();
+		close();
+		return !file.exists() || file.delete();
+	}
+
+	/**
+	 * Stops writing changes, content of the file stays for restart
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		closed = true;
+		channel.close(); // mapping stays valid until it's collected
+	}
+
+	private void map(int capacity) throws IOException {
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+		this.capacity = capacity;
+	}
+
+	private static int getSlotOffset(int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+}
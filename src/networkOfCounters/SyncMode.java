@@ -0,0 +1,35 @@
+package networkOfCounters;
+
+/**
+ * Way in which agents of the network synchronize their counters
+ * @author Grzegorz Golebiowski
+ *
+ */
+public enum SyncMode {
+	/** SYN makes receiver poll all agents with CLK and set its counter to the average */
+	AVERAGE,
+	/** SYN starts push-sum epoch, agents exchange halves of their state with random peers until the average converges */
+	GOSSIP,
+	/** SYN makes receiver the root of a tree over live agents, sums and counts of counters go up the tree with AGG and the average goes down with AVG */
+	TREE,
+	/** counter is wall clock time plus PN-counter of increments and decrements made by agents, agents exchange delta-states with random peers and SYN is a no-op */
+	CRDT;
+
+	/**
+	 * Returns code of the mode sent in frames
+	 * @return code
+	 */
+	public byte getCode() {
+		return (byte) ordinal();
+	}
+
+	/**
+	 * Returns mode of given code
+	 * @param code
+	 * @return sync mode, AVERAGE for unknown codes
+	 */
+	public static SyncMode fromCode(byte code) {
+		SyncMode[] modes = values();
+		return code >= 0 && code < modes.length ? modes[code] : AVERAGE;
+	}
+}
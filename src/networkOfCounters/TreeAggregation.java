@@ -0,0 +1,123 @@
+package networkOfCounters;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * State of tree aggregation of a single agent in TREE mode. Root of the epoch splits other agents into parts,
+ * the first agent of every part becomes its child and the root of the rest of the part, so sums and counts of counters
+ * go up and the average goes down through a constant number of connections per agent. Newer epochs win,
+ * an agent which already takes part in a newer epoch leaves its subtree out of the older one
+ * @author Grzegorz Golebiowski
+ *
+ */
+class TreeAggregation {
+
+	/**
+	 * Sum and number of counters of a subtree
+	 */
+	static class Sum {
+		static final Sum EMPTY = new Sum(0, 0);
+
+		final long sum;
+		final int count;
+
+		Sum(long sum, int count) {
+			this.sum = sum;
+			this.count = count;
+		}
+	}
+
+	/**
+	 * Part of the tree led by this agent in a single epoch
+	 */
+	static class Subtree {
+		final long epoch;
+		final long reported; // counter sent up the tree, average corrects the counter by its distance from this value
+		final List<String> children; // children which answered AGG, they get AVG
+		final int height; // number of levels below this agent
+
+		Subtree(long epoch, long reported, List<String> children, int height) {
+			this.epoch = epoch;
+			this.reported = reported;
+			this.children = children;
+			this.height = height;
+		}
+	}
+
+	private Subtree current = new Subtree(-1, 0, Collections.emptyList(), 0);
+	private boolean settled = true;
+
+	/**
+	 * Joins given epoch with the counter reported up the tree, unless the epoch isn't newer than the current one
+	 * @param epoch
+	 * @param counter current local counter
+	 * @return true if epoch was joined
+	 */
+	synchronized boolean join(long epoch, long counter) {
+		if(epoch <= current.epoch)
+			return false;
+		current = new Subtree(epoch, counter, Collections.emptyList(), 0);
+		settled = false;
+		return true;
+	}
+
+	/**
+	 * Records children which sent back sums of their subtrees
+	 * @param epoch
+	 * @param children
+	 * @param height number of levels below this agent
+	 */
+	synchronized void setChildren(long epoch, List<String> children, int height) {
+		if(epoch == current.epoch)
+			current = new Subtree(epoch, current.reported, children, height);
+	}
+
+	/**
+	 * Ends given epoch, average of the epoch is applied once
+	 * @param epoch
+	 * @return subtree of the epoch, null if the epoch isn't current or was already settled
+	 */
+	synchronized Subtree settle(long epoch) {
+		if(epoch != current.epoch || settled)
+			return null;
+		settled = true;
+		return current;
+	}
+
+	synchronized long getEpoch() {
+		return current.epoch;
+	}
+
+	/**
+	 * Splits agents into at most fanout contiguous parts of nearly equal size
+	 * @param agents
+	 * @param fanout
+	 * @return parts, the first agent of every part is its root
+	 */
+	static List<List<String>> split(List<String> agents, int fanout) {
+		int parts = Math.min(Math.max(1, fanout), agents.size());
+		List<List<String>> result = new ArrayList<>(parts);
+		int start = 0;
+		for(int i = 0; i < parts; i++) {
+			int end = start + (agents.size() - start) / (parts - i);
+			result.add(agents.subList(start, end));
+			start = end;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns number of levels of the tree built over given number of agents
+	 * @param agents
+	 * @param fanout
+	 * @return height, 0 for no agents
+	 */
+	static int getHeight(int agents, int fanout) {
+		int height = 0;
+		for(int left = agents; left > 0; left = (left - 1 + fanout - 1) / fanout)
+			height++;
+		return height;
+	}
+}